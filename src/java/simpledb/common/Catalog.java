@@ -1,7 +1,9 @@
 package simpledb.common;
 
+import simpledb.storage.ColumnFile;
 import simpledb.storage.DbFile;
 import simpledb.storage.HeapFile;
+import simpledb.storage.PageCodec;
 import simpledb.storage.TupleDesc;
 
 import java.io.BufferedReader;
@@ -56,7 +58,9 @@ public class Catalog {
      */
     public void addTable(DbFile file, String name, String pkeyField) {
         // some code goes here
-        tables.put(file.getId(), new Table(file, name, pkeyField));
+        Table replaced = tables.put(file.getId(), new Table(file, name, pkeyField));
+        if (replaced != null && replaced.dbFile != file)
+            close(replaced.dbFile);
     }
 
     public void addTable(DbFile file, String name) {
@@ -136,11 +140,30 @@ public class Catalog {
      */
     public void clear() {
         // some code goes here
+        for (Table table : tables.values())
+            close(table.dbFile);
         tables.clear();
     }
 
+    private static void close(DbFile dbFile) {
+        try {
+            dbFile.close();
+        } catch (IOException e) {
+            e.printStackTrace();                    // the table is gone either way
+        }
+    }
+
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * <p>
+     * Each line declares a table as {@code name (field type [pk], ...)}, optionally
+     * followed by options:
+     * <ul>
+     * <li>{@code slotted}: the pages are slotted pages, see {@link HeapFile#isSlotted}</li>
+     * <li>{@code codec=name}: the pages are compressed with the {@link PageCodec} of that
+     * name, e.g. {@code codec=deflate}. A compressed file is read as one without it too.</li>
+     * <li>{@code columnar}: the table is a {@link ColumnFile}; it takes no other option</li>
+     * </ul>
      *
      * @param catalogFile
      */
@@ -179,10 +202,35 @@ public class Catalog {
                         }
                     }
                 }
+                boolean slotted = false;
+                boolean columnar = false;
+                PageCodec codec = null;
+                for (String option : line.substring(line.indexOf(")") + 1).trim().split("\\s+")) {
+                    if (option.equalsIgnoreCase("slotted"))
+                        slotted = true;
+                    else if (option.equalsIgnoreCase("columnar"))
+                        columnar = true;
+                    else if (option.toLowerCase().startsWith("codec=")) {
+                        try {
+                            codec = PageCodec.valueOf(option.substring("codec=".length()).toUpperCase());
+                        } catch (IllegalArgumentException e) {
+                            System.out.println("Unknown codec " + option);
+                            System.exit(0);
+                        }
+                    } else if (!option.isEmpty()) {
+                        System.out.println("Unknown table option " + option);
+                        System.exit(0);
+                    }
+                }
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder + "/" + name + ".dat"), t);
+                File dataFile = new File(baseFolder + "/" + name + ".dat");
+                if (columnar && (slotted || codec != null)) {
+                    System.out.println("A columnar table takes no other option : " + line);
+                    System.exit(0);
+                }
+                DbFile tabHf = columnar ? new ColumnFile(dataFile, t) : new HeapFile(dataFile, t, codec, slotted);
                 addTable(tabHf, name, primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
@@ -109,6 +109,7 @@ public class Utility {
     public static HeapFile createEmptyHeapFile(String path, int cols)
             throws IOException {
         File f = new File(path);
+        HeapFile.delete(f);                                 // the free space map of an old table at path too
         // touch the file
         FileOutputStream fos = new FileOutputStream(f);
         fos.write(new byte[0]);
@@ -119,7 +119,9 @@ public class Aggregate extends Operator {
     }
 
     public void init() throws TransactionAbortedException, DbException {
-        while (child.hasNext()) {
+        boolean columnar = gfield == -1 && aggregator instanceof IntegerAggregator && child instanceof SeqScan
+                && ((SeqScan) child).mergeInts(afield, (IntegerAggregator) aggregator);     // int arrays of a ColumnFile
+        while (!columnar && child.hasNext()) {
             aggregator.mergeTupleIntoGroup(child.next());
         }
         opIterator = aggregator.iterator();
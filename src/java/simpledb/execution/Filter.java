@@ -9,12 +9,16 @@ import java.util.NoSuchElementException;
 
 /**
  * Filter is an operator that implements a relational select.
+ * <p>
+ * When the child is a {@link SeqScan}, the predicate is pushed down into
+ * the scan on open, which evaluates it before decoding tuples.
  */
 public class Filter extends Operator {
 
     private static final long serialVersionUID = 1L;
     private Predicate predicate;
     private OpIterator child;
+    private boolean pushedDown;                 // the child scan only returns tuples that pass
 
     /**
      * Constructor accepts a predicate to apply and a child operator to read
@@ -43,6 +47,7 @@ public class Filter extends Operator {
             TransactionAbortedException {
         // some code goes here
         super.open();
+        pushedDown = child instanceof SeqScan && ((SeqScan) child).pushPredicate(predicate);
         child.open();
     }
 
@@ -71,7 +76,7 @@ public class Filter extends Operator {
         // some code goes here
         while (child.hasNext()) {
             Tuple tuple = child.next();
-            if (predicate.filter(tuple))
+            if (pushedDown || predicate.filter(tuple))
                 return tuple;
         }
         return null;
@@ -11,6 +11,8 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Inserts tuples read from the child operator into the tableId specified in the
@@ -19,6 +21,7 @@ import java.io.IOException;
 public class Insert extends Operator {
 
     private static final long serialVersionUID = 1L;
+    private static final int BATCH_SIZE = 4096;                 // tuples handed to BufferPool.insertTuples at once
     private TransactionId tId;
     private OpIterator child;
     private int tableId;
@@ -75,18 +78,23 @@ public class Insert extends Operator {
      * @return A 1-field tuple containing the number of inserted records, or
      * null if called more than once.
      * @see Database#getBufferPool
-     * @see BufferPool#insertTuple
+     * @see BufferPool#insertTuples
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
         if (isCalled) return null;
         BufferPool bp = Database.getBufferPool();
+        List<Tuple> batch = new ArrayList<>(BATCH_SIZE);
         while (child.hasNext()) {
-            try {
-                bp.insertTuple(tId, tableId, child.next());
-                counter++;
-            } catch (IOException e) {
-                e.printStackTrace();
+            batch.add(child.next());
+            if (batch.size() == BATCH_SIZE || !child.hasNext()) {        // hand the file whole batches, so it can append full pages
+                try {
+                    bp.insertTuples(tId, tableId, batch.iterator());
+                    counter += batch.size();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                batch.clear();
             }
         }
         TupleDesc tupleDesc = new TupleDesc(new Type[]{Type.INT_TYPE});
@@ -38,8 +38,8 @@ public class IntegerAggregator implements Aggregator {
         this.gbfieldType = gbfieldtype;
         this.aggrOp = what;
         if (gbfieldType == null) {
-            ngroupValue[2] = Integer.MAX_VALUE;
-            ngroupValue[3] = Integer.MIN_VALUE;
+            ngroupValue[2] = Integer.MIN_VALUE;
+            ngroupValue[3] = Integer.MAX_VALUE;
         }
     }
 
@@ -68,6 +68,23 @@ public class IntegerAggregator implements Aggregator {
         }
     }
 
+    /**
+     * Merges the values of the aggregate field of many tuples at once.
+     * Only for an aggregate without grouping.
+     *
+     * @param values the values of the aggregate field
+     */
+    public void mergeInts(int[] values) {
+        if (gbfieldType != null)
+            throw new IllegalStateException("values without their group cannot be merged");
+        for (int value : values) {
+            ngroupValue[1] += value;
+            ngroupValue[2] = Math.max(ngroupValue[2], value);
+            ngroupValue[3] = Math.min(ngroupValue[3], value);
+        }
+        ngroupValue[0] += values.length;
+    }
+
     /**
      * Create a OpIterator over group aggregate results.
      *
@@ -11,6 +11,9 @@ import java.util.NoSuchElementException;
 
 /**
  * Project is an operator that implements a relational projection.
+ * <p>
+ * Over a SeqScan of a ColumnFile the projection is pushed into the scan on
+ * open, so only the projected columns are ever decoded.
  */
 public class Project extends Operator {
 
@@ -18,6 +21,7 @@ public class Project extends Operator {
     private OpIterator child;
     private final TupleDesc td;
     private final List<Integer> outFieldIds;
+    private boolean pushedDown;                 // the child scan already projects
 
     /**
      * Constructor accepts a child operator to read tuples to apply projection
@@ -51,6 +55,10 @@ public class Project extends Operator {
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
+        int[] fields = new int[outFieldIds.size()];
+        for (int i = 0; i < fields.length; i++)
+            fields[i] = outFieldIds.get(i);
+        pushedDown = child instanceof SeqScan && ((SeqScan) child).pushProjection(fields);
         child.open();
         super.open();
     }
@@ -77,7 +85,7 @@ public class Project extends Operator {
         Tuple newTuple = new Tuple(td);
         newTuple.setRecordId(t.getRecordId());
         for (int i = 0; i < td.numFields(); i++) {
-            newTuple.setField(i, t.getField(outFieldIds.get(i)));
+            newTuple.setField(i, t.getField(pushedDown ? i : outFieldIds.get(i)));
         }
         return newTuple;
     }
@@ -3,7 +3,11 @@ package simpledb.execution;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
+import simpledb.storage.BufferRing;
+import simpledb.storage.ColumnFile;
+import simpledb.storage.DbFile;
 import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
@@ -16,6 +20,17 @@ import java.util.NoSuchElementException;
  * SeqScan is an implementation of a sequential scan access method that reads
  * each tuple of a table in no particular order (e.g., as they are laid out on
  * disk).
+ * <p>
+ * Tables larger than a quarter of the BufferPool are read through a
+ * {@link BufferRing}, so a big scan does not push the pages of other
+ * queries out of the pool.
+ * <p>
+ * A predicate pushed down with {@link #pushPredicate} is evaluated on the
+ * raw page bytes of a HeapFile, so rejected tuples are never decoded.
+ * Likewise a projection pushed down with {@link #pushProjection} makes a
+ * {@link ColumnFile} decode only the projected columns, and an Aggregate
+ * over an int column of a ColumnFile reads it as primitive arrays with
+ * {@link #mergeInts}.
  */
 public class SeqScan implements OpIterator {
 
@@ -24,6 +39,7 @@ public class SeqScan implements OpIterator {
     private Integer tableId;
     private String tableAlias;
     private DbFileIterator dbFileIterator;
+    private int[] projection;                   // the fields of the table read, null for all of them
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -43,10 +59,74 @@ public class SeqScan implements OpIterator {
         this.transactionId = tid;
         this.tableId = tableid;
         this.tableAlias = tableAlias;
-        this.dbFileIterator = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+        this.dbFileIterator = openIterator(tid, Database.getCatalog().getDatabaseFile(tableid), null);
 
     }
 
+    private static DbFileIterator openIterator(TransactionId tid, DbFile dbFile, Predicate predicate) {
+        if (dbFile instanceof HeapFile) {
+            HeapFile heapFile = (HeapFile) dbFile;
+            BufferRing ring = BufferRing.isBulkRead(heapFile.numPages(), Database.getBufferPool())
+                    ? new BufferRing(Database.getBufferPool()) : null;
+            if (ring != null || predicate != null)
+                return heapFile.iterator(tid, ring, predicate);
+        }
+        return dbFile.iterator(tid);
+    }
+
+    /**
+     * Makes this scan return only the tuples that satisfy the predicate.
+     * Must be called before the scan is opened.
+     *
+     * @param predicate the predicate, on the fields of this scan's TupleDesc
+     * @return false if the table cannot evaluate the predicate itself, in
+     * which case the scan is unchanged and the caller has to filter
+     */
+    public boolean pushPredicate(Predicate predicate) {
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(dbFile instanceof HeapFile))
+            return false;
+        dbFileIterator = openIterator(transactionId, dbFile, predicate);
+        return true;
+    }
+
+    /**
+     * Makes this scan read only the given fields of the table; it then
+     * returns tuples of just those fields, in that order, and
+     * {@link #getTupleDesc} describes just those fields. Must be called
+     * before the scan is opened. A later call replaces the projection.
+     *
+     * @param fields indexes of the fields of the table to read
+     * @return false if the table cannot project columns itself, in which
+     * case the scan is unchanged and the caller has to project
+     */
+    public boolean pushProjection(int[] fields) {
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(dbFile instanceof ColumnFile))
+            return false;
+        dbFileIterator = ((ColumnFile) dbFile).iterator(transactionId, fields);
+        projection = fields.clone();
+        return true;
+    }
+
+    /**
+     * Merges the values of an int field of all tuples of the scan into an
+     * aggregate without grouping. A ColumnFile hands out the column a page
+     * at a time as a primitive array, so no tuple is built.
+     *
+     * @param field      the index of the field in this scan's TupleDesc
+     * @param aggregator the aggregate to merge the values into
+     * @return false if the table cannot, in which case nothing was merged
+     */
+    boolean mergeInts(int field, IntegerAggregator aggregator) throws DbException, TransactionAbortedException {
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(dbFile instanceof ColumnFile))
+            return false;
+        int tableField = projection == null ? field : projection[field];
+        ((ColumnFile) dbFile).scanInts(transactionId, tableField, aggregator::mergeInts);
+        return true;
+    }
+
     /**
      * @return return the table name of the table the operator scans. This should
      * be the actual name of the table in the catalog of the database
@@ -78,6 +158,7 @@ public class SeqScan implements OpIterator {
         // some code goes here
         this.tableId = tableid;
         this.tableAlias = tableAlias;
+        this.projection = null;
     }
 
     public SeqScan(TransactionId tid, int tableId) {
@@ -96,6 +177,8 @@ public class SeqScan implements OpIterator {
      * name.  The alias and name should be separated with a "." character
      * (e.g., "alias.fieldName").
      *
+     * After {@link #pushProjection} it has only the projected fields.
+     *
      * @return the TupleDesc with field names from the underlying HeapFile,
      * prefixed with the tableAlias string from the constructor.
      */
@@ -104,9 +187,11 @@ public class SeqScan implements OpIterator {
         TupleDesc originTupleDesc = Database.getCatalog().getTupleDesc(tableId);
         ArrayList<Type> newTupleDescType = new ArrayList<>();             // new types
         ArrayList<String> newTupleDescNames = new ArrayList<>();          // new field names
-        for (int i = 0; i < originTupleDesc.numFields(); i++) {
-            newTupleDescNames.add(i, tableAlias + "." + originTupleDesc.getFieldName(i));
-            newTupleDescType.add(i, originTupleDesc.getFieldType(i));
+        int numFields = projection == null ? originTupleDesc.numFields() : projection.length;
+        for (int i = 0; i < numFields; i++) {
+            int field = projection == null ? i : projection[i];
+            newTupleDescNames.add(i, tableAlias + "." + originTupleDesc.getFieldName(field));
+            newTupleDescType.add(i, originTupleDesc.getFieldType(field));
         }
         return new TupleDesc(newTupleDescType.toArray(new Type[newTupleDescType.size()]),
                 newTupleDescNames.toArray(new String[newTupleDescNames.size()]));
@@ -32,6 +32,7 @@ public class BTreeFile implements DbFile {
     private final TupleDesc td;
     private final int tableid;
     private final int keyField;
+    private final PageChannel channel;    // all page I/O goes through it
 
     /**
      * Constructs a B+ tree file backed by the specified file.
@@ -42,10 +43,27 @@ public class BTreeFile implements DbFile {
      * @param td  - the tuple descriptor of tuples in the file
      */
     public BTreeFile(File f, int key, TupleDesc td) {
+        this(f, key, td, null);
+    }
+
+    /**
+     * Constructs a B+ tree file whose pages are compressed on disk with
+     * codec, see {@link CompressedPageChannel}. A file that is compressed
+     * already keeps being read as one, whatever the codec.
+     *
+     * @param f     - the file that stores the on-disk backing store for this B+ tree
+     *              file.
+     * @param key   - the field which index is keyed on
+     * @param td    - the tuple descriptor of tuples in the file
+     * @param codec - the codec of new pages, null to store them as they are
+     *              unless the file is compressed already
+     */
+    public BTreeFile(File f, int key, TupleDesc td, PageCodec codec) {
         this.f = f;
         this.tableid = f.getAbsoluteFile().hashCode();
         this.keyField = key;
         this.td = td;
+        this.channel = PageChannel.open(f, codec);
     }
 
     /**
@@ -88,10 +106,10 @@ public class BTreeFile implements DbFile {
     public Page readPage(PageId pid) {
         BTreePageId id = (BTreePageId) pid;
 
-        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(f))) {
+        try {
             if (id.pgcateg() == BTreePageId.ROOT_PTR) {
                 byte[] pageBuf = new byte[BTreeRootPtrPage.getPageSize()];
-                int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
+                int retval = channel.read(pageBuf, 0);
                 if (retval == -1) {
                     throw new IllegalArgumentException("Read past end of table");
                 }
@@ -103,12 +121,7 @@ public class BTreeFile implements DbFile {
                 return new BTreeRootPtrPage(id, pageBuf);
             } else {
                 byte[] pageBuf = new byte[BufferPool.getPageSize()];
-                if (bis.skip(BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) !=
-                        BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException(
-                            "Unable to seek to correct place in BTreeFile");
-                }
-                int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
+                int retval = channel.read(pageBuf, pageOffset(id.getPageNumber()));
                 if (retval == -1) {
                     throw new IllegalArgumentException("Read past end of table");
                 }
@@ -117,19 +130,57 @@ public class BTreeFile implements DbFile {
                             + BufferPool.getPageSize() + " bytes from BTreeFile");
                 }
                 Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-                if (id.pgcateg() == BTreePageId.INTERNAL) {
-                    return new BTreeInternalPage(id, pageBuf, keyField);
-                } else if (id.pgcateg() == BTreePageId.LEAF) {
-                    return new BTreeLeafPage(id, pageBuf, keyField);
-                } else { // id.pgcateg() == BTreePageId.HEADER
-                    return new BTreeHeaderPage(id, pageBuf);
-                }
+                return decodePage(id, pageBuf);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Page decodePage(BTreePageId id, byte[] pageBuf) throws IOException {
+        if (id.pgcateg() == BTreePageId.INTERNAL) {
+            return new BTreeInternalPage(id, pageBuf, keyField);
+        } else if (id.pgcateg() == BTreePageId.LEAF) {
+            return new BTreeLeafPage(id, pageBuf, keyField);
+        } else { // id.pgcateg() == BTreePageId.HEADER
+            return new BTreeHeaderPage(id, pageBuf);
+        }
+    }
+
+    /**
+     * Read several pages from disk, with one read per run of adjacent page
+     * numbers. This should not be called directly but should be called from
+     * the BufferPool.
+     *
+     * @param pids - the ids of the pages to read from disk
+     * @return the pages constructed from the contents on disk, in the order of pids
+     */
+    public List<Page> readPages(List<PageId> pids) {
+        Map<PageId, Page> read = new HashMap<>();
+        List<PageId> runPages = new ArrayList<>();
+        int numPages = numPages();
+        for (PageId pid : pids) {
+            if (((BTreePageId) pid).pgcateg() == BTreePageId.ROOT_PTR)
+                read.put(pid, readPage(pid));                       // not laid out like the other pages
+            else if (pid.getPageNumber() > numPages)
+                throw new IllegalArgumentException("Read past end of table");
+            else
+                runPages.add(pid);
+        }
+        try {
+            for (List<PageId> run : PageChannel.adjacentRuns(runPages, PageChannel.MAX_PAGES_PER_READ)) {
+                List<byte[]> data = channel.readPages(pageOffset(run.get(0).getPageNumber()), run.size(),
+                        BufferPool.getPageSize());
+                for (int i = 0; i < run.size(); i++)
+                    read.put(run.get(i), decodePage((BTreePageId) run.get(i), data.get(i)));
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        // Close the file on success or error
-        // Ignore failures closing the file
+        List<Page> pages = new ArrayList<>(pids.size());
+        for (PageId pid : pids)
+            pages.add(read.get(pid));
+        return pages;
     }
 
     /**
@@ -142,15 +193,22 @@ public class BTreeFile implements DbFile {
         BTreePageId id = (BTreePageId) page.getId();
 
         byte[] data = page.getPageData();
-        RandomAccessFile rf = new RandomAccessFile(f, "rw");
-        if (id.pgcateg() == BTreePageId.ROOT_PTR) {
-            rf.write(data);
-            rf.close();
-        } else {
-            rf.seek(BTreeRootPtrPage.getPageSize() + (long) (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
-            rf.write(data);
-            rf.close();
-        }
+        if (id.pgcateg() == BTreePageId.ROOT_PTR)
+            channel.write(data, 0);
+        else
+            channel.write(data, pageOffset(id.getPageNumber()));
+    }
+
+    /**
+     * Returns the file offset of a non root pointer page; page numbers start at 1.
+     */
+    private static long pageOffset(int pageNumber) {
+        return BTreeRootPtrPage.getPageSize() + (long) (pageNumber - 1) * BufferPool.getPageSize();
+    }
+
+    // see DbFile.java for javadocs
+    public void close() throws IOException {
+        channel.close();
     }
 
     /**
@@ -158,7 +216,7 @@ public class BTreeFile implements DbFile {
      */
     public int numPages() {
         // we only ever write full pages
-        return (int) ((f.length() - BTreeRootPtrPage.getPageSize()) / BufferPool.getPageSize());
+        return (int) ((channel.length() - BTreeRootPtrPage.getPageSize()) / BufferPool.getPageSize());
     }
 
     /**
@@ -1013,15 +1071,10 @@ public class BTreeFile implements DbFile {
     BTreeRootPtrPage getRootPtrPage(TransactionId tid, Map<PageId, Page> dirtypages) throws
             DbException, IOException, TransactionAbortedException {
         synchronized (this) {
-            if (f.length() == 0) {
+            if (channel.length() == 0) {
                 // create the root pointer page and the root page
-                BufferedOutputStream bw = new BufferedOutputStream(
-                        new FileOutputStream(f, true));
-                byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
-                byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-                bw.write(emptyRootPtrData);
-                bw.write(emptyLeafData);
-                bw.close();
+                channel.append(BTreeRootPtrPage.createEmptyPageData());
+                channel.append(BTreeLeafPage.createEmptyPageData());
             }
         }
 
@@ -1075,11 +1128,7 @@ public class BTreeFile implements DbFile {
         if (headerId == null) {
             synchronized (this) {
                 // create the new page
-                BufferedOutputStream bw = new BufferedOutputStream(
-                        new FileOutputStream(f, true));
-                byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-                bw.write(emptyData);
-                bw.close();
+                channel.append(BTreeInternalPage.createEmptyPageData());
                 emptyPageNo = numPages();
             }
         }
@@ -1109,10 +1158,7 @@ public class BTreeFile implements DbFile {
         BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 
         // write empty page to disk
-        RandomAccessFile rf = new RandomAccessFile(f, "rw");
-        rf.seek(BTreeRootPtrPage.getPageSize() + (long) (emptyPageNo - 1) * BufferPool.getPageSize());
-        rf.write(BTreePage.createEmptyPageData());
-        rf.close();
+        channel.write(BTreePage.createEmptyPageData(), pageOffset(emptyPageNo));
 
         // make sure the page is not in the buffer pool	or in the local cache
         Database.getBufferPool().discardPage(newPageId);
@@ -1262,10 +1308,28 @@ class BTreeFileIterator extends AbstractDbFileIterator {
         BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
                 tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
         BTreePageId root = rootPtr.getRootId();
-        curp = f.findLeafPage(tid, root, null);
+        curp = pin(f.findLeafPage(tid, root, null).getId());
         it = curp.iterator();
     }
 
+    /**
+     * Pin the leaf page we are about to read and release the previous one
+     */
+    private BTreeLeafPage pin(BTreePageId pid) throws TransactionAbortedException, DbException {
+        unpin();
+        BTreeLeafPage page = (BTreeLeafPage) Database.getBufferPool().pinPage(tid, pid, Permissions.READ_ONLY);
+        if (page.getRightSiblingId() != null)
+            Database.getBufferPool().prefetch(page.getRightSiblingId());      // read ahead along the leaf chain
+        return page;
+    }
+
+    private void unpin() {
+        if (curp != null) {
+            Database.getBufferPool().unpin(tid, curp.getId(), false);
+            curp = null;
+        }
+    }
+
     /**
      * Read the next tuple either from the current page if it has more tuples or
      * from the next page by following the right sibling pointer.
@@ -1280,10 +1344,9 @@ class BTreeFileIterator extends AbstractDbFileIterator {
         while (it == null && curp != null) {
             BTreePageId nextp = curp.getRightSiblingId();
             if (nextp == null) {
-                curp = null;
+                unpin();
             } else {
-                curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-                        nextp, Permissions.READ_ONLY);
+                curp = pin(nextp);
                 it = curp.iterator();
                 if (!it.hasNext())
                     it = null;
@@ -1309,7 +1372,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
     public void close() {
         super.close();
         it = null;
-        curp = null;
+        unpin();
     }
 }
 
@@ -1348,13 +1411,42 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
         BTreePageId root = rootPtr.getRootId();
         if (ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN
                 || ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-            curp = f.findLeafPage(tid, root, ipred.getField());
+            curp = pin(f.findLeafPage(tid, root, ipred.getField()).getId());
         } else {
-            curp = f.findLeafPage(tid, root, null);
+            curp = pin(f.findLeafPage(tid, root, null).getId());
         }
         it = curp.iterator();
     }
 
+    /**
+     * Pin the leaf page we are about to read and release the previous one
+     */
+    private BTreeLeafPage pin(BTreePageId pid) throws TransactionAbortedException, DbException {
+        unpin();
+        BTreeLeafPage page = (BTreeLeafPage) Database.getBufferPool().pinPage(tid, pid, Permissions.READ_ONLY);
+        if (page.getRightSiblingId() != null && continuesPastPage(page))
+            Database.getBufferPool().prefetch(page.getRightSiblingId());      // read ahead along the leaf chain
+        return page;
+    }
+
+    /**
+     * Returns true if the scan is sure to move on to the right sibling of the page,
+     * i.e. if the last key of the page still matches the predicate.
+     */
+    private boolean continuesPastPage(BTreeLeafPage page) {
+        if (ipred.getOp() == Op.GREATER_THAN || ipred.getOp() == Op.GREATER_THAN_OR_EQ)
+            return true;
+        Iterator<Tuple> last = page.reverseIterator();
+        return last.hasNext() && last.next().getField(f.keyField()).compare(ipred.getOp(), ipred.getField());
+    }
+
+    private void unpin() {
+        if (curp != null) {
+            Database.getBufferPool().unpin(tid, curp.getId(), false);
+            curp = null;
+        }
+    }
+
     /**
      * Read the next tuple either from the current page if it has more tuples matching
      * the predicate or from the next page by following the right sibling pointer.
@@ -1387,8 +1479,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
             if (nextp == null) {
                 return null;
             } else {
-                curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-                        nextp, Permissions.READ_ONLY);
+                curp = pin(nextp);
                 it = curp.iterator();
             }
         }
@@ -1410,5 +1501,6 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
     public void close() {
         super.close();
         it = null;
+        unpin();
     }
 }
@@ -24,7 +24,6 @@ public class BTreeHeaderPage implements Page {
     final BTreePageId pid;
     final byte[] header;
     final int numSlots;
-    private final Byte oldDataLock = (byte) 0;
     byte[] oldData;
     private volatile boolean dirty = false;
     private volatile TransactionId dirtier = null;
@@ -113,7 +112,7 @@ public class BTreeHeaderPage implements Page {
     public BTreeHeaderPage getBeforeImage() {
         try {
             byte[] oldDataRef = null;
-            synchronized (oldDataLock) {
+            synchronized (this) {
                 oldDataRef = oldData;
             }
             return new BTreeHeaderPage(pid, oldDataRef);
@@ -126,16 +125,11 @@ public class BTreeHeaderPage implements Page {
     }
 
     public void setBeforeImage() {
-        synchronized (oldDataLock) {
+        synchronized (this) {
             oldData = getPageData().clone();
         }
     }
 
-    @Override
-    public long getLastAccessedTime() {
-        return 0;
-    }
-
     /**
      * @return the PageId associated with this page.
      */
@@ -92,8 +92,6 @@ public class BTreeInternalPage extends BTreePage {
             e.printStackTrace();
         }
         dis.close();
-
-        setBeforeImage();
     }
 
     public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
@@ -143,11 +141,7 @@ public class BTreeInternalPage extends BTreePage {
      */
     public BTreeInternalPage getBeforeImage() {
         try {
-            byte[] oldDataRef = null;
-            synchronized (oldDataLock) {
-                oldDataRef = oldData;
-            }
-            return new BTreeInternalPage(pid, oldDataRef, keyField);
+            return new BTreeInternalPage(pid, getBeforeImageData(), keyField);
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -156,17 +150,6 @@ public class BTreeInternalPage extends BTreePage {
         return null;
     }
 
-    public void setBeforeImage() {
-        synchronized (oldDataLock) {
-            oldData = getPageData().clone();
-        }
-    }
-
-    @Override
-    public long getLastAccessedTime() {
-        return 0;
-    }
-
     /**
      * Read keys from the source file.
      */
@@ -352,6 +335,7 @@ public class BTreeInternalPage extends BTreePage {
      *                     already empty.
      */
     private void deleteEntry(BTreeEntry e, boolean deleteRightChild) throws DbException {
+        captureBeforeImage();
         RecordId rid = e.getRecordId();
         if (rid == null)
             throw new DbException("tried to delete entry with null rid");
@@ -411,6 +395,7 @@ public class BTreeInternalPage extends BTreePage {
      *                     order on the page
      */
     public void updateEntry(BTreeEntry e) throws DbException {
+        captureBeforeImage();
         RecordId rid = e.getRecordId();
         if (rid == null)
             throw new DbException("tried to update entry with null rid");
@@ -451,6 +436,7 @@ public class BTreeInternalPage extends BTreePage {
      *                     table id, or child page category is a mismatch, or the entry is invalid
      */
     public void insertEntry(BTreeEntry e) throws DbException {
+        captureBeforeImage();
         if (!e.getKey().getType().equals(td.getFieldType(keyField)))
             throw new DbException("key field type mismatch, in insertEntry");
 
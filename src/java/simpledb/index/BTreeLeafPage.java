@@ -85,8 +85,6 @@ public class BTreeLeafPage extends BTreePage {
             e.printStackTrace();
         }
         dis.close();
-
-        setBeforeImage();
     }
 
     public void checkRep(int fieldid, Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
@@ -133,11 +131,7 @@ public class BTreeLeafPage extends BTreePage {
      */
     public BTreeLeafPage getBeforeImage() {
         try {
-            byte[] oldDataRef = null;
-            synchronized (oldDataLock) {
-                oldDataRef = oldData;
-            }
-            return new BTreeLeafPage(pid, oldDataRef, keyField);
+            return new BTreeLeafPage(pid, getBeforeImageData(), keyField);
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -146,17 +140,6 @@ public class BTreeLeafPage extends BTreePage {
         return null;
     }
 
-    public void setBeforeImage() {
-        synchronized (oldDataLock) {
-            oldData = getPageData().clone();
-        }
-    }
-
-    @Override
-    public long getLastAccessedTime() {
-        return 0;
-    }
-
     /**
      * Read tuples from the source file.
      */
@@ -292,6 +275,7 @@ public class BTreeLeafPage extends BTreePage {
      *                     already empty.
      */
     public void deleteTuple(Tuple t) throws DbException {
+        captureBeforeImage();
         RecordId rid = t.getRecordId();
         if (rid == null)
             throw new DbException("tried to delete tuple with null rid");
@@ -313,6 +297,7 @@ public class BTreeLeafPage extends BTreePage {
      *                     is mismatch.
      */
     public void insertTuple(Tuple t) throws DbException {
+        captureBeforeImage();
         if (!t.getTupleDesc().equals(td))
             throw new DbException("type mismatch, in addTuple");
 
@@ -396,6 +381,7 @@ public class BTreeLeafPage extends BTreePage {
      * @throws DbException if the id is not valid
      */
     public void setLeftSiblingId(BTreePageId id) throws DbException {
+        captureBeforeImage();
         if (id == null) {
             leftSibling = 0;
         } else {
@@ -428,6 +414,7 @@ public class BTreeLeafPage extends BTreePage {
      * @throws DbException if the id is not valid
      */
     public void setRightSiblingId(BTreePageId id) throws DbException {
+        captureBeforeImage();
         if (id == null) {
             rightSibling = 0;
         } else {
@@ -21,11 +21,10 @@ public abstract class BTreePage implements Page {
     protected final BTreePageId pid;
     protected final TupleDesc td;
     protected final int keyField;
-    protected final Byte oldDataLock = (byte) 0;
     protected volatile boolean dirty = false;
     protected volatile TransactionId dirtier = null;
     protected int parent; // parent is always internal node or 0 for root node
-    protected byte[] oldData;
+    protected byte[] oldData; // before image, null while the page is unchanged since it was read or last committed
 
     /**
      * Create a BTreeInternalPage from a set of bytes of data read from disk.
@@ -56,6 +55,30 @@ public abstract class BTreePage implements Page {
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
     }
 
+    /**
+     * Makes the current contents of this page its before image. The bytes
+     * are only copied when the page is about to change.
+     */
+    public synchronized void setBeforeImage() {
+        oldData = null;
+    }
+
+    /**
+     * Copies the page into its before image unless it already has one.
+     * Every method that changes the page calls it first.
+     */
+    protected synchronized void captureBeforeImage() {
+        if (oldData == null)
+            oldData = getPageData();
+    }
+
+    /**
+     * @return the bytes of the before image of this page
+     */
+    protected synchronized byte[] getBeforeImageData() {
+        return oldData != null ? oldData : getPageData();
+    }
+
     /**
      * Static method to generate a byte array corresponding to an empty
      * BTreePage.
@@ -96,6 +119,7 @@ public abstract class BTreePage implements Page {
      * @throws DbException if the id is not valid
      */
     public void setParentId(BTreePageId id) throws DbException {
+        captureBeforeImage();
         if (id == null) {
             throw new DbException("parent id must not be null");
         }
@@ -117,6 +141,8 @@ public abstract class BTreePage implements Page {
      * that did the dirtying
      */
     public void markDirty(boolean dirty, TransactionId tid) {
+        if (dirty)
+            captureBeforeImage();
         this.dirty = dirty;
         if (dirty) this.dirtier = tid;
     }
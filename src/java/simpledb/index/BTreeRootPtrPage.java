@@ -86,11 +86,6 @@ public class BTreeRootPtrPage implements Page {
         oldData = getPageData().clone();
     }
 
-    @Override
-    public long getLastAccessedTime() {
-        return 0;
-    }
-
     /**
      * @return the PageId associated with this page.
      */
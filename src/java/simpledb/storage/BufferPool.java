@@ -2,6 +2,7 @@ package simpledb.storage;
 
 import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.common.Debug;
 import simpledb.common.Permissions;
 import simpledb.storage.evict.EvictStrategy;
 import simpledb.storage.evict.LRU;
@@ -12,10 +13,25 @@ import simpledb.transaction.lock.PageLock;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -25,6 +41,60 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Pages are spread over a number of partitions by the hash of their
+ * PageId. Each partition has its own latch, page table and replacer, so
+ * misses and flushes on different partitions run in parallel. The page
+ * budget is shared by all partitions: a miss evicts from its own
+ * partition first and only borrows a victim from another partition when
+ * its own pages are all dirty.
+ * <p>
+ * Latch order: a partition latch is always taken before the LogFile
+ * monitor, never the other way around.
+ * <p>
+ * Operators that hold on to a page across calls (e.g. scans) fetch it
+ * with {@link #pinPage} and release it with {@link #unpin}; pinned pages
+ * are never chosen as eviction victims. Pins still held when a
+ * transaction completes are dropped.
+ * <p>
+ * Sequential reads of HeapFile pages are detected per table and the next
+ * pages are read ahead on a background thread; access methods can also
+ * hint upcoming pages with {@link #prefetch}.
+ * <p>
+ * By default the pages of a transaction are written when it commits
+ * (FORCE). Once {@link #startPageWriter} is called, a commit only logs its
+ * pages and a background writer trickles them to disk in PageId order,
+ * so commits no longer wait for page writes and evictions mostly find
+ * pages that are already written.
+ * <p>
+ * By default only clean pages are evicted (NO STEAL). With
+ * {@link #setSteal} on, a dirty page of a transaction the log can roll
+ * back is evicted when no clean page is left: its update is logged and
+ * the log forced before the page is written (WAL), and an abort undoes
+ * it from the log.
+ * <p>
+ * Every page a transaction fetches with write permission is recorded in
+ * its write set and, until the page is written, in the dirty page table
+ * with its recLSN: the next log LSN at the time the page was first
+ * fetched for writing. Commit, abort and checkpoints only visit these
+ * pages instead of the whole pool.
+ * <p>
+ * HeapFiles read and change single tuples under record locks (see
+ * {@link #lockTuple}) below intention locks on their pages, so several
+ * transactions may change one page at once. Such a page keeps the tuples
+ * of every running writer; a commit logs and writes its committed image,
+ * a copy without the tuples of the others, and an abort takes its own
+ * tuples out of the cached page again (see {@link TupleUndoLog}).
+ * <p>
+ * A snapshot transaction ({@link #beginSnapshot}) reads without locks:
+ * it gets the version of each page as of the last commit before it began,
+ * from the before images commits preserve in a {@link VersionStore}.
+ * <p>
+ * A pool created off-heap keeps HeapFile pages in the frames of one direct
+ * ByteBuffer allocated up front (see {@link FrameArena}). Such pages are
+ * thin views that decode their tuples from the frame on demand. A page is
+ * copied back to the heap when it leaves the pool, so references to it
+ * stay valid while its frame is reused.
  *
  * @Threadsafe, all fields are final
  */
@@ -41,11 +111,52 @@ public class BufferPool {
      */
     private static final int DEFAULT_PAGE_SIZE = 4096;
 
+    /**
+     * Smallest number of pages a partition should be responsible for; small
+     * pools use fewer partitions.
+     */
+    private static final int MIN_PAGES_PER_PARTITION = 16;
+
+    /**
+     * How long a transaction waits in the queue of a page lock before it
+     * is aborted anyway. Deadlocks between page locks are found by the
+     * LockManager; this only ends waits it cannot see, such as a cycle
+     * through a latch held while waiting for a lock.
+     */
+    private static final long LOCK_TIMEOUT_MILLIS = 30000;
+
+    /**
+     * Number of pages read ahead of a sequential scan. The effective window
+     * never exceeds a quarter of the pool.
+     */
+    public static final int DEFAULT_READ_AHEAD_WINDOW = 8;
+    private static final int READ_AHEAD_THREADS = 2;
+
+    private static final Comparator<PageId> PAGE_ORDER =
+            Comparator.comparingInt(PageId::getTableId).thenComparingInt(PageId::getPageNumber);
+
     private static int pageSize = DEFAULT_PAGE_SIZE;
-    private final ConcurrentHashMap<PageId, Page> pages;              // pages stored in BufferPool
-    private final ReadWriteLock lock;                                 // control read/write access privilege
-    private final EvictStrategy evictStrategy;                        // evict strategy
+    private final Partition[] partitions;                             // pages stored in BufferPool, hashed by PageId
+    private final AtomicInteger numResident;                          // pages currently cached over all partitions
     private final LockManager lockManager;                            // lock controller
+    private final ConcurrentHashMap<TransactionId, ConcurrentHashMap<PageId, Integer>> transactionPins; // pins held per trx
+    private volatile int numPages;                                    // capacity of this BufferPool
+    private volatile int readAheadWindow;                             // pages to read ahead of a sequential scan
+    private final ThreadPoolExecutor readAheadExecutor;               // loads prefetched pages in the background
+    private final Set<PageId> readAheadPending;                       // prefetches queued or in flight
+    private final AtomicLong pagesReadAhead;                          // pages loaded by prefetches
+    private final AtomicLong failedReadAheads;                        // prefetches given up on
+    private final ConcurrentHashMap<Integer, Integer> lastHeapPageRead; // table id -> last heap page number fetched
+    private final TransactionId pageWriterTid;                        // read locks the pages the writer writes back
+    private volatile boolean forceOnCommit;                           // FORCE, unless the page writer is running
+    private ScheduledExecutorService pageWriter;                      // background page writer, null when stopped
+    private final FrameArena arena;                                   // off-heap page frames, null for heap pages
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> writeSets; // pages each trx fetched for writing
+    private final ConcurrentHashMap<PageId, Long> dirtyPageTable;     // pages that may be newer than on disk -> recLSN
+    private volatile boolean steal;                                   // evict dirty pages of live transactions
+    private final Set<TransactionId> stealVictims;                    // transactions with uncommitted pages on disk
+    private final VersionStore versions;                              // old page versions read by snapshot transactions
+    private final TupleUndoLog tupleUndo;                             // tuples changed by running trx under record locks
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -54,10 +165,148 @@ public class BufferPool {
      */
     public BufferPool(int numPages) {
         // some code goes here
-        pages = new ConcurrentHashMap<>(numPages);
-        lock = new ReentrantReadWriteLock();
-        evictStrategy = new LRU();
+        this(numPages, LRU::new);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and picks its
+     * victims with the given replacement policy.
+     *
+     * @param numPages      maximum number of pages in this buffer pool.
+     * @param evictStrategy creates the page replacement policy of each partition,
+     *                      e.g. {@link LRU} or {@link simpledb.storage.evict.Clock}
+     */
+    public BufferPool(int numPages, Supplier<EvictStrategy> evictStrategy) {
+        this(numPages, defaultPartitions(numPages), evictStrategy);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages in the given
+     * number of partitions.
+     *
+     * @param numPages      maximum number of pages in this buffer pool.
+     * @param numPartitions number of independently latched partitions
+     * @param evictStrategy creates the page replacement policy of each partition
+     */
+    public BufferPool(int numPages, int numPartitions, Supplier<EvictStrategy> evictStrategy) {
+        this(numPages, numPartitions, evictStrategy, false);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages in the given
+     * number of partitions, optionally in off-heap frames.
+     * <p>
+     * The off-heap arena holds numPages frames of the current page size and
+     * does not grow with {@link #resize}; pages beyond it, and pages of
+     * other DbFiles than HeapFile, are kept on the heap.
+     *
+     * @param numPages      maximum number of pages in this buffer pool.
+     * @param numPartitions number of independently latched partitions
+     * @param evictStrategy creates the page replacement policy of each partition
+     * @param offHeap       true to keep HeapFile pages in a pre-allocated direct buffer
+     */
+    public BufferPool(int numPages, int numPartitions, Supplier<EvictStrategy> evictStrategy, boolean offHeap) {
+        if (numPages <= 0)
+            throw new IllegalArgumentException("buffer pool must hold at least one page");
+        if (numPartitions <= 0)
+            throw new IllegalArgumentException("buffer pool must have at least one partition");
+        this.numPages = numPages;
+        numResident = new AtomicInteger(0);
+        partitions = new Partition[numPartitions];
+        for (int i = 0; i < numPartitions; i++)
+            partitions[i] = new Partition(evictStrategy.get());
         lockManager = new LockManager();
+        transactionPins = new ConcurrentHashMap<>();
+        readAheadWindow = DEFAULT_READ_AHEAD_WINDOW;
+        readAheadExecutor = new ThreadPoolExecutor(READ_AHEAD_THREADS, READ_AHEAD_THREADS, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "simpledb-read-ahead");
+            thread.setDaemon(true);
+            return thread;
+        });
+        readAheadExecutor.allowCoreThreadTimeOut(true);
+        readAheadPending = ConcurrentHashMap.newKeySet();
+        pagesReadAhead = new AtomicLong();
+        failedReadAheads = new AtomicLong();
+        lastHeapPageRead = new ConcurrentHashMap<>();
+        pageWriterTid = new TransactionId();
+        forceOnCommit = true;
+        arena = offHeap ? new FrameArena(numPages) : null;
+        writeSets = new ConcurrentHashMap<>();
+        dirtyPageTable = new ConcurrentHashMap<>();
+        stealVictims = ConcurrentHashMap.newKeySet();
+        versions = new VersionStore();
+        tupleUndo = new TupleUndoLog();
+    }
+
+    private static int defaultPartitions(int numPages) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(cores, numPages / MIN_PAGES_PER_PARTITION));
+    }
+
+    private Partition partitionOf(PageId pid) {
+        return partitions[Math.floorMod(pid.hashCode(), partitions.length)];
+    }
+
+    /**
+     * @return the maximum number of pages this buffer pool caches
+     */
+    public int getNumPages() {
+        return numPages;
+    }
+
+    /**
+     * @return the number of pages cached right now, which exceeds
+     * {@link #getNumPages} after a shrink until the excess is drained
+     */
+    public int getNumCachedPages() {
+        return numResident.get();
+    }
+
+    /**
+     * Changes the capacity of this buffer pool while it is running.
+     * <p>
+     * Growing takes effect immediately. When shrinking, clean pages are
+     * evicted until the pool fits the new capacity; if only dirty pages are
+     * left, the remaining excess is drained by later misses as the owning
+     * transactions complete.
+     *
+     * @param numPages the new maximum number of pages in this buffer pool
+     */
+    public synchronized void resize(int numPages) {
+        if (numPages <= 0)
+            throw new IllegalArgumentException("buffer pool must hold at least one page");
+        this.numPages = numPages;
+        for (Partition partition : partitions) {
+            partition.latch.lock();
+            try {
+                while (numResident.get() > numPages && partition.evictOne()) {
+                    // keep draining this partition
+                }
+            } finally {
+                partition.latch.unlock();
+            }
+        }
+        // if only dirty pages are left, the remaining excess is drained incrementally
+    }
+
+    /**
+     * Switches between STEAL and NO STEAL eviction. Only the pages of
+     * transactions that logged a BEGIN record (see
+     * {@link simpledb.transaction.Transaction#start}) are ever stolen, since
+     * the log can only roll back those.
+     *
+     * @param steal true to let evictions write dirty pages of running transactions
+     */
+    public void setSteal(boolean steal) {
+        this.steal = steal;
+    }
+
+    /**
+     * @return true if dirty pages of running transactions may be evicted
+     */
+    public boolean isSteal() {
+        return steal;
     }
 
     public static int getPageSize() {
@@ -93,32 +342,449 @@ public class BufferPool {
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
         // some code goes here
-        PageLock.LockType lockType = perm == Permissions.READ_WRITE ? PageLock.LockType.EXCLUSIVE : PageLock.LockType.SAHRE;
-        long startTime = System.currentTimeMillis();
-        long timeout = 1000;
-        boolean isAcquired = false;
+        return getPage(tid, pid, perm, null);
+    }
+
+    /**
+     * Retrieve the specified page like {@link #getPage(TransactionId, PageId, Permissions)},
+     * reading it through the given ring on a miss. Bulk reads use a ring so
+     * that they cycle through a few frames of their own instead of evicting
+     * the pages other transactions work with.
+     *
+     * @param tid  the ID of the transaction requesting the page
+     * @param pid  the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @param ring the bulk-read ring of the caller, or null for a normal access
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, BufferRing ring)
+            throws TransactionAbortedException, DbException {
+        Long snapshot = lockOrSnapshot(tid, pid, perm, lockTypeOf(perm));
+        if (perm == Permissions.READ_WRITE)
+            trackWrite(tid, pid);
+        Partition partition = partitionOf(pid);
+        Page targetPage = partition.pages.get(pid);
+        if (targetPage == null) {
+            partition.latch.lock();
+            try {
+                targetPage = loadPage(partition, pid, ring);
+            } finally {
+                partition.latch.unlock();
+            }
+        }
+        recordAccess(partition, pid, ring);
+        readAheadIfSequential(pid);
+        return snapshot == null ? targetPage : versions.asOf(targetPage, snapshot);
+    }
+
+    /**
+     * Retrieve the specified page like {@link #getPage} and pin it, so that
+     * it stays in the buffer pool until the transaction calls
+     * {@link #unpin} (or completes). A page may be pinned several times;
+     * it becomes evictable again when every pin is released.
+     *
+     * @param tid  the ID of the transaction requesting the page
+     * @param pid  the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @return the pinned page
+     */
+    public Page pinPage(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        return pinPage(tid, pid, perm, null);
+    }
+
+    /**
+     * Retrieve and pin the specified page like {@link #pinPage(TransactionId, PageId, Permissions)},
+     * reading it through the given bulk-read ring on a miss.
+     *
+     * @param tid  the ID of the transaction requesting the page
+     * @param pid  the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @param ring the bulk-read ring of the caller, or null for a normal access
+     * @return the pinned page
+     */
+    public Page pinPage(TransactionId tid, PageId pid, Permissions perm, BufferRing ring)
+            throws TransactionAbortedException, DbException {
+        return pinPage(tid, pid, perm, ring, lockTypeOf(perm));
+    }
+
+    /**
+     * Retrieve and pin the specified page like {@link #pinPage(TransactionId, PageId, Permissions, BufferRing)},
+     * but only take an intention lock on it: IS to read tuples, IX to change
+     * them. The caller locks every tuple it reads or changes with
+     * {@link #lockTuple}, and changes tuples only while it holds the
+     * monitor of the page, which other writers of the page share.
+     *
+     * @param tid  the ID of the transaction requesting the page
+     * @param pid  the ID of the requested page
+     * @param perm READ_WRITE to change tuples of the page, READ_ONLY to read them
+     * @param ring the bulk-read ring of the caller, or null for a normal access
+     * @return the pinned page
+     */
+    Page pinPageForTuples(TransactionId tid, PageId pid, Permissions perm, BufferRing ring)
+            throws TransactionAbortedException, DbException {
+        return pinPage(tid, pid, perm, ring, lockTypeOf(perm).intention());
+    }
+
+    private Page pinPage(TransactionId tid, PageId pid, Permissions perm, BufferRing ring, PageLock.LockType lockType)
+            throws TransactionAbortedException, DbException {
+        Long snapshot = lockOrSnapshot(tid, pid, perm, lockType);
+        if (perm == Permissions.READ_WRITE)
+            trackWrite(tid, pid);
+        Partition partition = partitionOf(pid);
+        Page targetPage;
+        partition.latch.lock();
         try {
-            while (!isAcquired) {
-                long endTime = System.currentTimeMillis();
-                if (endTime - startTime <= timeout) {
-                    isAcquired = lockManager.acquireLock(tid, pid, lockType);
-                } else
-                    throw new TransactionAbortedException();
+            targetPage = loadPage(partition, pid, ring);
+            partition.pinCounts.merge(pid, 1, Integer::sum);       // under the latch, so an evictor sees it
+        } finally {
+            partition.latch.unlock();
+        }
+        transactionPins.computeIfAbsent(tid, k -> new ConcurrentHashMap<>()).merge(pid, 1, Integer::sum);
+        recordAccess(partition, pid, ring);
+        readAheadIfSequential(pid);
+        return snapshot == null ? targetPage : versions.asOf(targetPage, snapshot);
+    }
+
+    /**
+     * Releases one pin the transaction holds on the page. Unpinning a page
+     * the transaction has not pinned (e.g. after it completed) is a no-op.
+     *
+     * @param tid   the ID of the transaction releasing the pin
+     * @param pid   the ID of the pinned page
+     * @param dirty true if the transaction modified the page while it was pinned
+     */
+    public void unpin(TransactionId tid, PageId pid, boolean dirty) {
+        ConcurrentHashMap<PageId, Integer> pins = transactionPins.get(tid);
+        if (pins == null || pins.computeIfPresent(pid, (k, count) -> count > 1 ? count - 1 : 0) == null)
+            return;                                             // the transaction holds no pin on this page
+        pins.remove(pid, 0);
+        Partition partition = partitionOf(pid);
+        partition.pinCounts.computeIfPresent(pid, (k, count) -> count > 1 ? count - 1 : null);
+        Page page = partition.pages.get(pid);
+        if (dirty && page != null) {
+            trackWrite(tid, pid);                               // so that commit writes it and abort restores it
+            page.markDirty(true, tid);
+        }
+    }
+
+    /**
+     * Drops every pin still held by a completing transaction.
+     */
+    private void releasePins(TransactionId tid) {
+        ConcurrentHashMap<PageId, Integer> pins = transactionPins.remove(tid);
+        if (pins == null)
+            return;
+        for (Map.Entry<PageId, Integer> pin : pins.entrySet()) {
+            int held = pin.getValue();
+            partitionOf(pin.getKey()).pinCounts.computeIfPresent(pin.getKey(), (k, count) -> count > held ? count - held : null);
+        }
+    }
+
+    /**
+     * @return the number of pins currently held on the page
+     */
+    public int getPinCount(PageId pid) {
+        return partitionOf(pid).pinCounts.getOrDefault(pid, 0);
+    }
+
+    /**
+     * Sets how many pages are read ahead of a sequential scan; 0 turns
+     * read-ahead off.
+     *
+     * @param pages the read-ahead window in pages
+     */
+    public void setReadAheadWindow(int pages) {
+        if (pages < 0)
+            throw new IllegalArgumentException("read-ahead window must not be negative");
+        this.readAheadWindow = pages;
+    }
+
+    private int effectiveReadAheadWindow() {
+        return Math.min(readAheadWindow, numPages / 4);
+    }
+
+    /**
+     * @return the number of pages prefetches have loaded into the pool
+     */
+    public long getPagesReadAhead() {
+        return pagesReadAhead.get();
+    }
+
+    /**
+     * @return the number of prefetches that failed and loaded nothing
+     */
+    public long getFailedReadAheads() {
+        return failedReadAheads.get();
+    }
+
+    /**
+     * Hints that the page will be read soon. If it is not cached, it is
+     * loaded on a background thread without taking any lock; the reader
+     * still locks it through {@link #getPage}. That is safe because only a
+     * page missing from the pool is read, under the latch of its partition,
+     * so the prefetch caches the image on disk just like a miss would.
+     * Read-ahead is best effort: it is skipped when the pool has no clean
+     * page to give up. Such failures are counted, see {@link #getFailedReadAheads}.
+     *
+     * @param pid the ID of the page that will be read
+     */
+    public void prefetch(PageId pid) {
+        prefetch(Collections.singletonList(pid));
+    }
+
+    /**
+     * Hints that the pages, all of one table, will be read soon. The ones
+     * not cached are fetched on a background thread with a single
+     * {@link DbFile#readPages} call, so adjacent pages cost one read.
+     *
+     * @param pids the IDs of the pages that will be read
+     */
+    public void prefetch(List<PageId> pids) {
+        if (effectiveReadAheadWindow() == 0)
+            return;
+        List<PageId> missing = new ArrayList<>();
+        for (PageId pid : pids) {
+            if (!partitionOf(pid).pages.containsKey(pid) && readAheadPending.add(pid))
+                missing.add(pid);
+        }
+        if (missing.isEmpty())
+            return;
+        readAheadExecutor.execute(() -> {
+            try {
+                readAhead(missing);
+            } finally {
+                readAheadPending.removeAll(missing);
+            }
+        });
+    }
+
+    private void readAhead(List<PageId> pids) {
+        // hold the latches of all the partitions involved, in partition order, so no page
+        // can be loaded, written and evicted behind our back while we read
+        List<Partition> latched = new ArrayList<>();
+        for (Partition partition : partitions) {
+            for (PageId pid : pids) {
+                if (partitionOf(pid) == partition) {
+                    latched.add(partition);
+                    break;
+                }
             }
+        }
+        for (Partition partition : latched)
+            partition.latch.lock();
+        try {
+            List<PageId> missing = new ArrayList<>();
+            for (PageId pid : pids) {
+                if (!partitionOf(pid).pages.containsKey(pid))
+                    missing.add(pid);
+            }
+            if (missing.isEmpty())
+                return;
+            DbFile dbFile = Database.getCatalog().getDatabaseFile(missing.get(0).getTableId());
+            for (Page page : dbFile.readPages(missing)) {
+                Partition partition = partitionOf(page.getId());
+                reserveFrame(partition);
+                partition.put(page);
+                partition.evictStrategy.recordColdAccess(page.getId()); // only hot once somebody actually reads it
+                pagesReadAhead.incrementAndGet();
+            }
+        } catch (DbException | RuntimeException e) {
+            // nothing to evict, or the table went away; the reader will fetch it itself
+            failedReadAheads.incrementAndGet();
+            Debug.log("read-ahead of %d pages of table %d from page %d failed: %s",
+                    pids.size(), pids.get(0).getTableId(), pids.get(0).getPageNumber(), e);
+        } finally {
+            for (int i = latched.size() - 1; i >= 0; i--)
+                latched.get(i).latch.unlock();
+        }
+    }
+
+    /**
+     * Reads ahead of a HeapFile scan once the page follows the previous one
+     * fetched from the same table. The window is refilled once the scan has
+     * consumed half of it, so the pages are fetched in batches of about half
+     * a window.
+     */
+    private void readAheadIfSequential(PageId pid) {
+        int window = effectiveReadAheadWindow();
+        if (window == 0 || !(pid instanceof HeapPageId))
+            return;
+        int pageNo = pid.getPageNumber();
+        Integer last = lastHeapPageRead.put(pid.getTableId(), pageNo);
+        if (last == null || last != pageNo - 1)
+            return;
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        if (!(dbFile instanceof HeapFile))
+            return;
+        int end = Math.min(((HeapFile) dbFile).numPages(), pageNo + 1 + window);
+        if (end <= pageNo + 1)
+            return;
+        PageId trigger = new HeapPageId(pid.getTableId(), Math.min(end - 1, pageNo + (window + 1) / 2));
+        if (partitionOf(trigger).pages.containsKey(trigger) || readAheadPending.contains(trigger))
+            return;                                             // still far enough ahead, refill in larger batches
+        List<PageId> ahead = new ArrayList<>();
+        for (int next = pageNo + 1; next < end; next++)
+            ahead.add(new HeapPageId(pid.getTableId(), next));
+        prefetch(ahead);
+    }
+
+    /**
+     * Adds a page the transaction is about to change to its write set and,
+     * unless it is there already, to the dirty page table.
+     */
+    private void trackWrite(TransactionId tid, PageId pid) {
+        writeSets.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(pid);
+        if (!dirtyPageTable.containsKey(pid))
+            dirtyPageTable.putIfAbsent(pid, Database.getLogFile().getNextLsn());
+    }
+
+    /**
+     * Drops the write set of a completing transaction, and the pages of it
+     * that are no newer than on disk from the dirty page table.
+     */
+    private void forgetWrites(TransactionId tid) {
+        Set<PageId> written = writeSets.remove(tid);
+        if (written == null)
+            return;
+        for (PageId pid : written) {
+            Partition partition = partitionOf(pid);
+            Page page = partition.pages.get(pid);
+            if ((page == null || page.isDirty() == null) && !partition.unwritten.contains(pid))
+                dirtyPageTable.remove(pid);
+        }
+    }
+
+    /**
+     * @return the pages of the write set of the transaction, in PageId order
+     */
+    private List<PageId> writeSetOf(TransactionId tid) {
+        Set<PageId> written = writeSets.get(tid);
+        if (written == null)
+            return Collections.emptyList();
+        List<PageId> pids = new ArrayList<>(written);
+        pids.sort(PAGE_ORDER);
+        return pids;
+    }
+
+    /**
+     * Returns a snapshot of the dirty page table: every cached page that
+     * may be newer than its copy on disk, with its recLSN, the LSN from
+     * which redo has to replay the log for it.
+     *
+     * @return page id -> recLSN
+     */
+    public Map<PageId, Long> getDirtyPageTable() {
+        return Collections.unmodifiableMap(new HashMap<>(dirtyPageTable));
+    }
+
+    /**
+     * Locks the page for an ordinary transaction; a snapshot transaction
+     * reads without locks.
+     *
+     * @return the snapshot timestamp of tid, null if it is not a snapshot transaction
+     * @throws DbException if a snapshot transaction asks to write
+     */
+    private Long lockOrSnapshot(TransactionId tid, PageId pid, Permissions perm, PageLock.LockType lockType)
+            throws TransactionAbortedException, DbException {
+        Long snapshot = versions.snapshotOf(tid);
+        if (snapshot == null)
+            acquireLock(tid, pid, lockType);
+        else if (perm == Permissions.READ_WRITE)
+            throw new DbException("snapshot transaction " + tid.getId() + " is read-only");
+        return snapshot;
+    }
+
+    private static PageLock.LockType lockTypeOf(Permissions perm) {
+        return perm == Permissions.READ_WRITE ? PageLock.LockType.EXCLUSIVE : PageLock.LockType.SAHRE;
+    }
+
+    private void acquireLock(TransactionId tid, PageId pid, PageLock.LockType lockType) throws TransactionAbortedException {
+        try {
+            if (!lockManager.acquireLock(tid, pid, lockType, LOCK_TIMEOUT_MILLIS))
+                throw new TransactionAbortedException();
         } catch (InterruptedException e) {
-            e.printStackTrace();
+            Thread.currentThread().interrupt();
+            throw new TransactionAbortedException();
         }
-        Page targetPage = pages.get(pid);
+    }
+
+    /**
+     * Returns the cached page, reading it from disk on a miss. A miss through
+     * a ring first gives up the frame of the page leaving the ring.
+     * The caller holds the latch of the page's partition.
+     */
+    private Page loadPage(Partition partition, PageId pid, BufferRing ring) throws DbException {
+        Page targetPage = partition.pages.get(pid);            // may have been loaded while we were waiting
         if (targetPage == null) {
-            if (pages.size() >= DEFAULT_PAGES)
-                evictPage();
-            DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-            targetPage = dbFile.readPage(pid);
-            pages.put(pid, targetPage);
+            if (ring != null) {
+                PageId recycled = ring.next(pid);
+                if (recycled != null)
+                    recycleRingFrame(recycled);
+            }
+            reserveFrame(partition);
+            try {
+                DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                targetPage = readIntoFrame(partition, dbFile, pid);
+                if (targetPage == null)
+                    targetPage = dbFile.readPage(pid);
+            } catch (RuntimeException e) {
+                numResident.decrementAndGet();
+                throw e;
+            }
+            partition.put(targetPage);
         }
         return targetPage;
     }
 
+    /**
+     * Reads a HeapFile page straight into a free off-heap frame, which is
+     * then owned by the partition.
+     * The caller holds the latch of the partition.
+     *
+     * @return the page, or null if it is not to be read into a frame or no frame is free
+     */
+    private Page readIntoFrame(Partition partition, DbFile dbFile, PageId pid) {
+        if (arena == null || !(dbFile instanceof HeapFile) || !((HeapFile) dbFile).readsIntoBuffers())
+            return null;
+        int frame = arena.acquire();
+        if (frame < 0)
+            return null;
+        try {
+            Page page = ((HeapFile) dbFile).readPage(pid, arena.frame(frame));
+            partition.frames.put(pid, frame);
+            return page;
+        } catch (RuntimeException e) {
+            arena.release(frame);
+            throw e;
+        }
+    }
+
+    private void recordAccess(Partition partition, PageId pid, BufferRing ring) {
+        if (ring == null)
+            partition.evictStrategy.recordAccess(pid);
+        else
+            partition.evictStrategy.recordColdAccess(pid);
+    }
+
+    /**
+     * Drops a page that fell out of a ring, unless it has been dirtied or
+     * pinned meanwhile. The partition is only tried without blocking since
+     * the caller already holds the latch of another one.
+     */
+    private void recycleRingFrame(PageId pid) {
+        Partition partition = partitionOf(pid);
+        if (!partition.latch.tryLock())
+            return;
+        try {
+            Page page = partition.pages.get(pid);
+            if (page != null && page.isDirty() == null && !partition.pinCounts.containsKey(pid)
+                    && !partition.unwritten.contains(pid))
+                partition.remove(pid);
+        } finally {
+            partition.latch.unlock();
+        }
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -154,6 +820,96 @@ public class BufferPool {
         return lockManager.holdsLock(tid, p);
     }
 
+    /**
+     * Return true if a transaction other than tid has a lock on the specified page
+     */
+    public boolean isLockedByOthers(TransactionId tid, PageId p) {
+        return lockManager.isLockedByOthers(tid, p);
+    }
+
+    /**
+     * Locks a single tuple for the transaction, below intention locks on its
+     * table and page; past LockManager.ESCALATION_THRESHOLD tuples of one
+     * page the whole page is locked instead, if no other transaction holds
+     * it. A snapshot transaction takes no locks.
+     *
+     * @param rid  the tuple to lock
+     * @param perm READ_WRITE for an exclusive lock, READ_ONLY for a shared one
+     * @throws TransactionAbortedException if the lock was not granted in time or the trx was chosen to break a deadlock
+     */
+    public void lockTuple(TransactionId tid, RecordId rid, Permissions perm) throws TransactionAbortedException {
+        if (versions.snapshotOf(tid) != null)
+            return;
+        try {
+            if (!lockManager.acquireRecordLock(tid, rid, lockTypeOf(perm), LOCK_TIMEOUT_MILLIS))
+                throw new TransactionAbortedException();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransactionAbortedException();
+        }
+    }
+
+    /**
+     * Locks a single tuple exclusively if that is possible without waiting,
+     * e.g. the empty slot an insert is about to take while it holds the
+     * monitor of the page.
+     *
+     * @return false if another transaction holds the tuple
+     */
+    boolean tryLockTuple(TransactionId tid, RecordId rid) {
+        try {
+            return lockManager.acquireRecordLock(tid, rid, PageLock.LockType.EXCLUSIVE, 0);
+        } catch (InterruptedException | TransactionAbortedException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Records that tid inserted a tuple under a record lock, so that an abort
+     * can take it out again. The caller holds the monitor of the page.
+     */
+    void tupleInserted(TransactionId tid, RecordId rid) {
+        tupleUndo.inserted(tid, rid);
+    }
+
+    /**
+     * Records that tid deleted a tuple under a record lock, so that an abort
+     * can put it back. The caller holds the monitor of the page.
+     *
+     * @param t the tuple as it was in its slot
+     */
+    void tupleDeleted(TransactionId tid, Tuple t) {
+        tupleUndo.deleted(tid, t);
+    }
+
+    /**
+     * @return the slots of the page that are empty only because a running
+     * transaction other than tid deleted their tuples; a reader has to wait
+     * for its lock on them to know if they come back
+     */
+    Set<Integer> deletedByOthers(TransactionId tid, PageId pid) {
+        return tupleUndo.deletedByOthers(tid, pid);
+    }
+
+    /**
+     * Begins a read-only snapshot transaction (MVCC). Its reads see every
+     * page as of the last commit before it began, take no locks and so
+     * neither block writers nor wait for them; it may not write. The old
+     * page versions it reads are kept until it completes.
+     *
+     * @param tid a transaction that has not read or written anything yet
+     * @return the snapshot timestamp
+     * @throws TransactionAbortedException if interrupted while commits in flight finish
+     */
+    public long beginSnapshot(TransactionId tid) throws TransactionAbortedException {
+        try {
+            return versions.begin(tid);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransactionAbortedException();
+        }
+    }
+
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
@@ -164,25 +920,131 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid, boolean commit) {
         // some code goes here
         // not necessary for lab1|lab2
+        if (versions.snapshotOf(tid) != null) {     // read only, without locks
+            versions.end(tid);
+            releasePins(tid);
+            return;
+        }
         if (commit) {                       // flush dirty pages associated to the transaction to disk
+            boolean versioned = versions.beginCommit();
             try {
-                flushPages(tid);
+                if (versioned)
+                    preserveCommitted(tid);   // for the snapshots, before the pages change
+                if (forceOnCommit)
+                    flushPages(tid);
+                else
+                    logCommittedPages(tid);   // NO FORCE: the page writer writes them later
             } catch (IOException e) {
                 e.printStackTrace();
+            } finally {
+                versions.endCommit(tid, versioned);
             }
-        } else
+        } else {
+            undoStolenPages(tid);         // put the before images of stolen pages back on disk first
             restoreState(tid);            // revert any changes made by the transaction by restoring the page to its on-disk state
+            versions.abort(tid);
+        }
+        stealVictims.remove(tid);
+        tupleUndo.forget(tid);
+        forgetWrites(tid);                // while the trx still holds its locks
+        releasePins(tid);                 // release pins the trx forgot to drop
         lockManager.releaseAll(tid);      // release locks the trx holds
     }
 
+    /**
+     * Preserves the last committed images of the pages a committing
+     * transaction changed, for the snapshots that read them.
+     */
+    private void preserveCommitted(TransactionId tid) {
+        for (PageId pid : writeSetOf(tid)) {
+            Partition partition = partitionOf(pid);
+            partition.latch.lock();
+            try {
+                Page page = partition.pages.get(pid);
+                if (page != null && (page.isDirty() == tid || page.isDirty() == null || tupleUndo.isWriter(tid, pid)))
+                    versions.preserve(tid, page.getBeforeImage());
+            } finally {
+                partition.latch.unlock();
+            }
+        }
+    }
+
+    /**
+     * Rolls back, from the log, an aborting transaction that had pages
+     * stolen. There is nothing left to undo if it already rolled back
+     * through {@link LogFile#logAbort}.
+     */
+    private void undoStolenPages(TransactionId tid) {
+        if (!stealVictims.contains(tid) || !Database.getLogFile().isLive(tid))
+            return;
+        try {
+            Database.getLogFile().rollback(tid);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Marks a page that changed tuples under record locks dirty by one of
+     * its running writers, or clean once it has none: its contents are then
+     * its last committed image, which is on disk or among the unwritten pages.
+     * The caller holds the monitor of the page.
+     */
+    private void handOverDirty(HeapPage page) {
+        TransactionId writer = tupleUndo.anyWriter(page.getId());
+        page.markDirty(writer != null, writer);
+    }
+
+    /**
+     * Cuts, logs and installs the committed image of a page tid changed
+     * tuples of under record locks: the page without the tuples of its
+     * other running writers. The image becomes the before image of the
+     * page, which stays dirty while other writers run.
+     * The caller holds the latch of the page's partition.
+     *
+     * @return the committed image, to be written once the log is forced
+     */
+    private HeapPage commitTuples(TransactionId tid, HeapPage page) throws IOException {
+        HeapPage image;
+        synchronized (page) {
+            image = tupleUndo.committedImage(tid, page);
+            Database.getLogFile().logWrite(tid, page.getBeforeImage(), image);
+            page.setBeforeImage(image.getPageData());
+            tupleUndo.committed(tid, page.getId());
+        }
+        return image;
+    }
+
+    /**
+     * Puts the pages an aborting transaction changed back as they were.
+     * A page other transactions may be changing tuples of only gets the
+     * tuples of tid taken out; any other page is replaced by its last
+     * committed version.
+     */
     private void restoreState(TransactionId tid) {
-        for (PageId pid : pages.keySet()) {
-            Page page = pages.get(pid);
-            if (page.isDirty() == tid) {
-                int tableId = pid.getTableId();
-                DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
-                Page originalPage = dbFile.readPage(pid);
-                pages.put(pid, originalPage);
+        for (PageId pid : writeSetOf(tid)) {
+            Partition partition = partitionOf(pid);
+            partition.latch.lock();
+            try {
+                Page page = partition.pages.get(pid);
+                if (page instanceof HeapPage && tupleUndo.isWriter(tid, pid) && !lockManager.holdsExclusively(tid, pid)) {
+                    HeapPage heapPage = (HeapPage) page;
+                    synchronized (heapPage) {
+                        tupleUndo.rollback(tid, heapPage);
+                        handOverDirty(heapPage);
+                    }
+                    ((HeapFile) Database.getCatalog().getDatabaseFile(pid.getTableId())).pageRestored(heapPage);
+                } else if (page != null && page.isDirty() == tid) {
+                    DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                    Page originalPage = partition.unwritten.contains(pid)
+                            ? page.getBeforeImage()                     // the disk is older than the last commit
+                            : dbFile.readPage(pid);
+                    partition.put(originalPage);
+                    if (dbFile instanceof HeapFile)
+                        ((HeapFile) dbFile).pageRestored((HeapPage) originalPage);   // gives back the room of aborted inserts
+                }
+            } finally {
+                partition.latch.unlock();
             }
         }
     }
@@ -208,13 +1070,54 @@ public class BufferPool {
         DbFile file = Database.getCatalog().getDatabaseFile(tableId);
         ArrayList<Page> arrayList = (ArrayList<Page>) file.insertTuple(tid, t);
         for (Page p : arrayList) {
+            trackWrite(tid, p.getId());
             p.markDirty(true, tid);
-            if (pages.size() > DEFAULT_PAGES)
-                evictPage();
-            pages.put(p.getId(), p);        // Important!
+            cachePage(p);                   // Important!
         }
     }
 
+    /**
+     * Add a batch of tuples to the specified table on behalf of transaction
+     * tid, like {@link #insertTuple} does for each of them. The file may
+     * append whole pages of them straight to disk (see {@link #prepareAppend});
+     * the pages it changed in the cache are marked dirty and cached.
+     *
+     * @param tid     the transaction adding the tuples
+     * @param tableId the table to add the tuples to
+     * @param tuples  the tuples to add
+     */
+    public void insertTuples(TransactionId tid, int tableId, Iterator<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        for (Page p : file.insertTuples(tid, tuples)) {
+            trackWrite(tid, p.getId());
+            p.markDirty(true, tid);
+            cachePage(p);
+        }
+    }
+
+    /**
+     * Prepares new pages a DbFile is about to append to disk for tid without
+     * caching them: takes their write locks, logs each page as a page-level
+     * update record and forces the log, so that the append is written ahead
+     * and an abort undoes it like a stolen page.
+     *
+     * @throws IllegalStateException if the log does not know tid, so nothing could undo the append
+     */
+    void prepareAppend(TransactionId tid, List<Page> pages) throws TransactionAbortedException, IOException {
+        LogFile log = Database.getLogFile();
+        if (!log.isLive(tid))
+            throw new IllegalStateException("cannot append pages for transaction " + tid.getId() + " without a BEGIN record");
+        for (Page page : pages) {
+            acquireLock(tid, page.getId(), PageLock.LockType.EXCLUSIVE);
+            versions.preserve(tid, page.getBeforeImage());        // snapshots read the empty page until tid commits
+        }
+        for (Page page : pages)
+            log.logWrite(tid, page.getBeforeImage(), page);
+        log.force();
+        stealVictims.add(tid);
+    }
+
     /**
      * Remove the specified tuple from the buffer pool.
      * Will acquire a write lock on the page the tuple is removed from and any
@@ -237,10 +1140,9 @@ public class BufferPool {
         DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
         ArrayList<Page> arrayList = (ArrayList<Page>) file.deleteTuple(tid, t);
         for (Page p : arrayList) {
+            trackWrite(tid, p.getId());
             p.markDirty(true, tid);
-            if (pages.size() > DEFAULT_PAGES)
-                evictPage();
-            pages.put(p.getId(), p);
+            cachePage(p);
         }
     }
 
@@ -249,14 +1151,20 @@ public class BufferPool {
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      * break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        for (Map.Entry<PageId, Page> entry : pages.entrySet()) {
-            PageId pageId = entry.getKey();
-            Page page = entry.getValue();
-            if (page.isDirty() != null) {
-                flushPage(pageId);
+        List<PageId> pids = new ArrayList<>(dirtyPageTable.keySet());   // only these can differ from disk
+        pids.sort(PAGE_ORDER);
+        for (PageId pid : pids) {
+            Partition partition = partitionOf(pid);
+            partition.latch.lock();
+            try {
+                Page page = partition.pages.get(pid);
+                if (page != null && (page.isDirty() != null || partition.unwritten.contains(pid)))
+                    flushPage(page);
+            } finally {
+                partition.latch.unlock();
             }
         }
     }
@@ -270,10 +1178,35 @@ public class BufferPool {
      * Also used by B+ tree files to ensure that deleted pages
      * are removed from the cache so they can be reused safely
      */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        pages.remove(pid);
+        Partition partition = partitionOf(pid);
+        partition.latch.lock();
+        try {
+            partition.remove(pid);
+        } finally {
+            partition.latch.unlock();
+        }
+    }
+
+    /**
+     * Writes a rolled back page image to disk and drops the cached page,
+     * under the page's partition latch so that no load, read-ahead or
+     * eviction of the page runs in between.
+     *
+     * @param beforeImage the page as it was before the rolled back transaction changed it
+     */
+    void restorePage(Page beforeImage) throws IOException {
+        PageId pid = beforeImage.getId();
+        Partition partition = partitionOf(pid);
+        partition.latch.lock();
+        try {
+            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(beforeImage);
+            partition.remove(pid);
+        } finally {
+            partition.latch.unlock();
+        }
     }
 
     /**
@@ -281,49 +1214,455 @@ public class BufferPool {
      *
      * @param pid an ID indicating the page to flush
      */
-    public synchronized void flushPage(PageId pid) {
+    public void flushPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        Page flushedPage = pages.get(pid);
-        // check the page is whether dirty
+        Partition partition = partitionOf(pid);
+        partition.latch.lock();
         try {
-            if (flushedPage.isDirty() != null) {
-                Database.getLogFile().logWrite(flushedPage.isDirty(), flushedPage.getBeforeImage(), flushedPage);
-                Database.getLogFile().force();
+            Page flushedPage = partition.pages.get(pid);
+            if (flushedPage != null)
+                flushPage(flushedPage);
+        } finally {
+            partition.latch.unlock();
+        }
+    }
+
+    /**
+     * Writes a resident page to disk, logging it first if it is dirty.
+     * The caller holds the latch of the page's partition.
+     */
+    private void flushPage(Page flushedPage) {
+        PageId pid = flushedPage.getId();
+        // check the page is whether dirty
+        synchronized (flushedPage) {                                            // no tuples change under record locks meanwhile
+            try {
+                if (flushedPage instanceof HeapPage && changesTuples(pid)) {
+                    // uncommitted tuples of several transactions: write the committed image, it stays dirty
+                    Database.getLogFile().force();                              // a commit may have logged the image just now
+                    Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(flushedPage.getBeforeImage());
+                    partitionOf(pid).unwritten.remove(pid);
+                    return;
+                }
+                if (flushedPage.isDirty() != null) {
+                    Database.getLogFile().logWrite(flushedPage.isDirty(), flushedPage.getBeforeImage(), flushedPage);
+                    Database.getLogFile().force();
+                }
+                int tableId = pid.getTableId();
+                DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);     // find the dbfile
+                dbFile.writePage(flushedPage);                                      // write the page to dbfile
+                flushedPage.markDirty(false, null);
+                partitionOf(pid).unwritten.remove(pid);
+                dirtyPageTable.remove(pid);
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-            int tableId = pid.getTableId();
-            DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);     // find the dbfile
-            dbFile.writePage(flushedPage);                                      // write the page to dbfile
-            flushedPage.markDirty(false, null);
-        } catch (IOException e) {
-            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return true if transactions that do not hold the page exclusively
+     * changed tuples of it, so that it may carry the uncommitted tuples of
+     * several of them and only its committed image can be written. A page
+     * its only writer holds alone is locked exclusively for that writer
+     * instead, and then flushed, and undone on abort, like any other.
+     * The caller holds the monitor of the page.
+     */
+    private boolean changesTuples(PageId pid) {
+        TransactionId writer = tupleUndo.anyWriter(pid);
+        if (writer == null || lockManager.holdsExclusively(writer, pid))
+            return false;
+        TransactionId sole = tupleUndo.soleWriter(pid);
+        try {
+            return sole == null || !lockManager.acquireLock(sole, pid, PageLock.LockType.EXCLUSIVE, 0);
+        } catch (InterruptedException | TransactionAbortedException e) {
+            return true;
         }
     }
 
     /**
      * Write all pages of the specified transaction to disk.
      */
-    public synchronized void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        for (Map.Entry<PageId, Page> entry : pages.entrySet()) {
-            Page page = entry.getValue();
-            if (page.isDirty() == tid) {
-                flushPage(page.getId());
+        for (PageId pid : writeSetOf(tid)) {
+            Partition partition = partitionOf(pid);
+            partition.latch.lock();
+            try {
+                Page page = partition.pages.get(pid);
+                if (page == null)
+                    continue;
+                if (page instanceof HeapPage && tupleUndo.isWriter(tid, pid) && !lockManager.holdsExclusively(tid, pid)) {
+                    HeapPage image = commitTuples(tid, (HeapPage) page);
+                    Database.getLogFile().force();
+                    Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(image);
+                    synchronized (page) {
+                        tupleUndo.forget(tid, pid);
+                        handOverDirty((HeapPage) page);
+                    }
+                    partition.unwritten.remove(pid);
+                    if (page.isDirty() == null)
+                        dirtyPageTable.remove(pid);
+                    continue;
+                }
+                if (page.isDirty() == tid)
+                    flushPage(page);
+                synchronized (page) {                               // no writer of its tuples gets in between
+                    if (page.isDirty() == null)                     // also if written before the commit, e.g. stolen
+                        page.setBeforeImage();                      // the committed page is the next before image
+                }
+            } finally {
+                partition.latch.unlock();
+            }
+        }
+    }
+
+    /**
+     * NO FORCE commit: logs the pages of the transaction and leaves them in
+     * the pool, marked as committed but not yet written. The log is forced
+     * before any of them becomes visible to the page writer.
+     */
+    private void logCommittedPages(TransactionId tid) throws IOException {
+        List<Page> committed = new ArrayList<>();
+        List<HeapPage> tuplesCommitted = new ArrayList<>();
+        for (PageId pid : writeSetOf(tid)) {
+            Partition partition = partitionOf(pid);
+            partition.latch.lock();
+            try {
+                Page page = partition.pages.get(pid);
+                if (page instanceof HeapPage && tupleUndo.isWriter(tid, pid) && !lockManager.holdsExclusively(tid, pid)) {
+                    commitTuples(tid, (HeapPage) page);             // tid stays a writer, so the page stays dirty
+                    tuplesCommitted.add((HeapPage) page);
+                } else if (page != null && page.isDirty() == tid) {
+                    Database.getLogFile().logWrite(tid, page.getBeforeImage(), page);
+                    committed.add(page);
+                } else if (page != null) {
+                    synchronized (page) {                           // no writer of its tuples gets in between
+                        if (page.isDirty() == null)
+                            page.setBeforeImage();                  // written before the commit, e.g. stolen
+                    }
+                }
+            } finally {
+                partition.latch.unlock();
+            }
+        }
+        if (committed.isEmpty() && tuplesCommitted.isEmpty())
+            return;
+        Database.getLogFile().force();
+        for (Page page : committed) {
+            Partition partition = partitionOf(page.getId());
+            partition.latch.lock();
+            try {
+                partition.unwritten.add(page.getId());              // before it looks clean to an evictor
+                page.setBeforeImage();
+                page.markDirty(false, null);
+            } finally {
+                partition.latch.unlock();
+            }
+        }
+        for (HeapPage page : tuplesCommitted) {
+            Partition partition = partitionOf(page.getId());
+            partition.latch.lock();
+            try {
+                partition.unwritten.add(page.getId());              // the page writer writes it once it is clean
+                synchronized (page) {
+                    tupleUndo.forget(tid, page.getId());
+                    handOverDirty(page);
+                }
+            } finally {
+                partition.latch.unlock();
+            }
+        }
+    }
+
+    /**
+     * Starts the background page writer and switches commits to NO FORCE.
+     * Every round the writer writes up to pagesPerRound committed pages, in
+     * PageId order, then sleeps for intervalMillis.
+     *
+     * @param pagesPerRound  the most pages written per round
+     * @param intervalMillis the pause between two rounds
+     */
+    public synchronized void startPageWriter(int pagesPerRound, long intervalMillis) {
+        if (pagesPerRound <= 0 || intervalMillis <= 0)
+            throw new IllegalArgumentException("page writer needs a positive rate");
+        if (pageWriter != null)
+            pageWriter.shutdown();
+        pageWriter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "simpledb-page-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        pageWriter.scheduleWithFixedDelay(() -> {
+            try {
+                writeCommittedPages(pagesPerRound);
+            } catch (RuntimeException e) {
+                e.printStackTrace();                                // keep the writer alive
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        forceOnCommit = false;
+    }
+
+    /**
+     * Stops the background page writer, writes the committed pages it left
+     * behind and switches commits back to FORCE.
+     */
+    public synchronized void stopPageWriter() {
+        if (pageWriter == null)
+            return;
+        forceOnCommit = true;
+        pageWriter.shutdown();                                      // cancels the next rounds, never interrupts a write
+        pageWriter = null;
+        writeCommittedPages(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Writes up to maxPages committed pages that are not on disk yet, in
+     * PageId order so the writes of a table are mostly sequential.
+     * Waits for a running checkpoint.
+     *
+     * @return the number of pages written
+     */
+    public int writeCommittedPages(int maxPages) {
+        List<PageId> candidates = new ArrayList<>();
+        for (Partition partition : partitions)
+            candidates.addAll(partition.unwritten);
+        candidates.sort(PAGE_ORDER);
+        int written = 0;
+        Lock commitLock = Database.getLogFile().getCommitLock();
+        commitLock.lock();
+        try {
+            for (PageId pid : candidates) {
+                if (written >= maxPages)
+                    break;
+                Partition partition = partitionOf(pid);
+                partition.latch.lock();
+                try {
+                    Page page = partition.pages.get(pid);
+                    if (page != null && partition.unwritten.contains(pid) && writeBack(partition, page))
+                        written++;
+                } finally {
+                    partition.latch.unlock();
+                }
+            }
+        } finally {
+            commitLock.unlock();
+        }
+        return written;
+    }
+
+    /**
+     * Writes a committed page that is not on disk yet. The page is read
+     * locked for the write, so no transaction changes it halfway.
+     * The caller holds the latch of the page's partition.
+     *
+     * @return false if a transaction holds the page exclusively
+     */
+    private boolean writeBack(Partition partition, Page page) {
+        PageId pid = page.getId();
+        try {
+            if (!lockManager.acquireLock(pageWriterTid, pid, PageLock.LockType.SAHRE, 0))
+                return false;
+        } catch (InterruptedException | TransactionAbortedException e) {
+            return false;
+        }
+        try {
+            if (page.isDirty() != null)                             // dirtied again, it will be logged at its commit
+                return false;
+            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
+            partition.unwritten.remove(pid);
+            dirtyPageTable.remove(pid);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            lockManager.releaseLock(pageWriterTid, pid);
+        }
+    }
+
+    /**
+     * STEAL: writes a page dirtied by a running transaction so that it can
+     * be evicted. The update is logged and the log forced before the page
+     * is written, so an abort can undo it from the log.
+     * The caller holds the latch of the page's partition.
+     *
+     * @return false if the page could not be written
+     */
+    private boolean stealPage(Page page) {
+        TransactionId dirtier = page.isDirty();
+        PageId pid = page.getId();
+        try {
+            Database.getLogFile().logWrite(dirtier, page.getBeforeImage(), page);
+            Database.getLogFile().force();
+            versions.preserve(dirtier, page.getBeforeImage());      // snapshots must not read it from disk
+            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        stealVictims.add(dirtier);
+        return true;
+    }
+
+    /**
+     * @return what evictions may steal: nothing under NO STEAL, else the
+     * dirty pages of transactions the log can roll back
+     */
+    private Predicate<Page> stealablePages() {
+        if (!steal)
+            return page -> false;
+        Set<Long> live = Database.getLogFile().getLiveTransactions();   // not under a replacer's monitor
+        return page -> page.isDirty() != null && live.contains(page.isDirty().getId())
+                && !tupleUndo.hasWriters(page.getId());             // their tuples are undone in the pool, not from the log
+    }
+
+    /**
+     * Caches a page that was dirtied by an insert or delete, replacing any
+     * older version of it.
+     */
+    private void cachePage(Page page) throws DbException {
+        PageId pid = page.getId();
+        Partition partition = partitionOf(pid);
+        partition.latch.lock();
+        try {
+            if (!partition.pages.containsKey(pid))
+                reserveFrame(partition);
+            partition.put(page);
+        } finally {
+            partition.latch.unlock();
+        }
+        partition.evictStrategy.recordAccess(pid);
+    }
+
+    /**
+     * Takes one page of the shared budget for a page about to be cached in
+     * home, evicting if the pool is full. Victims come from home first; other
+     * partitions are only tried without blocking, so two partitions that
+     * evict from each other cannot deadlock.
+     * The caller holds the latch of home.
+     *
+     * @throws DbException if every cached page is dirty (NO STEAL) or pinned
+     */
+    private void reserveFrame(Partition home) throws DbException {
+        while (true) {
+            int resident = numResident.get();
+            if (resident < numPages) {
+                if (numResident.compareAndSet(resident, resident + 1))
+                    return;
+                continue;
             }
+            if (!home.evictOne() && !evictFromOtherPartition(home))
+                throw new DbException("all pages in bufferpool are dirty or pinned");
         }
     }
 
+    private boolean evictFromOtherPartition(Partition home) {
+        for (Partition partition : partitions) {
+            if (partition == home || !partition.latch.tryLock())
+                continue;
+            try {
+                if (partition.evictOne())
+                    return true;
+            } finally {
+                partition.latch.unlock();
+            }
+        }
+        return false;
+    }
+
     /**
-     * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
-     * NO STEAL Strategy
+     * A slice of the buffer pool: the pages whose PageId hashes to it, the
+     * latch that serializes misses and flushes on them and their replacer.
      */
-    private synchronized void evictPage() throws DbException {
-        PageId evictPageId = evictStrategy.getEvictPageId(pages);
-        if (evictPageId == null) throw new DbException("There are no satisfying pages to evict in the bp");
-        this.flushPage(evictPageId);
-        discardPage(evictPageId);
+    private final class Partition {
+        private final ConcurrentHashMap<PageId, Page> pages;          // pages stored in this partition
+        private final ConcurrentHashMap<PageId, Integer> pinCounts;   // pinned pages of this partition
+        private final ConcurrentHashMap<PageId, Integer> frames;      // off-heap frame of each page that has one
+        private final Set<PageId> unwritten;                          // committed pages the page writer has not written yet
+        private final ReentrantLock latch;                            // serializes loads, flushes and evictions
+        private final EvictStrategy evictStrategy;                    // evict strategy
+
+        Partition(EvictStrategy evictStrategy) {
+            this.pages = new ConcurrentHashMap<>();
+            this.pinCounts = new ConcurrentHashMap<>();
+            this.frames = new ConcurrentHashMap<>();
+            this.unwritten = ConcurrentHashMap.newKeySet();
+            this.latch = new ReentrantLock();
+            this.evictStrategy = evictStrategy;
+        }
+
+        /**
+         * Caches a page, replacing any other version of it. In off-heap mode a
+         * HeapPage on the heap is moved into a free frame.
+         * The caller holds the latch.
+         */
+        void put(Page page) {
+            PageId pid = page.getId();
+            Page old = pages.put(pid, page);
+            if (old == page)
+                return;
+            releaseFrame(pid, old);
+            if (arena != null && page instanceof HeapPage && !((HeapPage) page).isOffHeap()) {
+                int frame = arena.acquire();
+                if (frame >= 0) {
+                    ((HeapPage) page).moveTo(arena.frame(frame));
+                    frames.put(pid, frame);
+                }
+            }
+        }
+
+        /**
+         * Copies a page that leaves the pool back to the heap and frees its frame.
+         */
+        private void releaseFrame(PageId pid, Page page) {
+            if (page == null)
+                return;
+            Integer frame = frames.remove(pid);
+            if (frame != null) {
+                ((HeapPage) page).detach();
+                arena.release(frame);
+            }
+        }
+
+        void remove(PageId pid) {
+            Page page = pages.remove(pid);
+            if (page != null)
+                numResident.decrementAndGet();
+            releaseFrame(pid, page);
+            pinCounts.remove(pid);
+            dirtyPageTable.remove(pid);
+            unwritten.remove(pid);
+            evictStrategy.remove(pid);
+        }
+
+        /**
+         * Discards a page from this partition.
+         * The evict strategy hands out clean, unpinned pages, and under STEAL a dirty page of a live
+         * transaction when no clean page is left. A stolen page, or a committed page the page writer has
+         * not reached yet, is written back first.
+         * The caller holds the latch.
+         *
+         * @return false if every page of this partition is dirty or pinned
+         */
+        boolean evictOne() {
+            if (pages.isEmpty())
+                return false;
+            try {
+                PageId victim = evictStrategy.getEvictPageId(pages, pinCounts.keySet(), stealablePages());
+                Page page = pages.get(victim);
+                if (page.isDirty() != null) {
+                    if (!stealPage(page))
+                        return false;
+                } else if (unwritten.contains(victim) && !writeBack(this, page))
+                    return false;
+                remove(victim);
+                return true;
+            } catch (DbException e) {
+                return false;
+            }
+        }
     }
 }
 
@@ -0,0 +1,70 @@
+package simpledb.storage;
+
+import java.util.ArrayDeque;
+
+/**
+ * BufferRing is the bulk-read access strategy of the BufferPool. A large
+ * sequential scan reads its pages through a small private ring of frames:
+ * once the ring is full, the page that falls out of it is dropped from the
+ * pool to make room for the next one, instead of evicting pages other
+ * transactions are using. Pages read through a ring never count as recently
+ * used for the shared replacer.
+ *
+ * @see BufferPool#getPage(simpledb.transaction.TransactionId, PageId, simpledb.common.Permissions, BufferRing)
+ */
+public class BufferRing {
+    /**
+     * Default number of frames in a ring.
+     */
+    public static final int DEFAULT_SIZE = 16;
+
+    private final int size;
+    private final ArrayDeque<PageId> ring;                            // pages this ring brought into the pool, oldest first
+
+    /**
+     * Creates a ring of {@link #DEFAULT_SIZE} frames, never more than a
+     * quarter of the given buffer pool.
+     */
+    public BufferRing(BufferPool bufferPool) {
+        this(Math.max(1, Math.min(DEFAULT_SIZE, bufferPool.getNumPages() / 4)));
+    }
+
+    /**
+     * Creates a ring of the given number of frames.
+     *
+     * @param size the number of frames this ring may occupy
+     */
+    public BufferRing(int size) {
+        if (size <= 0)
+            throw new IllegalArgumentException("ring must hold at least one page");
+        this.size = size;
+        this.ring = new ArrayDeque<>(size);
+    }
+
+    /**
+     * Returns true if a scan over a table of the given number of pages should
+     * use a ring, i.e. if it would otherwise flood the buffer pool.
+     */
+    public static boolean isBulkRead(int tablePages, BufferPool bufferPool) {
+        return tablePages > bufferPool.getNumPages() / 4;
+    }
+
+    /**
+     * Records that the ring is bringing pid into the pool.
+     *
+     * @return the page that falls out of the ring and whose frame should be
+     * recycled, or null if the ring still has room
+     */
+    synchronized PageId next(PageId pid) {
+        PageId recycled = ring.size() >= size ? ring.pollFirst() : null;
+        ring.addLast(pid);
+        return recycled;
+    }
+
+    /**
+     * @return the number of frames this ring may occupy
+     */
+    public int getSize() {
+        return size;
+    }
+}
@@ -0,0 +1,259 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+
+/**
+ * ColumnFile is a DbFile for scan-heavy tables that stores its pages in the
+ * PAX layout of {@link ColumnPage}: each page keeps every column in a
+ * minipage of its own. A scan that needs only some columns asks for them
+ * with {@link #iterator(TransactionId, int[])} and decodes nothing else, and
+ * an aggregate over an int column reads it with {@link #scanInts} as
+ * primitive arrays, without building tuples.
+ * <p>
+ * Tuples are inserted into the first page with a free slot, like the
+ * HeapFile did before it had a free space map; a ColumnFile is meant to be
+ * loaded once and then mostly read.
+ *
+ * @see ColumnPage
+ */
+public class ColumnFile implements DbFile {
+    private final File file;
+    private final TupleDesc tupleDesc;
+    private final PageChannel channel;                                              // all page I/O goes through it
+    private final Object appendLock = new Object();                                 // one appender at a time
+
+    /**
+     * Constructs a column file backed by the specified file.
+     *
+     * @param f  the file that stores the on-disk backing store for this file
+     * @param td the schema of the table
+     */
+    public ColumnFile(File f, TupleDesc td) {
+        this.file = f;
+        this.tupleDesc = td;
+        this.channel = new PageChannel(f);
+    }
+
+    /**
+     * Returns the File backing this ColumnFile on disk.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    // see DbFile.java for javadocs
+    public int getId() {
+        return file.getAbsoluteFile().hashCode();
+    }
+
+    // see DbFile.java for javadocs
+    public TupleDesc getTupleDesc() {
+        return tupleDesc;
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        int pageSize = BufferPool.getPageSize();
+        byte[] data = new byte[pageSize];
+        try {
+            if (channel.read(data, (long) pid.getPageNumber() * pageSize) <= 0)
+                throw new IllegalArgumentException("page " + pid.getPageNumber() + " does not exist in table " + getId());
+        } catch (IOException e) {
+            throw new IllegalArgumentException("cannot read page " + pid.getPageNumber(), e);
+        }
+        return new ColumnPage(new HeapPageId(pid.getTableId(), pid.getPageNumber()), data);
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        channel.write(page.getPageData(), (long) page.getId().getPageNumber() * BufferPool.getPageSize());
+    }
+
+    // see DbFile.java for javadocs
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Returns the number of pages in this ColumnFile.
+     */
+    public int numPages() {
+        return (int) ((file.length() + BufferPool.getPageSize() - 1) / BufferPool.getPageSize());
+    }
+
+    // see DbFile.java for javadocs
+    public List<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        BufferPool bufferPool = Database.getBufferPool();
+        List<Page> resultList = new ArrayList<>();
+        for (int i = 0; i < numPages(); ++i) {                                      // look for room under a read lock only
+            HeapPageId pid = new HeapPageId(getId(), i);
+            boolean locked = bufferPool.holdsLock(tid, pid);
+            ColumnPage page = (ColumnPage) bufferPool.getPage(tid, pid, Permissions.READ_ONLY);
+            if (page.getNumEmptySlots() > 0 && insertInto(tid, pid, t, resultList))
+                return resultList;
+            if (!locked)
+                bufferPool.unsafeReleasePage(tid, pid);                             // only looked at its header
+        }
+        // no room: append an empty page to the file, so that an abort leaves no tuple behind on disk
+        HeapPageId pid;
+        synchronized (appendLock) {
+            pid = new HeapPageId(getId(), numPages());
+            writePage(new ColumnPage(pid, ColumnPage.createEmptyPageData()));
+        }
+        if (!insertInto(tid, pid, t, resultList))                                   // filled by others meanwhile
+            return insertTuple(tid, t);
+        return resultList;
+    }
+
+    /**
+     * Write locks the page and inserts the tuple if the page still has room.
+     *
+     * @return false if the page is full
+     */
+    private boolean insertInto(TransactionId tid, HeapPageId pid, Tuple t, List<Page> resultList)
+            throws DbException, TransactionAbortedException {
+        ColumnPage page = (ColumnPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        if (page.getNumEmptySlots() == 0)
+            return false;
+        page.insertTuple(t);
+        resultList.add(page);
+        return true;
+    }
+
+    // see DbFile.java for javadocs
+    public List<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException, TransactionAbortedException {
+        if (t.getRecordId() == null || t.getRecordId().getPageId().getTableId() != getId())
+            throw new DbException("the tuple cannot be deleted or is not a member of the file");
+        ColumnPage page = (ColumnPage) Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(), Permissions.READ_WRITE);
+        page.deleteTuple(t);
+        List<Page> resultList = new ArrayList<>();
+        resultList.add(page);
+        return resultList;
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid) {
+        int[] fields = new int[tupleDesc.numFields()];
+        for (int j = 0; j < fields.length; j++)
+            fields[j] = j;
+        return iterator(tid, fields);
+    }
+
+    /**
+     * Returns an iterator over the tuples of the file that reads only the
+     * given columns. The tuples have just those fields, in that order, as
+     * described by {@link #projectTupleDesc}.
+     *
+     * @param tid    the transaction reading the file
+     * @param fields indexes of the fields to read
+     */
+    public DbFileIterator iterator(TransactionId tid, int[] fields) {
+        return new ColumnFileIterator(tid, this, fields);
+    }
+
+    /**
+     * Hands the values of an int column to the consumer a page at a time,
+     * as read by {@link ColumnPage#getInts}.
+     *
+     * @param tid      the transaction reading the file
+     * @param field    the index of an INT_TYPE field
+     * @param consumer receives the values of the used slots of each page
+     */
+    public void scanInts(TransactionId tid, int field, Consumer<int[]> consumer)
+            throws DbException, TransactionAbortedException {
+        if (tupleDesc.getFieldType(field) != Type.INT_TYPE)
+            throw new IllegalArgumentException("field " + field + " is not an int column");
+        for (int i = 0; i < numPages(); ++i) {
+            HeapPageId pid = new HeapPageId(getId(), i);
+            consumer.accept(((ColumnPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY)).getInts(field));
+        }
+    }
+
+    /**
+     * @return the TupleDesc of the tuples {@link #iterator(TransactionId, int[])} returns for these fields
+     */
+    public TupleDesc projectTupleDesc(int[] fields) {
+        Type[] types = new Type[fields.length];
+        String[] names = new String[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            types[i] = tupleDesc.getFieldType(fields[i]);
+            names[i] = tupleDesc.getFieldName(fields[i]);
+        }
+        return new TupleDesc(types, names);
+    }
+
+    /**
+     * Iterates over the pages of a ColumnFile, decoding the requested
+     * columns of one page at a time.
+     */
+    public static final class ColumnFileIterator implements DbFileIterator {
+        private final TransactionId tid;
+        private final ColumnFile columnFile;
+        private final int[] fields;
+        private final TupleDesc projected;
+        private int pageNo;                         // the page curTupleIter walks
+        private Iterator<Tuple> curTupleIter;       // null while closed or past the last page
+
+        public ColumnFileIterator(TransactionId tid, ColumnFile columnFile, int[] fields) {
+            this.tid = tid;
+            this.columnFile = columnFile;
+            this.fields = fields.clone();
+            this.projected = columnFile.projectTupleDesc(fields);
+        }
+
+        @Override
+        public void open() throws DbException, TransactionAbortedException {
+            pageNo = 0;
+            curTupleIter = columnFile.numPages() > 0 ? readPage(pageNo) : null;
+        }
+
+        private Iterator<Tuple> readPage(int pageNo) throws DbException, TransactionAbortedException {
+            HeapPageId pid = new HeapPageId(columnFile.getId(), pageNo);
+            ColumnPage page = (ColumnPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+            return page.iterator(fields, projected);
+        }
+
+        @Override
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            while (curTupleIter != null && !curTupleIter.hasNext()) {
+                if (pageNo < columnFile.numPages() - 1)
+                    curTupleIter = readPage(++pageNo);
+                else
+                    curTupleIter = null;
+            }
+            return curTupleIter != null;
+        }
+
+        @Override
+        public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return curTupleIter.next();
+        }
+
+        @Override
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        @Override
+        public void close() {
+            curTupleIter = null;
+        }
+    }
+}
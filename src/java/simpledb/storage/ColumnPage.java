@@ -0,0 +1,235 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.transaction.TransactionId;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * ColumnPage is a page of a {@link ColumnFile}, laid out PAX style: the
+ * page holds as many tuples as a HeapPage of the same table, but each
+ * column is stored contiguously in a minipage of its own.
+ * <p>
+ * The page starts with the same header as a HeapPage, one bit per slot
+ * telling whether it is used. Then follows one minipage per field, in
+ * field order, holding the value of that field for every slot. Reading
+ * some of the columns therefore decodes only their minipages, and an int
+ * column can be handed out as a primitive array with {@link #getInts}.
+ *
+ * @see ColumnFile
+ */
+public class ColumnPage implements Page {
+
+    private final HeapPageId pid;
+    private final TupleDesc td;
+    private final int numSlots;
+    private final int headerSize;
+    private final int[] columnOffsets;                  // where the minipage of each field starts
+    private final byte[] data;                          // guarded by this
+    private final ByteBuffer buf;                       // view of data
+
+    private byte[] oldData;                             // before image, null while the page is unchanged
+    private volatile TransactionId dirtyTid;
+
+    /**
+     * Create a ColumnPage from the bytes of a page read from disk.
+     *
+     * @param id   the id of this page
+     * @param data the page bytes; the page works on its own copy
+     */
+    public ColumnPage(HeapPageId id, byte[] data) {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.numSlots = (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+        this.headerSize = (numSlots + 7) / 8;
+        this.columnOffsets = new int[td.numFields()];
+        int offset = headerSize;
+        for (int j = 0; j < columnOffsets.length; j++) {
+            columnOffsets[j] = offset;
+            offset += numSlots * td.getFieldType(j).getLen();
+        }
+        this.data = Arrays.copyOf(data, BufferPool.getPageSize());
+        this.buf = ByteBuffer.wrap(this.data);
+    }
+
+    /**
+     * @return an empty page, to add to a file
+     */
+    public static byte[] createEmptyPageData() {
+        return new byte[BufferPool.getPageSize()];
+    }
+
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    private int valueOffset(int slot, int field) {
+        return columnOffsets[field] + slot * td.getFieldType(field).getLen();
+    }
+
+    public synchronized boolean isSlotUsed(int slot) {
+        return (data[slot / 8] & (1 << (slot % 8))) != 0;
+    }
+
+    private void markSlotUsed(int slot, boolean used) {
+        if (used)
+            data[slot / 8] |= (byte) (1 << (slot % 8));
+        else
+            data[slot / 8] &= (byte) ~(1 << (slot % 8));
+    }
+
+    public synchronized int getNumEmptySlots() {
+        int used = 0;
+        for (int i = 0; i < headerSize; i++)
+            used += Integer.bitCount(data[i] & 0xff);
+        return numSlots - used;
+    }
+
+    /**
+     * Decodes one field of a used slot.
+     */
+    public synchronized Field getField(int slot, int field) {
+        ByteBuffer value = buf.duplicate();
+        value.position(valueOffset(slot, field));
+        try {
+            return td.getFieldType(field).parse(value);
+        } catch (java.text.ParseException e) {
+            e.printStackTrace();
+            throw new NoSuchElementException("parsing error!");
+        }
+    }
+
+    /**
+     * Returns the values of an int column for the used slots, in slot
+     * order, straight from its minipage.
+     *
+     * @param field the index of an INT_TYPE field
+     */
+    public synchronized int[] getInts(int field) {
+        if (td.getFieldType(field) != Type.INT_TYPE)
+            throw new IllegalArgumentException("field " + field + " is not an int column");
+        int[] values = new int[numSlots - getNumEmptySlots()];
+        int n = 0;
+        for (int slot = 0; slot < numSlots; slot++) {
+            if (isSlotUsed(slot))
+                values[n++] = buf.getInt(valueOffset(slot, field));
+        }
+        return values;
+    }
+
+    public synchronized void insertTuple(Tuple t) throws DbException {
+        if (!t.getTupleDesc().equals(td))
+            throw new DbException("tupledesc is mismatch");
+        for (int slot = 0; slot < numSlots; slot++) {
+            if (!isSlotUsed(slot)) {
+                captureBeforeImage();
+                for (int j = 0; j < td.numFields(); j++)
+                    writeField(slot, j, t.getField(j));
+                markSlotUsed(slot, true);
+                t.setRecordId(new RecordId(pid, slot));
+                return;
+            }
+        }
+        throw new DbException("the page is full (no empty slots)");
+    }
+
+    private void writeField(int slot, int field, Field value) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getFieldType(field).getLen());
+        try {
+            value.serialize(new DataOutputStream(baos));
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
+        }
+        byte[] bytes = baos.toByteArray();
+        System.arraycopy(bytes, 0, data, valueOffset(slot, field), bytes.length);
+    }
+
+    public synchronized void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !rid.getPageId().equals(pid) || rid.getTupleNumber() < 0
+                || rid.getTupleNumber() >= numSlots || !isSlotUsed(rid.getTupleNumber()))
+            throw new DbException("this tuple is not on this page or tuple slot is already empty");
+        captureBeforeImage();
+        int slot = rid.getTupleNumber();
+        markSlotUsed(slot, false);
+        for (int j = 0; j < td.numFields(); j++)
+            Arrays.fill(data, valueOffset(slot, j), valueOffset(slot, j) + td.getFieldType(j).getLen(), (byte) 0);
+    }
+
+    /**
+     * @return an iterator over all tuples on this page
+     */
+    public Iterator<Tuple> iterator() {
+        int[] fields = new int[td.numFields()];
+        for (int j = 0; j < fields.length; j++)
+            fields[j] = j;
+        return iterator(fields, td);
+    }
+
+    /**
+     * Returns an iterator over the tuples on this page that decodes only the
+     * given fields. The tuples have just those fields, in that order.
+     *
+     * @param fields    indexes of the fields to read
+     * @param projected the TupleDesc of the returned tuples
+     */
+    public Iterator<Tuple> iterator(int[] fields, TupleDesc projected) {
+        List<Tuple> tuples = new ArrayList<>();
+        synchronized (this) {
+            for (int slot = 0; slot < numSlots; slot++) {
+                if (isSlotUsed(slot)) {
+                    Tuple t = new Tuple(projected);
+                    t.setRecordId(new RecordId(pid, slot));
+                    tuples.add(t);
+                }
+            }
+            for (int i = 0; i < fields.length; i++) {                   // one minipage after the other
+                for (Tuple t : tuples)
+                    t.setField(i, getField(t.getRecordId().getTupleNumber(), fields[i]));
+            }
+        }
+        return Collections.unmodifiableList(tuples).iterator();
+    }
+
+    public synchronized byte[] getPageData() {
+        return data.clone();
+    }
+
+    public synchronized ColumnPage getBeforeImage() {
+        return new ColumnPage(pid, oldData != null ? oldData : data);
+    }
+
+    public synchronized void setBeforeImage() {
+        oldData = null;
+    }
+
+    private void captureBeforeImage() {
+        if (oldData == null)
+            oldData = data.clone();
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        if (dirty) {
+            synchronized (this) {
+                captureBeforeImage();
+            }
+        }
+        dirtyTid = dirty ? tid : null;
+    }
+
+    public TransactionId isDirty() {
+        return dirtyTid;
+    }
+}
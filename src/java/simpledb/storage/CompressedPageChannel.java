@@ -0,0 +1,402 @@
+package simpledb.storage;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * CompressedPageChannel is a PageChannel that compresses what is written
+ * through it with a {@link PageCodec}. Callers keep addressing the file by
+ * its logical, uncompressed positions; {@link #size()} and {@link #length()}
+ * report the logical size too.
+ * <p>
+ * On disk the file starts with a header of {@link #MAGIC} and the ordinal of
+ * its codec, which {@link #codecOf} reads to tell a
+ * compressed file from a plain one. A new file gets the header on its first
+ * use. The rest of the file is a log of blocks, each the compressed image
+ * of one write of at most a page. A block starts with a header: its logical
+ * position and length, the length stored, the codec that encoded it (or
+ * none, when compression would not have saved anything) and a CRC32 of the
+ * stored bytes. A page written again is appended as a new block and the
+ * latest block for a position wins, so pages may change size freely. The
+ * index of the blocks is rebuilt by scanning the headers when the channel
+ * is first used; a block torn off by a crash at the end of the file is
+ * ignored. Once more than half of the file is overwritten blocks it is
+ * rewritten with just the live ones, see {@link #compact()}.
+ * <p>
+ * Writes must not partly overlap an earlier block, which holds for DbFiles
+ * since they always write pages at the same offsets. A compressed file
+ * cannot be memory-mapped.
+ *
+ * @Threadsafe
+ */
+public class CompressedPageChannel extends PageChannel {
+    /**
+     * The first bytes of every compressed file, "SDBCPAGE".
+     */
+    public static final long MAGIC = 0x5344424350414745L;
+
+    private static final int FILE_HEADER_SIZE = 8 + 1;
+    private static final int HEADER_SIZE = 8 + 4 + 4 + 1 + 4;
+    private static final byte STORED = -1;                                  // encoding of a block kept uncompressed
+    private static final long COMPACT_MIN_BYTES = 1 << 20;                 // smaller files are never compacted
+
+    private final File file;
+    private final PageCodec codec;
+    private final PageChannel raw;                                          // I/O on the physical file
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();       // write lock to change the file or the index
+
+    private volatile boolean loaded;                                        // false until the index is built
+    private TreeMap<Long, Block> blocks = new TreeMap<>();                 // logical position -> latest block there
+    private long physicalEnd;                                               // where the next block goes
+    private volatile long logicalSize;
+    private long liveBytes;                                                 // bytes of the blocks in the index
+
+    /**
+     * A block of the file: the stored image of length logical bytes at
+     * position, kept at offset in the physical file.
+     */
+    private static final class Block {
+        final long offset;                  // of the stored bytes, after the header
+        final long position;
+        final int length;
+        final int stored;
+        final byte encoding;                // STORED or the ordinal of a PageCodec
+        final int crc;
+
+        Block(long offset, long position, int length, int stored, byte encoding, int crc) {
+            this.offset = offset;
+            this.position = position;
+            this.length = length;
+            this.stored = stored;
+            this.encoding = encoding;
+            this.crc = crc;
+        }
+
+        long recordSize() {
+            return HEADER_SIZE + stored;
+        }
+    }
+
+    /**
+     * @param file  the compressed file, which must exist
+     * @param codec the codec new blocks are encoded with
+     */
+    public CompressedPageChannel(File file, PageCodec codec) {
+        super(file);
+        this.file = file;
+        this.codec = codec;
+        this.raw = new PageChannel(file);
+    }
+
+    /**
+     * Reads the header of a file to find out whether it is compressed.
+     *
+     * @return the codec in the header of the file, or null if it is not a compressed file
+     * @throws UncheckedIOException if the file cannot be read
+     */
+    public static PageCodec codecOf(File file) {
+        if (file.length() < FILE_HEADER_SIZE)
+            return null;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readLong() != MAGIC)
+                return null;
+            int ordinal = in.readByte();
+            return ordinal >= 0 && ordinal < PageCodec.values().length ? PageCodec.values()[ordinal] : null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private byte[] fileHeader() {
+        return ByteBuffer.allocate(FILE_HEADER_SIZE).putLong(MAGIC).put((byte) codec.ordinal()).array();
+    }
+
+    /**
+     * @return the codec new blocks are encoded with
+     */
+    public PageCodec getCodec() {
+        return codec;
+    }
+
+    @Override
+    public int read(byte[] buffer, long position) throws IOException {
+        return read(ByteBuffer.wrap(buffer), position);
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+        ensureLoaded();
+        lock.readLock().lock();
+        try {
+            if (dst.hasRemaining() && position >= logicalSize)
+                return -1;
+            int total = 0;
+            long pos = position;
+            while (dst.hasRemaining() && pos < logicalSize) {
+                Map.Entry<Long, Block> entry = blocks.floorEntry(pos);
+                int n;
+                if (entry != null && pos < entry.getKey() + entry.getValue().length) {
+                    byte[] data = decode(entry.getValue());
+                    int from = (int) (pos - entry.getKey());
+                    n = Math.min(dst.remaining(), data.length - from);
+                    dst.put(data, from, n);
+                } else {                                                    // never written, reads as zeros
+                    Long next = blocks.higherKey(pos);
+                    n = (int) Math.min(dst.remaining(), (next != null ? next : logicalSize) - pos);
+                    for (int i = 0; i < n; i++)
+                        dst.put((byte) 0);
+                }
+                pos += n;
+                total += n;
+            }
+            return total;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private byte[] decode(Block block) throws IOException {
+        byte[] stored = new byte[block.stored];
+        if (raw.read(stored, block.offset) != stored.length || crc(stored) != block.crc)
+            throw new IOException("corrupt block at " + block.offset + " of " + file);
+        if (block.encoding == STORED)
+            return stored;
+        return PageCodec.values()[block.encoding].decompress(stored, block.length);
+    }
+
+    private static int crc(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Writes data at the logical position, as one block per page of it.
+     */
+    @Override
+    public void write(byte[] data, long position) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        int count = Math.max(1, (data.length + pageSize - 1) / pageSize);
+        byte[][] records = new byte[count][];
+        int total = 0;
+        for (int i = 0; i < count; i++) {                                   // compress before taking the lock
+            int from = i * pageSize;
+            records[i] = encode(Arrays.copyOfRange(data, from, Math.min(data.length, from + pageSize)), position + from);
+            total += records[i].length;
+        }
+        ByteBuffer all = ByteBuffer.allocate(total);
+        for (byte[] record : records)
+            all.put(record);
+
+        ensureLoaded();
+        lock.writeLock().lock();
+        try {
+            checkOverlap(position, data.length);
+            long offset = physicalEnd;
+            raw.write(all.array(), offset);
+            for (byte[] record : records) {
+                index(parseHeader(ByteBuffer.wrap(record), offset));
+                offset += record.length;
+            }
+            physicalEnd = offset;
+            if (physicalEnd >= COMPACT_MIN_BYTES && physicalEnd - liveBytes > liveBytes)
+                compactLocked();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private byte[] encode(byte[] data, long position) {
+        byte[] compressed = codec.compress(data);
+        byte encoding = (byte) codec.ordinal();
+        if (compressed.length >= data.length) {                             // not worth it
+            compressed = data;
+            encoding = STORED;
+        }
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + compressed.length);
+        record.putLong(position);
+        record.putInt(data.length);
+        record.putInt(compressed.length);
+        record.put(encoding);
+        record.putInt(crc(compressed));
+        record.put(compressed);
+        return record.array();
+    }
+
+    private static Block parseHeader(ByteBuffer header, long offset) {
+        long position = header.getLong();
+        int length = header.getInt();
+        int stored = header.getInt();
+        byte encoding = header.get();
+        int crc = header.getInt();
+        return new Block(offset + HEADER_SIZE, position, length, stored, encoding, crc);
+    }
+
+    private void checkOverlap(long position, int length) throws IOException {
+        Map.Entry<Long, Block> before = blocks.floorEntry(position);
+        if (before != null && before.getKey() != position && position < before.getKey() + before.getValue().length)
+            throw new IOException("write at " + position + " overlaps the block at " + before.getKey());
+        for (Block block : blocks.subMap(position, true, position + length, false).values()) {
+            long end = block.position + block.length;
+            if (end > position + length || (block.position - position) % BufferPool.getPageSize() != 0)
+                throw new IOException("write at " + position + " overlaps the block at " + block.position);
+        }
+    }
+
+    private void index(Block block) {
+        Block old = blocks.put(block.position, block);
+        if (old != null)
+            liveBytes -= old.recordSize();
+        liveBytes += block.recordSize();
+        logicalSize = Math.max(logicalSize, block.position + block.length);
+    }
+
+    private void ensureLoaded() throws IOException {
+        if (loaded)
+            return;
+        lock.writeLock().lock();
+        try {
+            if (!loaded) {
+                load();
+                loaded = true;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Rebuilds the index from the block headers, stopping at a torn block.
+     * Gives an empty file its header.
+     */
+    private void load() throws IOException {
+        long size = raw.size();
+        if (size == 0) {
+            raw.write(fileHeader(), 0);
+            size = FILE_HEADER_SIZE;
+        }
+        byte[] fileHeader = new byte[FILE_HEADER_SIZE];
+        if (raw.read(fileHeader, 0) != FILE_HEADER_SIZE || ByteBuffer.wrap(fileHeader).getLong() != MAGIC)
+            throw new IOException(file + " is not a compressed page file");
+        long offset = FILE_HEADER_SIZE;
+        byte[] header = new byte[HEADER_SIZE];
+        while (offset + HEADER_SIZE <= size && raw.read(header, offset) == HEADER_SIZE) {
+            Block block = parseHeader(ByteBuffer.wrap(header), offset);
+            if (block.length < 0 || block.stored < 0 || block.offset + block.stored > size)
+                break;
+            if (block.offset + block.stored == size) {                     // the last block may be half written
+                byte[] stored = new byte[block.stored];
+                if (raw.read(stored, block.offset) != stored.length || crc(stored) != block.crc)
+                    break;
+            }
+            index(block);
+            offset = block.offset + block.stored;
+        }
+        physicalEnd = offset;                                               // a torn tail gets overwritten
+    }
+
+    /**
+     * Rewrites the file with only the latest block of every position,
+     * reclaiming the space of overwritten blocks. The new file replaces the
+     * old one atomically.
+     */
+    public void compact() throws IOException {
+        ensureLoaded();
+        lock.writeLock().lock();
+        try {
+            compactLocked();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void compactLocked() throws IOException {
+        File tmp = new File(file.getPath() + ".compact");
+        TreeMap<Long, Block> moved = new TreeMap<>();
+        long offset = FILE_HEADER_SIZE;
+        try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.wrap(fileHeader());
+            while (header.hasRemaining())
+                out.write(header, header.position());
+            for (Block block : blocks.values()) {
+                byte[] record = new byte[(int) block.recordSize()];
+                if (raw.read(record, block.offset - HEADER_SIZE) != record.length)
+                    throw new IOException("truncated block at " + block.offset + " of " + file);
+                ByteBuffer src = ByteBuffer.wrap(record);
+                while (src.hasRemaining())
+                    out.write(src, offset + src.position());
+                moved.put(block.position, new Block(offset + HEADER_SIZE, block.position, block.length,
+                        block.stored, block.encoding, block.crc));
+                offset += record.length;
+            }
+            out.force(true);                                                // on disk before it replaces the file
+        }
+        raw.close();
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        blocks = moved;
+        physicalEnd = offset;
+        liveBytes = offset - FILE_HEADER_SIZE;
+    }
+
+    /**
+     * @return the size of the file on disk, compressed, in bytes
+     */
+    public long physicalSize() throws IOException {
+        ensureLoaded();
+        lock.readLock().lock();
+        try {
+            return physicalEnd;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public MappedByteBuffer map(long position, long size) throws IOException {
+        throw new IOException("a compressed file cannot be memory-mapped");
+    }
+
+    /**
+     * @return the logical size of the file in bytes
+     */
+    @Override
+    public long size() throws IOException {
+        ensureLoaded();
+        return logicalSize;
+    }
+
+    /**
+     * @return the logical size of the file in bytes, 0 if it does not exist
+     */
+    @Override
+    public long length() {
+        if (!file.exists())
+            return 0;
+        try {
+            return size();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        raw.close();
+    }
+}
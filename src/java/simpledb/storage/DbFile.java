@@ -7,6 +7,8 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -24,6 +26,20 @@ public interface DbFile {
      */
     Page readPage(PageId id);
 
+    /**
+     * Read the specified pages from disk. Implementations should coalesce
+     * pages with adjacent page numbers into a single large read.
+     *
+     * @return the pages, in the order of ids
+     * @throws IllegalArgumentException if one of the pages does not exist in this file.
+     */
+    default List<Page> readPages(List<PageId> ids) {
+        List<Page> pages = new ArrayList<>(ids.size());
+        for (PageId id : ids)
+            pages.add(readPage(id));
+        return pages;
+    }
+
     /**
      * Push the specified page to disk.
      *
@@ -47,6 +63,29 @@ public interface DbFile {
     List<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException;
 
+    /**
+     * Inserts a batch of tuples to the file on behalf of transaction, like
+     * {@link #insertTuple} does for each of them. Implementations may fill
+     * whole new pages in memory and append them to the file directly, with
+     * one large write per run of pages; such pages are not returned.
+     *
+     * @param tid    The transaction performing the update
+     * @param tuples The tuples to add, each updated to reflect where it is stored.
+     * @return An ArrayList contain the pages in the buffer pool that were modified
+     * @throws DbException if a tuple cannot be added
+     * @throws IOException if the needed file can't be read/written
+     */
+    default List<Page> insertTuples(TransactionId tid, Iterator<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        List<Page> pages = new ArrayList<>();
+        while (tuples.hasNext()) {
+            for (Page page : insertTuple(tid, tuples.next()))
+                if (!pages.contains(page))
+                    pages.add(page);
+        }
+        return pages;
+    }
+
     /**
      * Removes the specified tuple from the file on behalf of the specified
      * transaction.
@@ -93,4 +132,14 @@ public interface DbFile {
      * @return TupleDesc of this DbFile.
      */
     TupleDesc getTupleDesc();
+
+    /**
+     * Releases the OS resources (open file handles) this DbFile holds. The
+     * Catalog closes a file when its table is replaced or removed; a closed
+     * file may still be used and reopens its resources on demand.
+     *
+     * @throws IOException if closing the underlying file fails
+     */
+    default void close() throws IOException {
+    }
 }
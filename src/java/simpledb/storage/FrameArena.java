@@ -0,0 +1,83 @@
+package simpledb.storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * FrameArena is the off-heap memory of a BufferPool: direct ByteBuffers
+ * allocated up front and cut into page-sized frames. Pages cached in a
+ * frame live outside the Java heap, so a large cache adds next to nothing
+ * to garbage collection.
+ * <p>
+ * A ByteBuffer holds at most 2 GB, so the frames are spread over as many
+ * chunks of up to {@link #MAX_CHUNK_BYTES} as they need.
+ * <p>
+ * Frames are handed out by index; {@link #frame} returns a view of one.
+ * Once the page size changes (tests only) no more frames are handed out.
+ *
+ * @Threadsafe
+ */
+class FrameArena {
+    /**
+     * Most bytes allocated in a single direct buffer.
+     */
+    static final int MAX_CHUNK_BYTES = Integer.MAX_VALUE;
+
+    private final ByteBuffer[] chunks;
+    private final int framesPerChunk;
+    private final int frameSize;
+    private final int[] free;                                         // stack of free frame indexes
+    private int numFree;                                              // guarded by this
+
+    /**
+     * Allocates numFrames frames of the current page size.
+     */
+    FrameArena(int numFrames) {
+        this.frameSize = BufferPool.getPageSize();
+        this.framesPerChunk = MAX_CHUNK_BYTES / frameSize;
+        this.chunks = new ByteBuffer[(int) (((long) numFrames + framesPerChunk - 1) / framesPerChunk)];
+        for (int i = 0; i < chunks.length; i++) {
+            int frames = Math.min(framesPerChunk, numFrames - i * framesPerChunk);
+            chunks[i] = ByteBuffer.allocateDirect(frames * frameSize);   // frames * frameSize <= MAX_CHUNK_BYTES
+        }
+        this.free = new int[numFrames];
+        for (int i = 0; i < numFrames; i++)
+            free[i] = numFrames - 1 - i;                              // frame 0 first
+        this.numFree = numFrames;
+    }
+
+    /**
+     * Takes a free frame.
+     *
+     * @return the index of the frame, or -1 if none is free or its size no longer matches the page size
+     */
+    synchronized int acquire() {
+        if (numFree == 0 || frameSize != BufferPool.getPageSize())
+            return -1;
+        return free[--numFree];
+    }
+
+    /**
+     * Gives a frame back. The page that used it must not be read through it anymore.
+     */
+    synchronized void release(int index) {
+        free[numFree++] = index;
+    }
+
+    /**
+     * @return a view of the frame, positioned at its first byte
+     */
+    ByteBuffer frame(int index) {
+        ByteBuffer frame = chunks[index / framesPerChunk].duplicate();
+        int offset = (index % framesPerChunk) * frameSize;
+        frame.position(offset);
+        frame.limit(offset + frameSize);
+        return frame.slice();
+    }
+
+    /**
+     * @return the number of frames not in use
+     */
+    synchronized int getNumFree() {
+        return numFree;
+    }
+}
@@ -0,0 +1,196 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap remembers roughly how many free slots each page of a
+ * HeapFile has, so an insert can go straight to a page with room instead
+ * of trying the pages one after the other.
+ * <p>
+ * The map is kept in a sidecar file next to the table ("&lt;file&gt;.fsm"):
+ * an 8 byte header holding the length the table file had when the map was
+ * last written, as its {@link PageChannel} reports it (the logical length
+ * of a compressed file, which only grows with the table), then one byte per page holding its free slots, capped at
+ * {@link #MAX_FREE}. A sidecar whose header does not match the table file
+ * was left behind by something else and is ignored. Entries are only
+ * hints: a page without one has to be looked at, and an inserter that finds
+ * a page fuller than its entry says corrects the entry.
+ * <p>
+ * In memory, the pages with room are also kept in one bitmap per fill
+ * class, the free slot counts between two powers of two, so that
+ * {@link #findPage} does not have to look at the entries of full pages.
+ *
+ * @Threadsafe
+ */
+class FreeSpaceMap {
+    /**
+     * Largest free slot count an entry holds; fuller counts are capped.
+     */
+    static final int MAX_FREE = 254;
+
+    private static final byte UNKNOWN = (byte) 0xff;
+    private static final int HEADER_SIZE = 8;
+    private static final int NUM_CLASSES = classOf(MAX_FREE) + 1;
+
+    private final PageChannel table;                                  // the channel of the table file
+    private final File sidecar;
+    private final PageChannel channel;
+    private byte[] free;                                              // page number -> free slots, guarded by this
+    private final BitSet[] classes = new BitSet[NUM_CLASSES];         // fill class -> pages of that class, guarded by this
+    private final BitSet unknown = new BitSet();                      // pages below free.length without an entry
+    private long recordedLength = -1;                                 // the header of the sidecar, -1 if not written yet
+
+    FreeSpaceMap(File file, PageChannel table) {
+        this.table = table;
+        this.sidecar = sidecarOf(file);
+        this.channel = new PageChannel(sidecar);
+        for (int i = 1; i < NUM_CLASSES; i++)
+            classes[i] = new BitSet();
+    }
+
+    /**
+     * @return the fill class of a free slot count: 0 for a full page, else
+     * the number of bits of the count
+     */
+    private static int classOf(int freeSlots) {
+        return 32 - Integer.numberOfLeadingZeros(freeSlots);
+    }
+
+    /**
+     * @return the sidecar of the map of a table file
+     */
+    static File sidecarOf(File table) {
+        return new File(table.getPath() + ".fsm");
+    }
+
+    /**
+     * @return the free slots recorded for the page, or -1 if nothing is known about it
+     */
+    synchronized int get(int pageNo) {
+        byte[] entries = entries();
+        if (pageNo >= entries.length || entries[pageNo] == UNKNOWN)
+            return -1;
+        return entries[pageNo] & 0xff;
+    }
+
+    /**
+     * Returns the page an insert should try next: a page without an entry,
+     * which has to be looked at, else one of the fullest pages with room,
+     * so that pages fill up before the file grows.
+     *
+     * @param numPages the number of pages of the table
+     * @param tried    the pages the insert already tried, which are skipped
+     * @return the page number, or -1 if no page may have room
+     */
+    synchronized int findPage(int numPages, BitSet tried) {
+        byte[] entries = entries();
+        int pageNo = nextPage(unknown, tried);
+        if (pageNo >= 0 && pageNo < numPages)
+            return pageNo;
+        pageNo = tried.nextClearBit(entries.length);                  // no entry either
+        if (pageNo < numPages)
+            return pageNo;
+        for (int i = 1; i < NUM_CLASSES; i++) {
+            pageNo = nextPage(classes[i], tried);
+            if (pageNo >= 0 && pageNo < numPages)
+                return pageNo;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the first page in pages that was not tried, or -1
+     */
+    private static int nextPage(BitSet pages, BitSet tried) {
+        int pageNo = pages.nextSetBit(0);
+        while (pageNo >= 0 && tried.get(pageNo))
+            pageNo = pages.nextSetBit(pageNo + 1);
+        return pageNo;
+    }
+
+    /**
+     * Records the free slots of a page in memory only.
+     */
+    synchronized void set(int pageNo, int freeSlots) {
+        byte[] entries = entries();
+        if (pageNo >= entries.length) {
+            int length = Math.max(pageNo + 1, entries.length * 2);
+            entries = Arrays.copyOf(entries, length);
+            Arrays.fill(entries, free.length, length, UNKNOWN);
+            unknown.set(free.length, length);
+            free = entries;
+        }
+        if (entries[pageNo] == UNKNOWN)
+            unknown.clear(pageNo);
+        else if (entries[pageNo] != 0)
+            classes[classOf(entries[pageNo] & 0xff)].clear(pageNo);
+        entries[pageNo] = (byte) Math.min(freeSlots, MAX_FREE);
+        if (entries[pageNo] != 0)
+            classes[classOf(entries[pageNo] & 0xff)].set(pageNo);
+    }
+
+    /**
+     * Records the free slots of a page that was just written to the table
+     * file, and writes the entry through to the sidecar. The header is only
+     * written again when the table file changed length.
+     */
+    synchronized void persist(int pageNo, int freeSlots) throws IOException {
+        set(pageNo, freeSlots);
+        if (!sidecar.exists()) {                                      // the first write, start from the whole map
+            sidecar.createNewFile();
+            channel.write(Arrays.copyOf(free, free.length), HEADER_SIZE);
+            recordedLength = -1;
+        } else
+            channel.write(new byte[]{free[pageNo]}, HEADER_SIZE + pageNo);
+        long length = table.length();
+        if (length != recordedLength) {
+            channel.write(ByteBuffer.allocate(HEADER_SIZE).putLong(length).array(), 0);
+            recordedLength = length;
+        }
+    }
+
+    private byte[] entries() {
+        if (free == null) {
+            free = load();
+            for (int i = 0; i < free.length; i++) {
+                if (free[i] == UNKNOWN)
+                    unknown.set(i);
+                else if (free[i] != 0)
+                    classes[classOf(free[i] & 0xff)].set(i);
+            }
+        }
+        return free;
+    }
+
+    private byte[] load() {
+        try {
+            long length = sidecar.length();
+            if (length >= HEADER_SIZE && length - HEADER_SIZE <= Integer.MAX_VALUE) {
+                byte[] bytes = new byte[(int) length];
+                int read = channel.read(bytes, 0);
+                if (read == bytes.length && ByteBuffer.wrap(bytes).getLong() == table.length()) {
+                    recordedLength = table.length();
+                    return Arrays.copyOfRange(bytes, HEADER_SIZE, bytes.length);
+                }
+            }
+        } catch (IOException e) {                                     // unreadable, rebuilt from the pages
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        sidecar.delete();                                             // stale, rewritten whole on the next persist
+        return new byte[0];
+    }
+
+    /**
+     * Closes the sidecar. A later write opens it again.
+     */
+    void close() throws IOException {
+        channel.close();
+    }
+}
@@ -3,16 +3,21 @@ package simpledb.storage;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Permissions;
+import simpledb.execution.Predicate;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
 
 /**
  * HeapFile is an implementation of a DbFile that stores a collection of tuples
@@ -20,13 +25,48 @@ import java.util.NoSuchElementException;
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
+ * <p>
+ * Large tables that are only read can be switched to a memory-mapped,
+ * read-only mode with {@link #setMemoryMapped}; pages are then decoded
+ * straight from the mapping.
+ * <p>
+ * A {@link FreeSpaceMap} kept next to the file tells inserts which pages
+ * have room, so they neither lock nor read the full ones. Concurrent
+ * inserters first try pages no other transaction has locked and so fill
+ * different pages instead of queueing on the same one.
+ * <p>
+ * A table can have its pages compressed on disk by a {@link PageCodec};
+ * pages are decompressed as they are read and look the same to everyone
+ * above the file.
+ * <p>
+ * A table can also opt in to {@link SlottedPage} pages, which store tuples
+ * as records of their own length. Nothing in the file tells the layouts
+ * apart, so a slotted table must always be opened as one, e.g. by
+ * declaring it {@code slotted} in the catalog file.
+ * <p>
+ * Unless the BufferPool steals pages, the tuples of fixed-slot pages are
+ * locked one by one below intention locks on their pages (see
+ * {@link BufferPool#lockTuple}), so several transactions insert into and
+ * delete from the same page at once, and a filtered scan only waits for the
+ * tuples that pass its predicate. Their changes are made while the monitor
+ * of the page is held, which keeps the page itself consistent.
  *
  * @author Sam Madden
  * @see HeapPage#HeapPage
  */
 public class HeapFile implements DbFile {
+    /**
+     * Most new pages {@link #insertTuples} appends with a single write.
+     */
+    public static final int MAX_PAGES_PER_APPEND = 32;
+
     private File file;
     private TupleDesc tupleDesc;
+    private final PageChannel channel;                                              // all page I/O goes through it
+    private volatile MappedPages mapped;                                            // non null in memory-mapped read-only mode
+    private final FreeSpaceMap freeSpace;                                           // which pages inserts can go to
+    private final boolean slotted;                                                  // true if the pages are SlottedPages
+    private final Object appendLock = new Object();                                 // held while pages are added at the end
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -35,9 +75,65 @@ public class HeapFile implements DbFile {
      *          file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, null);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file whose pages are
+     * compressed on disk with codec, see {@link CompressedPageChannel}. A
+     * file that is compressed already keeps being read as one, whatever the
+     * codec.
+     *
+     * @param f     the file that stores the on-disk backing store for this heap
+     *              file.
+     * @param codec the codec of new pages, null to store them as they are
+     *              unless the file is compressed already
+     */
+    public HeapFile(File f, TupleDesc td, PageCodec codec) {
+        this(f, td, codec, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file whose pages have
+     * the layout of a {@link SlottedPage} if slotted is true, and are
+     * compressed on disk with codec.
+     *
+     * @param f       the file that stores the on-disk backing store for this heap
+     *                file.
+     * @param codec   the codec of new pages, null to store them as they are
+     *                unless the file is compressed already
+     * @param slotted true for slotted pages, false for the fixed-slot pages of {@link HeapPage}
+     */
+    public HeapFile(File f, TupleDesc td, PageCodec codec, boolean slotted) {
         // some code goes here
         this.file = f;
         this.tupleDesc = td;
+        this.slotted = slotted;
+        this.channel = PageChannel.open(f, codec);
+        this.freeSpace = new FreeSpaceMap(f, channel);
+    }
+
+    /**
+     * Deletes a table file together with the {@link FreeSpaceMap} sidecar
+     * kept next to it. The table must not be open.
+     *
+     * @param f the file of the table
+     * @return true if the table file was deleted
+     */
+    public static boolean delete(File f) {
+        FreeSpaceMap.sidecarOf(f).delete();
+        return f.delete();
+    }
+
+    /**
+     * Like {@link File#deleteOnExit}, for a table file together with the
+     * {@link FreeSpaceMap} sidecar kept next to it, e.g. of a temporary table.
+     *
+     * @param f the file of the table
+     */
+    public static void deleteOnExit(File f) {
+        f.deleteOnExit();
+        FreeSpaceMap.sidecarOf(f).deleteOnExit();                                   // created on the first write, if ever
     }
 
     /**
@@ -74,40 +170,141 @@ public class HeapFile implements DbFile {
         return tupleDesc;
     }
 
+    /**
+     * @return true if the pages of this file have the layout of a {@link SlottedPage}
+     */
+    public boolean isSlotted() {
+        return slotted;
+    }
+
+    /**
+     * Switches this file in or out of memory-mapped read-only mode. While it
+     * is on, readPage decodes pages straight from a read-only mapping of the
+     * file and every attempt to change the table fails.
+     *
+     * @param memoryMapped true to map the file read-only
+     * @throws UnsupportedOperationException if the pages are compressed
+     */
+    public synchronized void setMemoryMapped(boolean memoryMapped) {
+        if (memoryMapped && channel instanceof CompressedPageChannel)
+            throw new UnsupportedOperationException("a compressed heap file cannot be memory-mapped");
+        if (memoryMapped && mapped == null)
+            mapped = new MappedPages(channel, BufferPool.getPageSize());
+        else if (!memoryMapped && mapped != null) {
+            mapped.clear();
+            mapped = null;
+        }
+    }
+
+    /**
+     * @return true if this file is in memory-mapped read-only mode
+     */
+    public boolean isMemoryMapped() {
+        return mapped != null;
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {                                              // page id = pid's page
         // some code goes here
-        try {
-            RandomAccessFile file = new RandomAccessFile(this.file, "r");
-            int pageSize = BufferPool.getPageSize();                                // Bytes per page
-            byte[] buffer = new byte[pageSize];
+        MappedPages mappedPages = mapped;
+        if (mappedPages != null) {
             try {
-                file.seek((long) pid.getPageNumber() * pageSize);
-                if (-1 == file.read(buffer))
-                    return null;
+                ByteBuffer data = mappedPages.page(pid.getPageNumber());
+                if (data != null)                                                   // else a partial last page, read it below
+                    return new HeapPage(new HeapPageId(pid.getTableId(), pid.getPageNumber()), data);
             } catch (IOException e) {
-                return null;
+                throw new IllegalArgumentException(e);
             }
-            file.close();
+        }
+        int pageSize = BufferPool.getPageSize();                                    // Bytes per page
+        byte[] buffer = new byte[pageSize];
+        try {
+            if (-1 == channel.read(buffer, (long) pid.getPageNumber() * pageSize))
+                throw new IllegalArgumentException("page " + pid.getPageNumber() + " is past the end of the file");
             return new HeapPage(new HeapPageId(pid.getTableId(), pid.getPageNumber()), buffer);
-        } catch (Exception e) {
-            throw new IllegalArgumentException();
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Reads a page into the given buffer, e.g. a BufferPool frame, and returns
+     * a page that works on that buffer in place. Bytes past the end of the
+     * file are zero.
+     *
+     * @param pid   the page to read
+     * @param frame a buffer of one page, from its position on
+     * @throws IllegalArgumentException if the page is past the end of the file
+     */
+    public HeapPage readPage(PageId pid, ByteBuffer frame) {
+        int pageSize = BufferPool.getPageSize();
+        ByteBuffer dst = frame.slice();
+        dst.limit(pageSize);
+        try {
+            if (-1 == channel.read(dst, (long) pid.getPageNumber() * pageSize))
+                throw new IllegalArgumentException("page " + pid.getPageNumber() + " is past the end of the file");
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
         }
+        while (dst.hasRemaining())                                                  // a partial last page
+            dst.put((byte) 0);
+        dst.clear();
+        return new HeapPage(new HeapPageId(pid.getTableId(), pid.getPageNumber()), dst);
+    }
+
+    /**
+     * @return true if {@link #readPage(PageId, ByteBuffer)} reads the pages
+     * {@link #readPage(PageId)} would, i.e. the file is not memory-mapped
+     */
+    boolean readsIntoBuffers() {
+        return !isMemoryMapped();
     }
 
     // see DbFile.java for javadocs
-    public void writePage(Page page) throws IOException {
-        // some code goes here
+    public List<Page> readPages(List<PageId> pids) {
+        if (isMemoryMapped())                                                       // page by page through readPage
+            return DbFile.super.readPages(pids);
+        int pageSize = BufferPool.getPageSize();
+        Map<PageId, Page> read = new HashMap<>();
         try {
-            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
-            PageId pid = page.getId();
-            int pageSize = BufferPool.getPageSize();
-            randomAccessFile.seek((long) pid.getPageNumber() * pageSize);
-            randomAccessFile.write(page.getPageData());
-            randomAccessFile.close();
+            for (List<PageId> run : PageChannel.adjacentRuns(pids, PageChannel.MAX_PAGES_PER_READ)) {
+                int first = run.get(0).getPageNumber();
+                List<byte[]> data = channel.readPages((long) first * pageSize, run.size(), pageSize);
+                if (data.size() < run.size())
+                    throw new IllegalArgumentException("page " + (first + data.size()) + " is past the end of the file");
+                for (int i = 0; i < run.size(); i++) {
+                    PageId pid = run.get(i);
+                    read.put(pid, new HeapPage(new HeapPageId(pid.getTableId(), pid.getPageNumber()), data.get(i)));
+                }
+            }
         } catch (IOException e) {
-            throw new IllegalArgumentException();
+            throw new IllegalArgumentException(e);
         }
+        List<Page> pages = new ArrayList<>(pids.size());
+        for (PageId pid : pids)
+            pages.add(read.get(pid));
+        return pages;
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        // some code goes here
+        if (isMemoryMapped())
+            throw new IOException("table " + getId() + " is memory-mapped read-only");
+        PageId pid = page.getId();
+        int pageSize = BufferPool.getPageSize();
+        channel.write(page.getPageData(), (long) pid.getPageNumber() * pageSize);
+        if (page instanceof HeapPage)
+            freeSpace.persist(pid.getPageNumber(), ((HeapPage) page).getNumEmptySlots());
+    }
+
+    // see DbFile.java for javadocs
+    public void close() throws IOException {
+        MappedPages mappedPages = mapped;
+        if (mappedPages != null)
+            mappedPages.clear();                                                    // remapped on demand, like the channel
+        channel.close();
+        freeSpace.close();
     }
 
     /**
@@ -115,62 +312,287 @@ public class HeapFile implements DbFile {
      */
     public int numPages() {
         // some code goes here
-        return ((int) Math.ceil(file.length() * 1.0 / BufferPool.getPageSize()));
+        return ((int) Math.ceil(channel.length() * 1.0 / BufferPool.getPageSize()));
     }
 
     // see DbFile.java for javadocs
     public List<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
+        checkWritable();
         ArrayList<Page> resultList = new ArrayList<>();
-        // if has empty page and empty slot to insert
-        for (int i = 0; i < numPages(); ++i) {
-            HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(getId(), i), Permissions.READ_WRITE);   // by heapPagId to get this page
-            if (heapPage.getNumEmptySlots() > 0) {
-                heapPage.insertTuple(t);
-                resultList.add(heapPage);
+        BufferPool bufferPool = Database.getBufferPool();
+        int numPages = numPages();
+        // if has empty page and empty slot to insert, first among the pages no other trx has locked
+        BitSet tried = new BitSet();
+        List<HeapPageId> lockedByOthers = new ArrayList<>();
+        int pageNo;
+        while ((pageNo = freeSpace.findPage(numPages, tried)) >= 0) {
+            tried.set(pageNo);
+            if (freeSpace.get(pageNo) < 0 && probeFreeSlots(pageNo) == 0)
+                continue;
+            HeapPageId pid = new HeapPageId(getId(), pageNo);
+            if (bufferPool.isLockedByOthers(tid, pid))
+                lockedByOthers.add(pid);
+            else if (insertInto(tid, pid, t, resultList))
+                return resultList;
+        }
+        for (HeapPageId pid : lockedByOthers) {                                     // wait for them rather than grow the file
+            if (insertInto(tid, pid, t, resultList))
+                return resultList;
+        }
+        // no empty page: append an empty one to the file, so that an abort leaves no tuple behind on disk
+        HeapPageId pid;
+        synchronized (appendLock) {
+            pid = new HeapPageId(getId(), numPages());
+            HeapPage emptyPage = new HeapPage(pid, HeapPage.createEmptyPageData());
+            if (emptyPage.getNumEmptySlots() == 0)
                 return resultList;
+            writePage(emptyPage);
+        }
+        if (!insertInto(tid, pid, t, resultList))                                   // filled by others meanwhile
+            return insertTuple(tid, t);
+        return resultList;
+    }
+
+    /**
+     * Inserts the tuples a page at a time. New pages are filled in memory
+     * until they are full, and runs of up to {@link #MAX_PAGES_PER_APPEND}
+     * full pages are appended to the file with a single write (see
+     * {@link BufferPool#prepareAppend}). The tuples of the last page, which
+     * did not fill it, are inserted one by one with {@link #insertTuple}.
+     * <p>
+     * Only a transaction the log knows (see {@link LogFile#isLive}) can undo
+     * an append, so the tuples of any other are all inserted one by one.
+     */
+    @Override
+    public List<Page> insertTuples(TransactionId tid, Iterator<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        checkWritable();
+        if (!Database.getLogFile().isLive(tid))
+            return DbFile.super.insertTuples(tid, tuples);
+        List<Tuple> pending = new ArrayList<>();                                    // the tuples on the page being filled
+        synchronized (appendLock) {
+            int pageNo = numPages();
+            List<Page> run = new ArrayList<>();
+            HeapPage heapPage = new HeapPage(new HeapPageId(getId(), pageNo), HeapPage.createEmptyPageData());
+            while (tuples.hasNext()) {
+                Tuple t = tuples.next();
+                heapPage.insertTuple(t);
+                pending.add(t);
+                if (heapPage.getNumEmptySlots() == 0) {
+                    run.add(heapPage);
+                    pending.clear();
+                    heapPage = new HeapPage(new HeapPageId(getId(), ++pageNo), HeapPage.createEmptyPageData());
+                    if (run.size() == MAX_PAGES_PER_APPEND) {
+                        appendPages(tid, run);
+                        run.clear();
+                    }
+                }
             }
+            if (!run.isEmpty())
+                appendPages(tid, run);
         }
-        // no empty page, we need to realloc page and write to disk
-        HeapPage heapPage = new HeapPage(new HeapPageId(getId(), numPages()), HeapPage.createEmptyPageData());
-        if (heapPage.getNumEmptySlots() > 0) {
-            heapPage.insertTuple(t);
-            writePage(heapPage);
-            resultList.add(heapPage);
+        List<Page> resultList = new ArrayList<>();
+        for (Tuple t : pending) {
+            for (Page page : insertTuple(tid, t))
+                if (!resultList.contains(page))
+                    resultList.add(page);
         }
         return resultList;
     }
 
+    /**
+     * Writes full new pages at the end of the file. The caller holds the append lock.
+     */
+    private void appendPages(TransactionId tid, List<Page> pages)
+            throws IOException, TransactionAbortedException {
+        int pageSize = BufferPool.getPageSize();
+        byte[] data = new byte[pages.size() * pageSize];
+        for (int i = 0; i < pages.size(); i++)
+            System.arraycopy(pages.get(i).getPageData(), 0, data, i * pageSize, pageSize);
+        Database.getBufferPool().prepareAppend(tid, pages);
+        channel.write(data, (long) pages.get(0).getId().getPageNumber() * pageSize);
+        for (Page page : pages) {
+            page.setBeforeImage();
+            freeSpace.persist(page.getId().getPageNumber(), ((HeapPage) page).getNumEmptySlots());
+        }
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException, TransactionAbortedException {
         // some code goes here
+        checkWritable();
         ArrayList<Page> resultList = new ArrayList<>();
         if (t.getRecordId().getPageId().getTableId() != (getId()))
             throw new DbException("the tuple cannot be deleted or is not a member of the file");
+        if (locksTuples()) {
+            resultList.add(deleteLocked(tid, t));
+            return resultList;
+        }
         HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(), Permissions.READ_WRITE);
         heapPage.deleteTuple(t);
+        freeSpace.set(heapPage.getId().getPageNumber(), heapPage.getNumEmptySlots());
         resultList.add(heapPage);
         return resultList;
     }
 
+    /**
+     * @return true if tuples are locked one by one rather than by their pages
+     */
+    boolean locksTuples() {
+        return !slotted && !Database.getBufferPool().isSteal();        // a stolen page could not be undone tuple by tuple
+    }
+
+    /**
+     * Deletes the tuple under an exclusive lock on it, and records the
+     * tuple it deleted so that an abort can put it back.
+     */
+    private HeapPage deleteLocked(TransactionId tid, Tuple t) throws DbException, TransactionAbortedException {
+        BufferPool bufferPool = Database.getBufferPool();
+        RecordId rid = t.getRecordId();
+        HeapPage heapPage = (HeapPage) bufferPool.pinPageForTuples(tid, rid.getPageId(), Permissions.READ_WRITE, null);
+        try {
+            bufferPool.lockTuple(tid, rid, Permissions.READ_WRITE);
+            synchronized (heapPage) {
+                Tuple deleted = heapPage.readTuple(rid.getTupleNumber(), null);
+                heapPage.deleteTuple(t);
+                bufferPool.tupleDeleted(tid, deleted);
+                heapPage.markDirty(true, tid);                                  // before the unpin lets the page go
+                freeSpace.set(heapPage.getId().getPageNumber(), heapPage.getNumEmptySlots());
+            }
+            return heapPage;
+        } finally {
+            bufferPool.unpin(tid, rid.getPageId(), false);
+        }
+    }
+
+    /**
+     * Inserts the tuple into the page if it still has room, and records the
+     * free slots the page has left.
+     *
+     * @return false if the page is full
+     */
+    private boolean insertInto(TransactionId tid, HeapPageId pid, Tuple t, List<Page> resultList)
+            throws DbException, TransactionAbortedException {
+        if (locksTuples())
+            return insertLocked(tid, pid, t, resultList);
+        HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        if (heapPage.getNumEmptySlots() == 0) {
+            freeSpace.set(pid.getPageNumber(), 0);                                  // the entry was stale
+            return false;
+        }
+        heapPage.insertTuple(t);
+        freeSpace.set(pid.getPageNumber(), heapPage.getNumEmptySlots());
+        resultList.add(heapPage);
+        return true;
+    }
+
+    /**
+     * Inserts the tuple into an empty slot of the page that can be locked
+     * exclusively at once, and records it so that an abort can take it out
+     * again. A slot whose tuple another transaction deleted stays locked
+     * until that transaction completes, so its tuple can still come back.
+     *
+     * @return false if the page has no such slot
+     */
+    private boolean insertLocked(TransactionId tid, HeapPageId pid, Tuple t, List<Page> resultList)
+            throws DbException, TransactionAbortedException {
+        BufferPool bufferPool = Database.getBufferPool();
+        HeapPage heapPage = (HeapPage) bufferPool.pinPageForTuples(tid, pid, Permissions.READ_WRITE, null);
+        try {
+            synchronized (heapPage) {
+                for (int i = 0; i < heapPage.numSlots; i++) {
+                    if (heapPage.isSlotUsed(i) || !bufferPool.tryLockTuple(tid, new RecordId(pid, i)))
+                        continue;
+                    heapPage.insertTuple(t, i);
+                    bufferPool.tupleInserted(tid, t.getRecordId());
+                    heapPage.markDirty(true, tid);                              // before the unpin lets the page go
+                    freeSpace.set(pid.getPageNumber(), heapPage.getNumEmptySlots());
+                    resultList.add(heapPage);
+                    return true;
+                }
+                if (heapPage.getNumEmptySlots() == 0)
+                    freeSpace.set(pid.getPageNumber(), 0);                      // the entry was stale
+                return false;
+            }
+        } finally {
+            bufferPool.unpin(tid, pid, false);
+        }
+    }
+
+    /**
+     * Records the free slots of a page the BufferPool put back as it was
+     * before an aborted transaction changed it, e.g. the room an aborted
+     * insert took.
+     */
+    void pageRestored(HeapPage page) {
+        freeSpace.set(page.getId().getPageNumber(), page.getNumEmptySlots());
+    }
+
+    /**
+     * Reads a page the free space map knows nothing about from disk, without
+     * locking or caching it, and records its free slots.
+     */
+    private int probeFreeSlots(int pageNo) {
+        int free = ((HeapPage) readPage(new HeapPageId(getId(), pageNo))).getNumEmptySlots();
+        freeSpace.set(pageNo, free);
+        return free;
+    }
+
+    private void checkWritable() throws DbException {
+        if (isMemoryMapped())
+            throw new DbException("table " + getId() + " is memory-mapped read-only");
+    }
+
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         return new HeapFileIterator(tid, this);
     }
 
+    /**
+     * Returns an iterator that reads the pages of this file through the given
+     * bulk-read ring of the BufferPool.
+     *
+     * @see BufferRing
+     */
+    public DbFileIterator iterator(TransactionId tid, BufferRing ring) {
+        return new HeapFileIterator(tid, this, ring, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples of this file that satisfy the
+     * predicate. Each page evaluates it on its raw bytes, so only the
+     * tuples that pass are decoded.
+     *
+     * @param ring      the bulk-read ring to read the pages through, or null
+     * @param predicate the predicate the tuples must satisfy
+     * @see HeapPage#iterator(Predicate)
+     */
+    public DbFileIterator iterator(TransactionId tid, BufferRing ring, Predicate predicate) {
+        return new HeapFileIterator(tid, this, ring, predicate);
+    }
+
     public static final class HeapFileIterator implements DbFileIterator {
         // some code goes here
         private final HeapFile heapFile;
         private final TransactionId tid;
+        private final BufferRing ring;              // bulk-read ring, null for normal access
+        private final Predicate predicate;          // pushed down filter, null for all tuples
         private boolean isOpen = false;             // The db file is open or not
         private Integer pid = 0;                    // the heap page id indicates current heap page
         private HeapPage curPage;                   // current heap page
         private Iterator<Tuple> curTupleIter;       // current page's tuple's iter
 
         public HeapFileIterator(TransactionId tid, HeapFile heapFile) {
+            this(tid, heapFile, null, null);
+        }
+
+        public HeapFileIterator(TransactionId tid, HeapFile heapFile, BufferRing ring, Predicate predicate) {
             this.tid = tid;
             this.heapFile = heapFile;
+            this.ring = ring;
+            this.predicate = predicate;
         }
 
         @Override
@@ -181,13 +603,44 @@ public class HeapFile implements DbFile {
 
         public Iterator<Tuple> readPage(int pid) throws TransactionAbortedException, DbException {
             if (pid >= 0 && pid < heapFile.numPages()) {
-                curPage = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(heapFile.getId(), pid), Permissions.READ_ONLY);
-                return curPage.iterator();
+                unpinCurPage();                     // keep only the page we are reading pinned
+                HeapPageId id = new HeapPageId(heapFile.getId(), pid);
+                if (predicate != null && heapFile.locksTuples())
+                    return readLocked(id);
+                curPage = (HeapPage) Database.getBufferPool().pinPage(tid, id, Permissions.READ_ONLY, ring);
+                return curPage.iterator(predicate);
             } else {
                 throw new DbException("read page error");
             }
         }
 
+        /**
+         * Reads the tuples of the page that pass the predicate under shared
+         * locks on them alone, so that uncommitted changes to other tuples
+         * of the page do not hold the scan up. The slots another transaction
+         * emptied are locked as well: their tuples may come back.
+         */
+        private Iterator<Tuple> readLocked(HeapPageId id) throws TransactionAbortedException, DbException {
+            BufferPool bufferPool = Database.getBufferPool();
+            curPage = (HeapPage) bufferPool.pinPageForTuples(tid, id, Permissions.READ_ONLY, ring);
+            List<Integer> candidates = new ArrayList<>();
+            synchronized (curPage) {
+                Set<Integer> deleted = bufferPool.deletedByOthers(tid, id);
+                for (int i = 0; i < curPage.numSlots; i++) {
+                    if (deleted.contains(i) || curPage.slotMatches(i, predicate))
+                        candidates.add(i);
+                }
+            }
+            List<Tuple> tuples = new ArrayList<>();
+            for (int i : candidates) {
+                bufferPool.lockTuple(tid, new RecordId(id, i), Permissions.READ_ONLY);
+                Tuple t = curPage.readTuple(i, predicate);
+                if (t != null)
+                    tuples.add(t);
+            }
+            return tuples.iterator();
+        }
+
         @Override
         public boolean hasNext() throws TransactionAbortedException, DbException {
             if (!isOpen || curTupleIter == null)
@@ -221,7 +674,14 @@ public class HeapFile implements DbFile {
             isOpen = false;
             pid = 0;
             curTupleIter = null;
-            curPage = null;
+            unpinCurPage();
+        }
+
+        private void unpinCurPage() {
+            if (curPage != null) {
+                Database.getBufferPool().unpin(tid, curPage.getId(), false);
+                curPage = null;
+            }
         }
     }
 }
@@ -4,6 +4,7 @@ import simpledb.common.Type;
 import simpledb.common.Utility;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
 
@@ -94,6 +95,24 @@ public class HeapFileEncoder {
     public static void convert(File inFile, File outFile, int npagebytes,
                                int numFields, Type[] typeAr, char fieldSeparator)
             throws IOException {
+        convert(inFile, outFile, npagebytes, numFields, typeAr, fieldSeparator, false);
+    }
+
+    /**
+     * Like {@link #convert(File, File, int, int, Type[], char)}, but writes
+     * {@link SlottedPage} pages if slotted is true. The file must then be
+     * opened as a slotted HeapFile.
+     *
+     * @param slotted true to write slotted pages
+     * @see HeapFile#isSlotted
+     */
+    public static void convert(File inFile, File outFile, int npagebytes,
+                               int numFields, Type[] typeAr, char fieldSeparator, boolean slotted)
+            throws IOException {
+        if (slotted) {
+            convertSlotted(inFile, outFile, npagebytes, new TupleDesc(Arrays.copyOf(typeAr, numFields)), fieldSeparator);
+            return;
+        }
 
         int nrecbytes = 0;
         for (int i = 0; i < numFields; i++) {
@@ -225,4 +244,49 @@ public class HeapFileEncoder {
         br.close();
         os.close();
     }
+
+    /**
+     * Converts a text file into slotted pages. Each page takes as many
+     * records as fit.
+     */
+    private static void convertSlotted(File inFile, File outFile, int npagebytes, TupleDesc td,
+                                       char fieldSeparator) throws IOException {
+        SlottedPage.checkPageSize(npagebytes);
+        String separator = java.util.regex.Pattern.quote(String.valueOf(fieldSeparator));
+        try (BufferedReader br = new BufferedReader(new FileReader(inFile));
+             FileOutputStream os = new FileOutputStream(outFile)) {
+            ByteBuffer page = ByteBuffer.allocate(npagebytes);
+            boolean pageEmpty = true;
+            int npages = 0;
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.trim().isEmpty())
+                    continue;
+                String[] values = line.split(separator, -1);
+                Tuple t = new Tuple(td);
+                try {
+                    for (int i = 0; i < td.numFields(); i++) {
+                        String value = values[i].trim();
+                        if (td.getFieldType(i) == Type.INT_TYPE)
+                            t.setField(i, new IntField(Integer.parseInt(value)));
+                        else
+                            t.setField(i, new StringField(value, Type.STRING_LEN));
+                    }
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    System.out.println("BAD LINE : " + line);
+                    continue;
+                }
+                byte[] record = SlottedPage.encode(t);
+                if (SlottedPage.insert(page, record) < 0) {           // full, start the next page
+                    os.write(page.array());
+                    npages++;
+                    page = ByteBuffer.allocate(npagebytes);
+                    SlottedPage.insert(page, record);
+                }
+                pageEmpty = false;
+            }
+            if (!pageEmpty || npages == 0)
+                os.write(page.array());
+        }
+    }
 }
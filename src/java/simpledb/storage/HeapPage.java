@@ -3,10 +3,14 @@ package simpledb.storage;
 import simpledb.common.Catalog;
 import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.Predicate;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -22,15 +26,15 @@ public class HeapPage implements Page {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte[] header;
-    final Tuple[] tuples;
     final int numSlots;
+    private final int headerSize;
+    private final int[] fieldOffsets;               // offset of each field within a tuple slot
+    private final boolean slotted;                  // true for pages of slotted heap files, see SlottedPage
+    private ByteBuffer data;                        // header bytes then the tuple slots, guarded by this
 
-    byte[] oldData;                                 // For Recovery, we ignore it temporily
-    private final Byte oldDataLock = (byte) 0;
+    byte[] oldData;                                 // For Recovery, null while the page is unchanged since it was read or committed
     private boolean dirty;
     private TransactionId dirtyTid;
-    private long lastAccessedTime = 0;
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -44,33 +48,49 @@ public class HeapPage implements Page {
      * <p>
      * ceiling(no. tuple slots / 8)
      * <p>
+     * Pages of the heap files that are {@link HeapFile#isSlotted slotted} use
+     * the {@link SlottedPage} layout instead, where each tuple is a record of
+     * its own length.
+     * <p>
+     * The page works on its own copy of data.
      *
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(Arrays.copyOf(data, BufferPool.getPageSize())));
+    }
+
+    /**
+     * Create a HeapPage on top of a buffer holding its bytes, e.g. a slice of
+     * a memory-mapped file or a BufferPool frame, in the format described in
+     * {@link #HeapPage(HeapPageId, byte[])}. The page reads and writes the
+     * buffer in place and only decodes a tuple when it is asked for.
+     * No copy of the page bytes is made.
+     *
+     * @param id   the id of this page
+     * @param data the page bytes, from the buffer's position on
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) {
         this.pid = id;
-        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        DbFile file = Database.getCatalog().getDatabaseFile(id.getTableId());
+        this.td = file.getTupleDesc();
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i = 0; i < header.length; i++)
-            header[i] = dis.readByte();
-
-        tuples = new Tuple[numSlots];
-        try {
-            // allocate and read the actual records of this page
-            for (int i = 0; i < tuples.length; i++)
-                tuples[i] = readNextTuple(dis, i);
-        } catch (NoSuchElementException e) {
-            e.printStackTrace();
+        this.headerSize = getHeaderSize();
+        this.fieldOffsets = new int[td.numFields()];
+        for (int j = 1; j < fieldOffsets.length; j++)
+            fieldOffsets[j] = fieldOffsets[j - 1] + td.getFieldType(j - 1).getLen();
+        this.slotted = file instanceof HeapFile && ((HeapFile) file).isSlotted();
+        if (slotted)
+            SlottedPage.checkPageSize(BufferPool.getPageSize());
+        ByteBuffer bytes = data.slice();
+        if (bytes.capacity() < BufferPool.getPageSize()) {     // short page, the rest is zero
+            ByteBuffer padded = ByteBuffer.allocate(BufferPool.getPageSize());
+            padded.put(bytes);
+            bytes = padded;
         }
-        dis.close();
-        this.lastAccessedTime = System.nanoTime();
-        setBeforeImage();
+        this.data = bytes;
     }
 
     /**
@@ -94,15 +114,36 @@ public class HeapPage implements Page {
         return (int) Math.ceil(getNumTuples() / 8.0);
     }
 
+    private int slotOffset(int slotId) {
+        return headerSize + slotId * td.getSize();
+    }
+
+    private int fieldOffset(int slotId, int fieldIndex) {
+        if (slotted)
+            return SlottedPage.fieldOffset(data, slotId, td, fieldIndex);
+        return slotOffset(slotId) + fieldOffsets[fieldIndex];
+    }
+
+    private Field parseField(ByteBuffer buf, Type type) throws java.text.ParseException {
+        return slotted ? SlottedPage.parse(buf, type) : type.parse(buf);
+    }
+
+    /**
+     * @return the number of slots to look at: all of them, or the slot directory of a slotted page
+     */
+    private int slotCount() {
+        return slotted ? SlottedPage.numSlots(data) : numSlots;
+    }
+
     /**
      * Return a view of this page before it was modified
      * -- used by recovery
      */
     public HeapPage getBeforeImage() {
         try {
-            byte[] oldDataRef = null;
-            synchronized (oldDataLock) {
-                oldDataRef = oldData;
+            byte[] oldDataRef;
+            synchronized (this) {
+                oldDataRef = oldData != null ? oldData : getPageData();    // no copy yet, the page is unchanged
             }
             return new HeapPage(pid, oldDataRef);
         } catch (IOException e) {
@@ -113,10 +154,29 @@ public class HeapPage implements Page {
         return null;
     }
 
-    public void setBeforeImage() {
-        synchronized (oldDataLock) {
-            oldData = getPageData().clone();
-        }
+    /**
+     * Makes the current contents of this page its before image. The bytes
+     * are only copied when the page is about to change.
+     */
+    public synchronized void setBeforeImage() {
+        oldData = null;
+    }
+
+    /**
+     * Makes the given bytes the before image of this page, e.g. the
+     * committed image of a page that still has uncommitted tuples.
+     */
+    synchronized void setBeforeImage(byte[] image) {
+        oldData = image;
+    }
+
+    /**
+     * Copies the page into its before image unless it already has one.
+     * Every method that changes the page calls it first.
+     */
+    private synchronized void captureBeforeImage() {
+        if (oldData == null)
+            oldData = getPageData();
     }
 
     /**
@@ -128,107 +188,148 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Decodes the tuple in the given slot if it satisfies the predicate.
+     *
+     * @return the tuple, or null if the slot is empty or the predicate rejects it
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i = 0; i < td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
+    synchronized Tuple readTuple(int slotId, Predicate predicate) throws NoSuchElementException {
+        if (!isSlotUsed(slotId) || (predicate != null && !matches(slotId, predicate)))
             return null;
-        }
-
-        // read fields in the tuple
         Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
+        t.setRecordId(new RecordId(pid, slotId));
+        ByteBuffer buf = data.duplicate();
+        buf.position(fieldOffset(slotId, 0));
         try {
-            for (int j = 0; j < td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
+            for (int j = 0; j < td.numFields(); j++)
+                t.setField(j, parseField(buf, td.getFieldType(j)));
         } catch (java.text.ParseException e) {
             e.printStackTrace();
             throw new NoSuchElementException("parsing error!");
         }
-
         return t;
     }
 
     /**
-     * Generates a byte array representing the contents of this page.
-     * Used to serialize this page to disk.
-     * <p>
-     * The invariant here is that it should be possible to pass the byte
-     * array generated by getPageData to the HeapPage constructor and
-     * have it produce an identical HeapPage object.
+     * Decodes a single field of the tuple in the given slot, without
+     * materializing the rest of the tuple.
      *
-     * @return A byte array correspond to the bytes of this page.
-     * @see #HeapPage
+     * @param slotId     the slot of the tuple
+     * @param fieldIndex the index of the field in the tuple
+     * @return the field, or null if the slot is empty
      */
-    public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (byte b : header) {
-            try {
-                dos.writeByte(b);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
+    public synchronized Field getField(int slotId, int fieldIndex) {
+        if (!isSlotUsed(slotId))
+            return null;
+        ByteBuffer buf = data.duplicate();
+        buf.position(fieldOffset(slotId, fieldIndex));
+        try {
+            return parseField(buf, td.getFieldType(fieldIndex));
+        } catch (java.text.ParseException e) {
+            e.printStackTrace();
+            throw new NoSuchElementException("parsing error!");
         }
+    }
 
-        // create the tuples
-        for (int i = 0; i < tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j = 0; j < td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j = 0; j < td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
+    /**
+     * @return true if the slot is in use and its tuple satisfies the predicate (null for any tuple)
+     */
+    synchronized boolean slotMatches(int slotId, Predicate predicate) {
+        return isSlotUsed(slotId) && (predicate == null || matches(slotId, predicate));
+    }
 
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Evaluates the predicate on the raw bytes of a used slot. An int field
+     * is compared in place, any other field is the only one decoded.
+     */
+    private boolean matches(int slotId, Predicate predicate) {
+        int fieldIndex = predicate.getField();
+        Field operand = predicate.getOperand();
+        if (td.getFieldType(fieldIndex) == Type.INT_TYPE && operand instanceof IntField) {
+            int value = data.getInt(fieldOffset(slotId, fieldIndex));
+            return IntField.compare(predicate.getOp(), value, ((IntField) operand).getValue());
         }
+        return getField(slotId, fieldIndex).compare(predicate.getOp(), operand);
+    }
 
+    /**
+     * Encodes the tuple into the given slot; fields that do not fill the
+     * slot are zero padded.
+     */
+    private void writeTuple(int slotId, Tuple t) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+        DataOutputStream dos = new DataOutputStream(baos);
         try {
+            for (int j = 0; j < td.numFields(); j++)
+                t.getField(j).serialize(dos);
             dos.flush();
         } catch (IOException e) {
+            // this really shouldn't happen
             e.printStackTrace();
         }
+        byte[] bytes = Arrays.copyOf(baos.toByteArray(), td.getSize());
+        ByteBuffer buf = data.duplicate();
+        buf.position(slotOffset(slotId));
+        buf.put(bytes);
+    }
+
+    private void clearSlot(int slotId) {
+        ByteBuffer buf = data.duplicate();
+        buf.position(slotOffset(slotId));
+        buf.put(new byte[td.getSize()]);
+    }
+
+    /**
+     * Moves the page from the buffer it was built on to a private copy on the
+     * heap, so that the buffer (e.g. a BufferPool frame) can be reused while
+     * this object is still referenced.
+     */
+    synchronized void detach() {
+        ByteBuffer src = data.duplicate();
+        src.clear();
+        ByteBuffer copy = ByteBuffer.allocate(src.capacity());
+        copy.put(src);
+        data = copy;
+    }
+
+    /**
+     * Copies the page into the given buffer, e.g. a BufferPool frame, and
+     * works on that buffer from then on.
+     *
+     * @param frame a buffer of one page, from its position on
+     */
+    synchronized void moveTo(ByteBuffer frame) {
+        ByteBuffer src = data.duplicate();
+        src.clear();
+        ByteBuffer dst = frame.slice();
+        dst.put(src);
+        dst.clear();
+        data = dst;
+    }
 
-        return baos.toByteArray();
+    /**
+     * @return true if the page bytes live outside the Java heap, in a frame or a mapped file
+     */
+    synchronized boolean isOffHeap() {
+        return data.isDirect();
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page.
+     * Used to serialize this page to disk.
+     * <p>
+     * The invariant here is that it should be possible to pass the byte
+     * array generated by getPageData to the HeapPage constructor and
+     * have it produce an identical HeapPage object.
+     *
+     * @return A byte array correspond to the bytes of this page.
+     * @see #HeapPage
+     */
+    public synchronized byte[] getPageData() {
+        ByteBuffer src = data.duplicate();
+        src.clear();
+        byte[] bytes = new byte[src.capacity()];
+        src.get(bytes);
+        return bytes;
     }
 
     /**
@@ -253,16 +354,20 @@ public class HeapPage implements Page {
      * @throws DbException if this tuple is not on this page, or tuple slot is
      *                     already empty.
      */
-    public void deleteTuple(Tuple t) throws DbException {
+    public synchronized void deleteTuple(Tuple t) throws DbException {
         // some code goes here
+        captureBeforeImage();
         RecordId rid = t.getRecordId();
         if (rid != null && rid.getPageId().equals(pid)) {
-            for (int i = 0; i < numSlots; i++) {
-                if (isSlotUsed(i) && tuples[i].getRecordId().equals(rid)) {
-                    tuples[i] = null;
+            int i = rid.getTupleNumber();
+            if (i >= 0 && i < slotCount() && isSlotUsed(i)) {
+                if (slotted)
+                    SlottedPage.delete(data, i);
+                else {
                     markSlotUsed(i, false);
-                    return;
+                    clearSlot(i);
                 }
+                return;
             }
         }
         throw new DbException("this tuple is not on this page or tuple slot is already empty");
@@ -277,13 +382,20 @@ public class HeapPage implements Page {
      * @throws DbException if the page is full (no empty slots) or tupledesc
      *                     is mismatch.
      */
-    public void insertTuple(Tuple t) throws DbException {
+    public synchronized void insertTuple(Tuple t) throws DbException {
         // some code goes here
-        if (getNumEmptySlots() > 0 && t.getTupleDesc().equals(td)) {
+        captureBeforeImage();
+        if (slotted && t.getTupleDesc().equals(td)) {
+            int slot = SlottedPage.insert(data, SlottedPage.encode(t));
+            if (slot >= 0) {
+                t.setRecordId(new RecordId(pid, slot));
+                return;
+            }
+        } else if (!slotted && getNumEmptySlots() > 0 && t.getTupleDesc().equals(td)) {
             for (int i = 0; i < numSlots; i++) {
                 if (!isSlotUsed(i)) {
                     t.setRecordId(new RecordId(pid, i));
-                    tuples[i] = t;
+                    writeTuple(i, t);
                     markSlotUsed(i, true);
                     return;
                 }
@@ -292,12 +404,47 @@ public class HeapPage implements Page {
         throw new DbException("the page is full (no empty slots) or tupledesc is mismatch");
     }
 
+    /**
+     * Adds the tuple to the given empty slot of the page, e.g. one the
+     * inserting transaction could lock; the tuple is updated to reflect
+     * that it is now stored there.
+     *
+     * @throws DbException if the slot is in use or tupledesc is mismatch
+     */
+    synchronized void insertTuple(Tuple t, int slotId) throws DbException {
+        if (slotted || slotId < 0 || slotId >= numSlots || isSlotUsed(slotId) || !t.getTupleDesc().equals(td))
+            throw new DbException("slot " + slotId + " is in use or tupledesc is mismatch");
+        captureBeforeImage();
+        t.setRecordId(new RecordId(pid, slotId));
+        writeTuple(slotId, t);
+        markSlotUsed(slotId, true);
+    }
+
+    /**
+     * Puts a slot back as it was before a tuple was inserted into it or
+     * deleted from it.
+     *
+     * @param t the tuple deleted from the slot, or null to empty it
+     */
+    synchronized void restoreSlot(int slotId, Tuple t) {
+        captureBeforeImage();
+        if (t == null) {
+            markSlotUsed(slotId, false);
+            clearSlot(slotId);
+        } else {
+            writeTuple(slotId, t);
+            markSlotUsed(slotId, true);
+        }
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
      */
     public void markDirty(boolean dirty, TransactionId tid) {
         // some code goes here
+        if (dirty)
+            captureBeforeImage();
         this.dirty = dirty;
         this.dirtyTid = dirty ? tid : null;
     }
@@ -311,26 +458,28 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Returns the number of empty slots on this page.
+     * Returns the number of empty slots on this page. On a slotted page it
+     * is the number of tuples of the largest size that still fit, so
+     * shorter tuples may fit even when it is 0.
      */
-    public int getNumEmptySlots() {
+    public synchronized int getNumEmptySlots() {
         // some code goes here
+        if (slotted)
+            return SlottedPage.numEmptySlots(data, td.getSize());
         int numSlotUsed = 0;
-        for (byte b : header) {
-            while (b != 0) {
-                numSlotUsed += 1;
-                b &= (b - 1);
-            }
-        }
-        return getNumTuples() - numSlotUsed;
+        for (int i = 0; i < headerSize; i++)
+            numSlotUsed += Integer.bitCount(data.get(i) & 0xff);
+        return numSlots - numSlotUsed;
     }
 
     /**
      * Returns true if associated slot on this page is filled.
      */
-    public boolean isSlotUsed(int i) {      // this i infers to i_th tuple, so we have to divide by 8
+    public synchronized boolean isSlotUsed(int i) {      // this i infers to i_th tuple, so we have to divide by 8
         // some code goes here
-        byte b = header[i / 8];
+        if (slotted)
+            return SlottedPage.isUsed(data, i);
+        byte b = data.get(i / 8);
         return (b & (1 << i % 8)) != 0;     // find the i_th bit location to execute '&' operator to determine whether this slot is used (1)
     }
 
@@ -340,11 +489,13 @@ public class HeapPage implements Page {
     private void markSlotUsed(int i, boolean value) {
         // some code goes here
         // not necessary for lab1
+        byte b = data.get(i / 8);
         if (value) {
-            header[i / 8] |= 1 << (i % 8);
+            b |= 1 << (i % 8);
         } else {
-            header[i / 8] &= ~(1 << (i % 8));
+            b &= ~(1 << (i % 8));
         }
+        data.put(i / 8, b);
     }
 
     /**
@@ -353,17 +504,44 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-        List<Tuple> tupleList = new ArrayList<>();
-        for (int i = 0; i < numSlots; i++) {
-            if (isSlotUsed(i)) {
-                tupleList.add(this.tuples[i]);
+        return iterator(null);
+    }
+
+    /**
+     * Returns an iterator over the tuples on this page that satisfy the
+     * predicate. The predicate is evaluated on the raw bytes of each slot,
+     * so tuples it rejects are never decoded.
+     *
+     * @param predicate the predicate the tuples must satisfy, or null for all tuples
+     */
+    public Iterator<Tuple> iterator(Predicate predicate) {
+        List<Integer> usedSlots = new ArrayList<>();        // the slots in use now, decoded one by one
+        synchronized (this) {
+            for (int i = 0, n = slotCount(); i < n; i++) {
+                if (isSlotUsed(i))
+                    usedSlots.add(i);
             }
         }
-        return tupleList.iterator();
-    }
+        return new Iterator<Tuple>() {
+            private int next = 0;
+            private Tuple nextTuple = null;
+
+            @Override
+            public boolean hasNext() {
+                while (nextTuple == null && next < usedSlots.size())
+                    nextTuple = readTuple(usedSlots.get(next++), predicate);   // null if deleted meanwhile or rejected
+                return nextTuple != null;
+            }
 
-    public long getLastAccessedTime() {
-        return lastAccessedTime;
+            @Override
+            public Tuple next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Tuple t = nextTuple;
+                nextTuple = null;
+                return t;
+            }
+        };
     }
 }
 
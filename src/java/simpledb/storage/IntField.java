@@ -58,20 +58,30 @@ public class IntField implements Field {
             iVal = (IntField) val;
         } catch (Exception ignored) {
         }
+        return compare(op, value, iVal.value);
+    }
+
+    /**
+     * Compares two int values like {@link #compare(Predicate.Op, Field)},
+     * without creating fields for them.
+     *
+     * @return true if value op operand holds
+     */
+    public static boolean compare(Predicate.Op op, int value, int operand) {
         switch (op) {
             case EQUALS:
             case LIKE:
-                return value == iVal.value;
+                return value == operand;
             case NOT_EQUALS:
-                return value != iVal.value;
+                return value != operand;
             case GREATER_THAN:
-                return value > iVal.value;
+                return value > operand;
             case GREATER_THAN_OR_EQ:
-                return value >= iVal.value;
+                return value >= operand;
             case LESS_THAN:
-                return value < iVal.value;
+                return value < operand;
             case LESS_THAN_OR_EQ:
-                return value <= iVal.value;
+                return value <= operand;
         }
         return false;
     }
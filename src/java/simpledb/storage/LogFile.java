@@ -12,6 +12,8 @@ import java.io.RandomAccessFile;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /*
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -23,23 +25,16 @@ two-phase locking discipline are followed.  <p>
 <p>
 
 Many of the methods here are synchronized (to prevent concurrent log
-writes from happening); many of the methods in BufferPool are also
-synchronized (for similar reasons.)  Problem is that BufferPool writes
-log records (on page flushed) and the log file flushes BufferPool
-pages (on checkpoints and recovery.)  This can lead to deadlock.  For
-that reason, any LogFile operation that needs to access the BufferPool
-must not be declared synchronized and must begin with a block like:
-
-<p>
-<pre>
-    synchronized (Database.getBufferPool()) {
-       synchronized (this) {
-
-       ..
-
-       }
-    }
-</pre>
+writes from happening); BufferPool partitions are protected by their
+own latches (for similar reasons.)  Problem is that BufferPool writes
+log records (on page flushed) while holding a partition latch, and the
+log file flushes BufferPool pages (on checkpoints.)  This can lead to
+deadlock.  For that reason, partition latches are always taken before
+the log monitor: any LogFile operation that flushes BufferPool pages
+must do so before entering synchronized (this), and may not call
+BufferPool methods that take a latch while holding the monitor: rollback
+reads the before images under the monitor and restores the pages after
+leaving it.
 */
 
 /**
@@ -97,6 +92,7 @@ public class LogFile {
     final Map<Long, Long> tidToFirstLogRecord = new HashMap<>();
     //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
+    private final ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();  // commits share it, checkpoints own it
 
     /**
      * Constructor.
@@ -141,6 +137,19 @@ public class LogFile {
         }
     }
 
+    /**
+     * Returns the lock a committing transaction holds from writing back or
+     * logging its pages until its COMMIT record is written, and that the
+     * page writer holds while it writes pages back. A checkpoint takes it
+     * exclusively: a transaction committing between the flush of the pool
+     * and the checkpoint record would otherwise have its log records
+     * truncated while its pages are still unwritten.
+     * Take it before any BufferPool latch or the log monitor.
+     */
+    public Lock getCommitLock() {
+        return checkpointLock.readLock();
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
@@ -152,27 +161,20 @@ public class LogFile {
      * @param tid The aborting transaction.
      */
     public void logAbort(TransactionId tid) throws IOException {
-        // must have buffer pool lock before proceeding, since this
-        // calls rollback
-
-        synchronized (Database.getBufferPool()) {
-
-            synchronized (this) {
-                preAppend();
-                //Debug.log("ABORT");
-                //should we verify that this is a live transaction?
-
-                // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
+        //Debug.log("ABORT");
+        //should we verify that this is a live transaction?
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
-                tidToFirstLogRecord.remove(tid.getId());
-            }
+        // must do this here, since rollback only works for
+        // live transactions (needs tidToFirstLogRecord)
+        rollback(tid);
+        synchronized (this) {
+            preAppend();
+            raf.writeInt(ABORT_RECORD);
+            raf.writeLong(tid.getId());
+            raf.writeLong(currentOffset);
+            currentOffset = raf.getFilePointer();
+            force();
+            tidToFirstLogRecord.remove(tid.getId());
         }
     }
 
@@ -322,8 +324,10 @@ public class LogFile {
      * Checkpoint the log and write a checkpoint record.
      */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
+        checkpointLock.writeLock().lock();          // no commit until the checkpoint record is written
+        try {
+            //flush before taking the log monitor, BufferPool latches come first
+            Database.getBufferPool().flushAllPages();
             synchronized (this) {
                 //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
                 preAppend();
@@ -331,7 +335,6 @@ public class LogFile {
                 Set<Long> keys = tidToFirstLogRecord.keySet();
                 Iterator<Long> els = keys.iterator();
                 force();
-                Database.getBufferPool().flushAllPages();
                 startCpOffset = raf.getFilePointer();
                 raf.writeInt(CHECKPOINT_RECORD);
                 raf.writeLong(-1); //no tid , but leave space for convenience
@@ -356,6 +359,8 @@ public class LogFile {
                 currentOffset = raf.getFilePointer();
                 //Debug.log("CP OFFSET = " + currentOffset);
             }
+        } finally {
+            checkpointLock.writeLock().unlock();
         }
 
         logTruncate();
@@ -470,37 +475,34 @@ public class LogFile {
      */
     public void rollback(TransactionId tid)
             throws NoSuchElementException, IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                preAppend();
-                // some code goes here
-                Set<PageId> pageIdSet = new HashSet<>();
-                Long offset = tidToFirstLogRecord.get(tid.getId());
-                raf.seek(offset);
-                // if file pointer is not the end
-                while (raf.getFilePointer() < raf.length()) {
-                    int cpType = raf.readInt();
-                    long cpTid = raf.readLong();
-                    if (cpType == UPDATE_RECORD) {
-                        Page beforeImage = readPageData(raf);
-                        Page afterImage = readPageData(raf);
-                        if (tid.getId() == cpTid && !pageIdSet.contains(beforeImage.getId())) {
-                            pageIdSet.add(beforeImage.getId());
-                            Database.getBufferPool().discardPage(beforeImage.getId());
-                            Database.getCatalog().getDatabaseFile(beforeImage.getId().getTableId()).writePage(beforeImage);
-                        }
-                    } else if (cpType == CHECKPOINT_RECORD) {
-                        int keysSize = raf.readInt();           // refer to logCheckpoint function
-                        while (keysSize-- > 0) {
-                            raf.readLong();
-                            raf.readLong();
-                        }
+        Map<PageId, Page> beforeImages = new LinkedHashMap<>();     // the first before image of each page
+        synchronized (this) {
+            preAppend();
+            // some code goes here
+            Long offset = tidToFirstLogRecord.get(tid.getId());
+            raf.seek(offset);
+            // if file pointer is not the end
+            while (raf.getFilePointer() < raf.length()) {
+                int cpType = raf.readInt();
+                long cpTid = raf.readLong();
+                if (cpType == UPDATE_RECORD) {
+                    Page beforeImage = readPageData(raf);
+                    Page afterImage = readPageData(raf);
+                    if (tid.getId() == cpTid)
+                        beforeImages.putIfAbsent(beforeImage.getId(), beforeImage);
+                } else if (cpType == CHECKPOINT_RECORD) {
+                    int keysSize = raf.readInt();           // refer to logCheckpoint function
+                    while (keysSize-- > 0) {
+                        raf.readLong();
+                        raf.readLong();
                     }
-                    raf.readLong();
                 }
-                raf.seek(raf.length());
+                raf.readLong();
             }
+            raf.seek(raf.length());
         }
+        for (Page beforeImage : beforeImages.values())      // takes partition latches, so outside the monitor
+            Database.getBufferPool().restorePage(beforeImage);
     }
 
     /**
@@ -508,10 +510,12 @@ public class LogFile {
      * is necessary so that start up can happen quickly (without
      * extensive recovery.)
      */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                raf.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -524,75 +528,73 @@ public class LogFile {
      * updates of uncommitted transactions are not installed.
      */
     public void recover() throws IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                recoveryUndecided = false;
-                // some code goes here
-                long latestCheckpoint = raf.readLong();
-                long pos = latestCheckpoint != NO_CHECKPOINT_ID ? latestCheckpoint : 0;
-                raf.seek(pos);
-                HashSet<Long> commitedTransactions = new HashSet<>();
-                // redo updates and build the set of loser transactions
-                while (raf.getFilePointer() < raf.length()) {
-                    int cpType = raf.readInt();
-                    switch (cpType) {
-                        case BEGIN_RECORD:          // logXactionBegin
-                            long tidBegin = raf.readLong();
-                            long offsetBegin = raf.readLong();
-                            this.tidToFirstLogRecord.put(tidBegin, offsetBegin);
-                            break;
-                        case UPDATE_RECORD:         // logWrite
-                            long tidUpdate = raf.readLong();
-                            Page beforeImage = readPageData(raf);
-                            Page afterImage = readPageData(raf);
-                            long offsetUpdate = raf.readLong();
-                            break;
-                        case COMMIT_RECORD:         // logCommit
-                            long tidCommit = raf.readLong();
-                            raf.skipBytes(LONG_SIZE);
-                            commitedTransactions.add(tidCommit);
-                            break;
-                        case ABORT_RECORD:         // logAbort
-                            raf.skipBytes(LONG_SIZE * 2);
-                            break;
-                        case CHECKPOINT_RECORD:    // logCheckpoint
-                            raf.skipBytes(LONG_SIZE);
-                            int keysSize = raf.readInt();
-                            while (keysSize-- > 0) {
-                                long activeTrxKey = raf.readLong();
-                                long activeTrxOffset = raf.readLong();
-                                tidToFirstLogRecord.put(activeTrxKey, activeTrxOffset);
-                            }
-                            raf.skipBytes(LONG_SIZE);
-                            break;
-                        default:
-                            break;
-                    }
+        synchronized (this) {
+            recoveryUndecided = false;
+            // some code goes here
+            long latestCheckpoint = raf.readLong();
+            long pos = latestCheckpoint != NO_CHECKPOINT_ID ? latestCheckpoint : 0;
+            raf.seek(pos);
+            HashSet<Long> commitedTransactions = new HashSet<>();
+            // redo updates and build the set of loser transactions
+            while (raf.getFilePointer() < raf.length()) {
+                int cpType = raf.readInt();
+                switch (cpType) {
+                    case BEGIN_RECORD:          // logXactionBegin
+                        long tidBegin = raf.readLong();
+                        long offsetBegin = raf.readLong();
+                        this.tidToFirstLogRecord.put(tidBegin, offsetBegin);
+                        break;
+                    case UPDATE_RECORD:         // logWrite
+                        long tidUpdate = raf.readLong();
+                        Page beforeImage = readPageData(raf);
+                        Page afterImage = readPageData(raf);
+                        long offsetUpdate = raf.readLong();
+                        break;
+                    case COMMIT_RECORD:         // logCommit
+                        long tidCommit = raf.readLong();
+                        raf.skipBytes(LONG_SIZE);
+                        commitedTransactions.add(tidCommit);
+                        break;
+                    case ABORT_RECORD:         // logAbort
+                        raf.skipBytes(LONG_SIZE * 2);
+                        break;
+                    case CHECKPOINT_RECORD:    // logCheckpoint
+                        raf.skipBytes(LONG_SIZE);
+                        int keysSize = raf.readInt();
+                        while (keysSize-- > 0) {
+                            long activeTrxKey = raf.readLong();
+                            long activeTrxOffset = raf.readLong();
+                            tidToFirstLogRecord.put(activeTrxKey, activeTrxOffset);
+                        }
+                        raf.skipBytes(LONG_SIZE);
+                        break;
+                    default:
+                        break;
                 }
+            }
 
-                for (Long transactionId : tidToFirstLogRecord.keySet()) {
-                    long beginOffset = tidToFirstLogRecord.get(transactionId);
-                    raf.seek(beginOffset);
-                    boolean flag = commitedTransactions.contains(transactionId);
-                    while (raf.getFilePointer() < raf.length()) {
-                        int type = raf.readInt();
-                        if (type == UPDATE_RECORD) {
-                            long tid = raf.readLong();
-                            Page beforePage = readPageData(raf);
-                            Page afterPage = readPageData(raf);
-                            raf.skipBytes(LONG_SIZE);
-                            if (tid == transactionId) {
-                                if (flag)
-                                    Database.getCatalog().getDatabaseFile(afterPage.getId().getTableId()).writePage(afterPage);         // redo
-                                else
-                                    Database.getCatalog().getDatabaseFile(beforePage.getId().getTableId()).writePage(beforePage);       // undo the updates of loser transaction
-                            }
-                        } else
-                            raf.skipBytes(LONG_SIZE * 2);
-                    }
+            for (Long transactionId : tidToFirstLogRecord.keySet()) {
+                long beginOffset = tidToFirstLogRecord.get(transactionId);
+                raf.seek(beginOffset);
+                boolean flag = commitedTransactions.contains(transactionId);
+                while (raf.getFilePointer() < raf.length()) {
+                    int type = raf.readInt();
+                    if (type == UPDATE_RECORD) {
+                        long tid = raf.readLong();
+                        Page beforePage = readPageData(raf);
+                        Page afterPage = readPageData(raf);
+                        raf.skipBytes(LONG_SIZE);
+                        if (tid == transactionId) {
+                            if (flag)
+                                Database.getCatalog().getDatabaseFile(afterPage.getId().getTableId()).writePage(afterPage);         // redo
+                            else
+                                Database.getCatalog().getDatabaseFile(beforePage.getId().getTableId()).writePage(beforePage);       // undo the updates of loser transaction
+                        }
+                    } else
+                        raf.skipBytes(LONG_SIZE * 2);
                 }
-                tidToFirstLogRecord.clear();
             }
+            tidToFirstLogRecord.clear();
         }
     }
 
@@ -674,6 +676,32 @@ public class LogFile {
         raf.seek(curOffset);
     }
 
+    /**
+     * @return true if the transaction has a BEGIN record and has neither
+     * committed nor aborted yet, i.e. the log can roll it back
+     */
+    public synchronized boolean isLive(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
+    }
+
+    /**
+     * @return the ids of the transactions {@link #isLive} holds for
+     */
+    public synchronized Set<Long> getLiveTransactions() {
+        return new HashSet<>(tidToFirstLogRecord.keySet());
+    }
+
+    /**
+     * Returns the LSN the next log record will get. The LSN of a record is
+     * the offset it starts at in the log file; truncating the log
+     * renumbers the records that are kept.
+     *
+     * @return the offset of the next log record, or -1 if nothing was logged yet
+     */
+    public synchronized long getNextLsn() {
+        return currentOffset;
+    }
+
     public synchronized void force() throws IOException {
         raf.getChannel().force(true);
     }
@@ -0,0 +1,66 @@
+package simpledb.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Read-only memory mapping of a file of fixed size pages. The file is
+ * mapped in segments of {@link #SEGMENT_PAGES} pages, each mapped on first
+ * use, so a large table never needs one huge mapping and a page never
+ * straddles two segments.
+ *
+ * @Threadsafe
+ */
+class MappedPages {
+    /**
+     * Number of pages per mapped segment.
+     */
+    static final int SEGMENT_PAGES = 16384;
+
+    private final PageChannel channel;
+    private final int pageSize;
+    private final ConcurrentHashMap<Integer, MappedByteBuffer> segments; // segment number -> mapping
+
+    MappedPages(PageChannel channel, int pageSize) {
+        this.channel = channel;
+        this.pageSize = pageSize;
+        this.segments = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Returns a read-only view of the page, without copying it.
+     *
+     * @return the bytes of the page, or null if the file holds no complete page pageNo
+     */
+    ByteBuffer page(int pageNo) throws IOException {
+        int segmentNo = pageNo / SEGMENT_PAGES;
+        int start = (pageNo % SEGMENT_PAGES) * pageSize;
+        MappedByteBuffer segment = segments.get(segmentNo);
+        if (segment == null || segment.capacity() < start + pageSize) {
+            segment = map(segmentNo);                               // first use, or the file grew since
+            if (segment.capacity() < start + pageSize)
+                return null;
+        }
+        ByteBuffer page = segment.duplicate();
+        page.position(start);
+        page.limit(start + pageSize);
+        return page.slice();
+    }
+
+    private synchronized MappedByteBuffer map(int segmentNo) throws IOException {
+        long start = (long) segmentNo * SEGMENT_PAGES * pageSize;
+        long length = Math.min((long) SEGMENT_PAGES * pageSize, Math.max(0, channel.size() - start));
+        MappedByteBuffer segment = channel.map(start, length);
+        segments.put(segmentNo, segment);
+        return segment;
+    }
+
+    /**
+     * Drops every mapping; the memory is released once the pages decoded from them are gone.
+     */
+    void clear() {
+        segments.clear();
+    }
+}
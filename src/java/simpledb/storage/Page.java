@@ -59,6 +59,4 @@ public interface Page {
      * copy current content to the before image.
      */
     void setBeforeImage();
-
-    long getLastAccessedTime();
 }
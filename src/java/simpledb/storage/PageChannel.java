@@ -0,0 +1,219 @@
+package simpledb.storage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * PageChannel is the long-lived handle a DbFile does its page I/O through.
+ * Pages are read and written with positional I/O on a single FileChannel,
+ * so concurrent readers and writers never share a file pointer and no
+ * call opens or closes a file.
+ * <p>
+ * The channel is opened on first use. A FileChannel is closed for every
+ * thread when one of them is interrupted during an I/O, so a closed
+ * channel is simply reopened by the next call; the same holds after
+ * {@link #close()}.
+ *
+ * @Threadsafe
+ */
+public class PageChannel implements Closeable {
+    /**
+     * Most pages a DbFile fetches with a single read.
+     */
+    public static final int MAX_PAGES_PER_READ = 32;
+
+    private final File file;
+    private volatile FileChannel channel;                             // null until the first I/O
+
+    public PageChannel(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Opens the channel of a DbFile: a {@link CompressedPageChannel} if codec
+     * is given or the file is a compressed file already, a plain one otherwise.
+     *
+     * @param codec the codec to compress new pages with, null to keep that of the file
+     */
+    public static PageChannel open(File file, PageCodec codec) {
+        PageCodec fileCodec = CompressedPageChannel.codecOf(file);
+        if (codec == null)
+            codec = fileCodec;
+        return codec == null ? new PageChannel(file) : new CompressedPageChannel(file, codec);
+    }
+
+    /**
+     * Reads up to buffer.length bytes starting at position, stopping early
+     * only at the end of the file.
+     *
+     * @return the number of bytes read, or -1 if position is past the end of the file
+     */
+    public int read(byte[] buffer, long position) throws IOException {
+        ByteBuffer dst = ByteBuffer.wrap(buffer);
+        try {
+            return readFully(channel(), dst, position);
+        } catch (ClosedChannelException e) {                        // closed under us, read again on a fresh channel
+            dst.clear();
+            return readFully(channel(), dst, position);
+        }
+    }
+
+    /**
+     * Reads into dst from its position to its limit, starting at position in
+     * the file and stopping early only at the end of the file.
+     *
+     * @return the number of bytes read, or -1 if position is past the end of the file
+     */
+    public int read(ByteBuffer dst, long position) throws IOException {
+        int start = dst.position();
+        try {
+            return readFully(channel(), dst, position);
+        } catch (ClosedChannelException e) {
+            dst.position(start);
+            return readFully(channel(), dst, position);
+        }
+    }
+
+    private static int readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        int total = 0;
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, position + total);
+            if (n < 0)
+                return total == 0 ? -1 : total;
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Reads count consecutive pages of pageSize bytes starting at position
+     * with a single positional read.
+     *
+     * @return the pages read, fewer than count if the file ends first
+     */
+    public List<byte[]> readPages(long position, int count, int pageSize) throws IOException {
+        byte[] run = new byte[count * pageSize];
+        int read = read(run, position);
+        List<byte[]> pages = new ArrayList<>(count);
+        for (int offset = 0; offset < read; offset += pageSize) {
+            byte[] page = new byte[pageSize];                       // a partial last page stays zero padded
+            System.arraycopy(run, offset, page, 0, Math.min(pageSize, read - offset));
+            pages.add(page);
+        }
+        return pages;
+    }
+
+    /**
+     * Splits page ids into runs of adjacent page numbers, each sorted and
+     * at most maxRunLength long, that can each be read with
+     * {@link #readPages}. Duplicate ids are dropped.
+     */
+    public static List<List<PageId>> adjacentRuns(List<PageId> pids, int maxRunLength) {
+        List<PageId> sorted = new ArrayList<>(new LinkedHashSet<>(pids));
+        sorted.sort(Comparator.comparingInt(PageId::getPageNumber));
+        List<List<PageId>> runs = new ArrayList<>();
+        List<PageId> run = null;
+        for (PageId pid : sorted) {
+            if (run == null || run.size() == maxRunLength
+                    || run.get(run.size() - 1).getPageNumber() + 1 != pid.getPageNumber()) {
+                run = new ArrayList<>();
+                runs.add(run);
+            }
+            run.add(pid);
+        }
+        return runs;
+    }
+
+    /**
+     * Writes all of data starting at position, growing the file if needed.
+     */
+    public void write(byte[] data, long position) throws IOException {
+        ByteBuffer src = ByteBuffer.wrap(data);
+        try {
+            writeFully(channel(), src, position);
+        } catch (ClosedChannelException e) {
+            src.clear();
+            writeFully(channel(), src, position);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer src, long position) throws IOException {
+        while (src.hasRemaining())
+            position += channel.write(src, position);
+    }
+
+    /**
+     * Writes data at the end of the file.
+     *
+     * @return the position data was written at
+     */
+    public synchronized long append(byte[] data) throws IOException {
+        long position = size();
+        write(data, position);
+        return position;
+    }
+
+    /**
+     * Maps a region of the file read-only into memory. The mapping stays
+     * valid after the channel is closed.
+     */
+    public MappedByteBuffer map(long position, long size) throws IOException {
+        try {
+            return channel().map(FileChannel.MapMode.READ_ONLY, position, size);
+        } catch (ClosedChannelException e) {
+            return channel().map(FileChannel.MapMode.READ_ONLY, position, size);
+        }
+    }
+
+    /**
+     * @return the current size of the file in bytes
+     */
+    public long size() throws IOException {
+        try {
+            return channel().size();
+        } catch (ClosedChannelException e) {
+            return channel().size();
+        }
+    }
+
+    /**
+     * Like {@link #size()}, but without opening the channel.
+     *
+     * @return the current size of the file in bytes, 0 if it does not exist
+     */
+    public long length() {
+        return file.length();
+    }
+
+    private FileChannel channel() throws IOException {
+        FileChannel current = channel;
+        if (current != null && current.isOpen())
+            return current;
+        synchronized (this) {
+            if (channel == null || !channel.isOpen())
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            return channel;
+        }
+    }
+
+    /**
+     * Closes the underlying channel. A later read or write opens it again.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
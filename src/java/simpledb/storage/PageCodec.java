@@ -0,0 +1,219 @@
+package simpledb.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * PageCodec compresses page images on their way to disk, see
+ * {@link CompressedPageChannel}. A table picks the codec that suits its
+ * data when its DbFile is created.
+ * <p>
+ * Compressed blocks record the ordinal of their codec, so new codecs go at
+ * the end.
+ */
+public enum PageCodec {
+    /**
+     * Dictionary encoding of 4 byte words: the distinct words of the page
+     * followed by the dictionary index of every word, packed into as few
+     * bits as the dictionary needs. Suits rows of low-cardinality ints,
+     * whose fields interleave and so rarely form runs.
+     */
+    DICTIONARY() {
+        @Override
+        public byte[] compress(byte[] data) {
+            ByteBuffer words = ByteBuffer.wrap(data);
+            int numWords = data.length / 4;
+            Map<Integer, Integer> codes = new LinkedHashMap<>();
+            int[] indexes = new int[numWords];
+            for (int i = 0; i < numWords; i++) {
+                Integer word = words.getInt(i * 4);
+                Integer code = codes.get(word);
+                if (code == null) {
+                    code = codes.size();
+                    codes.put(word, code);
+                }
+                indexes[i] = code;
+            }
+            int bits = bitsFor(codes.size());
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4);
+            writeVarint(out, codes.size());
+            ByteBuffer dictionary = ByteBuffer.allocate(codes.size() * 4);
+            for (int word : codes.keySet())
+                dictionary.putInt(word);
+            out.write(dictionary.array(), 0, dictionary.capacity());
+            long pending = 0;                                           // bits not written out yet, low aligned
+            int pendingBits = 0;
+            for (int index : indexes) {
+                pending = (pending << bits) | index;
+                pendingBits += bits;
+                while (pendingBits >= 8) {
+                    pendingBits -= 8;
+                    out.write((int) (pending >>> pendingBits));
+                }
+            }
+            if (pendingBits > 0)
+                out.write((int) (pending << (8 - pendingBits)));
+            out.write(data, numWords * 4, data.length % 4);           // a tail shorter than a word
+            return out.toByteArray();
+        }
+
+        @Override
+        public byte[] decompress(byte[] compressed, int length) throws IOException {
+            byte[] data = new byte[length];
+            ByteBuffer in = ByteBuffer.wrap(compressed);
+            ByteBuffer words = ByteBuffer.wrap(data);
+            try {
+                int[] dictionary = new int[readVarint(in)];
+                for (int i = 0; i < dictionary.length; i++)
+                    dictionary[i] = in.getInt();
+                int bits = bitsFor(dictionary.length);
+                long pending = 0;
+                int pendingBits = 0;
+                for (int i = 0; i < length / 4; i++) {
+                    while (pendingBits < bits) {
+                        pending = (pending << 8) | (in.get() & 0xff);
+                        pendingBits += 8;
+                    }
+                    pendingBits -= bits;
+                    words.putInt(i * 4, dictionary[(int) ((pending >>> pendingBits) & ((1L << bits) - 1))]);
+                }
+                in.get(data, length - length % 4, length % 4);
+            } catch (RuntimeException e) {                              // buffer underflow or bad index of a corrupt block
+                throw new IOException("corrupt dictionary block", e);
+            }
+            return data;
+        }
+    },
+
+    /**
+     * Run-length encoding of 4 byte words: each run of equal words is stored
+     * as its length (a varint) and the word. Suits sorted columns, such as
+     * the minipages of a {@link ColumnPage}, and mostly empty pages.
+     */
+    RUN_LENGTH() {
+        @Override
+        public byte[] compress(byte[] data) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4);
+            ByteBuffer words = ByteBuffer.wrap(data);
+            int numWords = data.length / 4;
+            int i = 0;
+            while (i < numWords) {
+                int word = words.getInt(i * 4);
+                int run = 1;
+                while (i + run < numWords && words.getInt((i + run) * 4) == word)
+                    run++;
+                writeVarint(out, run);
+                out.write(data, i * 4, 4);
+                i += run;
+            }
+            out.write(data, numWords * 4, data.length % 4);           // a tail shorter than a word
+            return out.toByteArray();
+        }
+
+        @Override
+        public byte[] decompress(byte[] compressed, int length) throws IOException {
+            byte[] data = new byte[length];
+            ByteBuffer in = ByteBuffer.wrap(compressed);
+            int pos = 0;
+            try {
+                while (pos < length - length % 4) {
+                    int run = readVarint(in);
+                    int word = in.getInt();
+                    for (int k = 0; k < run; k++, pos += 4)
+                        ByteBuffer.wrap(data, pos, 4).putInt(word);
+                }
+                in.get(data, pos, length - pos);
+            } catch (RuntimeException e) {                              // buffer under/overflow of a corrupt block
+                throw new IOException("corrupt run-length block", e);
+            }
+            return data;
+        }
+    },
+
+    /**
+     * LZ77 and Huffman coding (java.util.zip), for pages with strings or
+     * otherwise repetitive bytes.
+     */
+    DEFLATE() {
+        @Override
+        public byte[] compress(byte[] data) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(data);
+                deflater.finish();
+                ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4);
+                byte[] chunk = new byte[4096];
+                while (!deflater.finished())
+                    out.write(chunk, 0, deflater.deflate(chunk));
+                return out.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        @Override
+        public byte[] decompress(byte[] compressed, int length) throws IOException {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(compressed);
+                byte[] data = new byte[length];
+                int pos = 0;
+                while (pos < length && !inflater.finished()) {
+                    int n = inflater.inflate(data, pos, length - pos);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        throw new IOException("truncated deflate block");
+                    pos += n;
+                }
+                return data;
+            } catch (DataFormatException e) {
+                throw new IOException("corrupt deflate block", e);
+            } finally {
+                inflater.end();
+            }
+        }
+    };
+
+    /**
+     * @return the compressed form of data
+     */
+    public abstract byte[] compress(byte[] data);
+
+    /**
+     * @param compressed what {@link #compress} returned
+     * @param length     the length of the original data
+     * @return the original data
+     * @throws IOException if compressed is not a valid encoding
+     */
+    public abstract byte[] decompress(byte[] compressed, int length) throws IOException;
+
+    /**
+     * @return the bits an index into a dictionary of size words takes
+     */
+    private static int bitsFor(int size) {
+        return size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+    }
+}
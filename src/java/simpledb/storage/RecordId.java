@@ -69,8 +69,7 @@ public class RecordId implements Serializable {
     @Override
     public int hashCode() {
         // some code goes here
-        String compositeKey = String.valueOf(pid) + tupleno;
-        return compositeKey.hashCode();
+        return 31 * pid.hashCode() + tupleno;           // record locks look RecordIds up in hash tables
     }
 
 }
@@ -0,0 +1,223 @@
+package simpledb.storage;
+
+import simpledb.common.Type;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SlottedPage is the layout of the HeapPages of {@link HeapFile#isSlotted
+ * slotted} heap files, which suits tables with string fields. Their tuples
+ * are records of varying length: a string takes a 2 byte length and its
+ * characters instead of a fixed slot of {@link Type#STRING_LEN} bytes, so
+ * short strings no longer waste most of the page.
+ * <p>
+ * A page starts with the number of slots and the offset of the record
+ * area (2 bytes each), followed by the slot directory, one (offset, length)
+ * entry of 2 + 2 bytes per slot; an empty slot has offset 0. Records are
+ * packed from the end of the page towards the directory. A deleted record
+ * leaves a hole that is squeezed out when an insert needs the room, and
+ * slot numbers never change. An all-zero page is an empty page. Offsets
+ * are 2 bytes, so pages must be smaller than {@link #MAX_PAGE_SIZE} bytes.
+ * <p>
+ * All methods work on a buffer holding one page, at absolute positions.
+ */
+final class SlottedPage {
+    /**
+     * The exclusive upper bound of the page size, the first position a 2 byte offset cannot hold.
+     */
+    static final int MAX_PAGE_SIZE = 1 << 16;
+
+    private static final int HEADER_SIZE = 4;
+    private static final int ENTRY_SIZE = 4;
+
+    private SlottedPage() {
+    }
+
+    /**
+     * @throws IllegalArgumentException if pages of pageSize bytes cannot be slotted pages
+     */
+    static void checkPageSize(int pageSize) {
+        if (pageSize >= MAX_PAGE_SIZE)
+            throw new IllegalArgumentException("slotted pages must be smaller than " + MAX_PAGE_SIZE
+                    + " bytes, not " + pageSize);
+    }
+
+    /**
+     * @return the number of slots in the directory, used or not
+     */
+    static int numSlots(ByteBuffer page) {
+        return page.getShort(0) & 0xffff;
+    }
+
+    private static int recordStart(ByteBuffer page) {
+        int start = page.getShort(2) & 0xffff;
+        return start == 0 ? page.capacity() : start;                  // 0 on an empty page
+    }
+
+    /**
+     * @return the position of the record in the slot, or 0 if the slot is empty
+     */
+    static int offset(ByteBuffer page, int slot) {
+        return page.getShort(HEADER_SIZE + slot * ENTRY_SIZE) & 0xffff;
+    }
+
+    private static int length(ByteBuffer page, int slot) {
+        return page.getShort(HEADER_SIZE + slot * ENTRY_SIZE + 2) & 0xffff;
+    }
+
+    private static void setEntry(ByteBuffer page, int slot, int offset, int length) {
+        page.putShort(HEADER_SIZE + slot * ENTRY_SIZE, (short) offset);
+        page.putShort(HEADER_SIZE + slot * ENTRY_SIZE + 2, (short) length);
+    }
+
+    static boolean isUsed(ByteBuffer page, int slot) {
+        return slot < numSlots(page) && offset(page, slot) != 0;
+    }
+
+    /**
+     * Encodes the fields of a tuple into a record.
+     */
+    static byte[] encode(Tuple t) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int j = 0; j < t.getTupleDesc().numFields(); j++) {
+                Field field = t.getField(j);
+                if (field.getType() == Type.STRING_TYPE) {
+                    byte[] chars = ((StringField) field).getValue().getBytes(StandardCharsets.ISO_8859_1);
+                    dos.writeShort(chars.length);
+                    dos.write(chars);
+                } else
+                    field.serialize(dos);
+            }
+            dos.flush();
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Decodes a field of a record, starting at the buffer's position.
+     */
+    static Field parse(ByteBuffer buf, Type type) throws java.text.ParseException {
+        if (type != Type.STRING_TYPE)
+            return type.parse(buf);
+        byte[] chars = new byte[buf.getShort() & 0xffff];
+        buf.get(chars);
+        return new StringField(new String(chars, StandardCharsets.ISO_8859_1), Type.STRING_LEN);
+    }
+
+    /**
+     * @return the position of a field of the record in a used slot
+     */
+    static int fieldOffset(ByteBuffer page, int slot, TupleDesc td, int fieldIndex) {
+        int position = offset(page, slot);
+        for (int j = 0; j < fieldIndex; j++) {
+            if (td.getFieldType(j) == Type.STRING_TYPE)
+                position += 2 + (page.getShort(position) & 0xffff);
+            else
+                position += td.getFieldType(j).getLen();
+        }
+        return position;
+    }
+
+    /**
+     * Counts how many more records of at most maxRecordSize bytes are
+     * certain to fit, reusing empty slots before adding new ones.
+     */
+    static int numEmptySlots(ByteBuffer page, int maxRecordSize) {
+        int numSlots = numSlots(page);
+        int emptySlots = 0;
+        int liveBytes = 0;
+        for (int slot = 0; slot < numSlots; slot++) {
+            if (offset(page, slot) == 0)
+                emptySlots++;
+            else
+                liveBytes += length(page, slot);
+        }
+        int free = page.capacity() - HEADER_SIZE - numSlots * ENTRY_SIZE - liveBytes;
+        int reused = Math.min(emptySlots, free / maxRecordSize);
+        if (reused < emptySlots)
+            return reused;
+        return reused + Math.max(0, (free - reused * maxRecordSize) / (maxRecordSize + ENTRY_SIZE));
+    }
+
+    /**
+     * Stores a record, squeezing out the holes of deleted records if the
+     * free space between the directory and the records is too small.
+     *
+     * @return the slot of the record, or -1 if the page has no room for it
+     */
+    static int insert(ByteBuffer page, byte[] record) {
+        int numSlots = numSlots(page);
+        int slot = 0;
+        while (slot < numSlots && offset(page, slot) != 0)
+            slot++;
+        int directoryEnd = HEADER_SIZE + Math.max(numSlots, slot + 1) * ENTRY_SIZE;
+        if (recordStart(page) - directoryEnd < record.length) {
+            compact(page);
+            if (recordStart(page) - directoryEnd < record.length)
+                return -1;
+        }
+        int offset = recordStart(page) - record.length;
+        ByteBuffer dst = page.duplicate();
+        dst.position(offset);
+        dst.put(record);
+        setEntry(page, slot, offset, record.length);
+        if (slot == numSlots)
+            page.putShort(0, (short) (numSlots + 1));
+        page.putShort(2, (short) offset);
+        return slot;
+    }
+
+    /**
+     * Empties a used slot and zeroes its record.
+     */
+    static void delete(ByteBuffer page, int slot) {
+        ByteBuffer dst = page.duplicate();
+        dst.position(offset(page, slot));
+        dst.put(new byte[length(page, slot)]);
+        setEntry(page, slot, 0, 0);
+    }
+
+    /**
+     * Moves the records to the end of the page, leaving no holes between them.
+     */
+    private static void compact(ByteBuffer page) {
+        int numSlots = numSlots(page);
+        List<byte[]> records = new ArrayList<>(numSlots);
+        for (int slot = 0; slot < numSlots; slot++) {
+            byte[] record = null;
+            if (offset(page, slot) != 0) {
+                record = new byte[length(page, slot)];
+                ByteBuffer src = page.duplicate();
+                src.position(offset(page, slot));
+                src.get(record);
+            }
+            records.add(record);
+        }
+        int directoryEnd = HEADER_SIZE + numSlots * ENTRY_SIZE;
+        ByteBuffer area = page.duplicate();
+        area.position(directoryEnd);
+        area.put(new byte[page.capacity() - directoryEnd]);
+        int start = page.capacity();
+        for (int slot = 0; slot < numSlots; slot++) {
+            byte[] record = records.get(slot);
+            if (record == null)
+                continue;
+            start -= record.length;
+            area.position(start);
+            area.put(record);
+            setEntry(page, slot, start, record.length);
+        }
+        page.putShort(2, (short) (start == page.capacity() ? 0 : start));
+    }
+}
@@ -0,0 +1,207 @@
+package simpledb.storage;
+
+import simpledb.transaction.TransactionId;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * TupleUndoLog keeps the logical undo records of the tuples transactions
+ * insert into and delete from HeapPages under record locks, where several
+ * uncommitted transactions may change the same page.
+ * <p>
+ * The log holds whole page images, which cannot tell the tuples of two
+ * such transactions apart. Instead, an abort undoes the tuples of its
+ * transaction one by one on the cached page, and a commit logs and writes
+ * the page with the tuples of the others undone on a copy: its committed
+ * image. A page stays dirty as long as any of its writers is running, and
+ * its before image is always its last committed state.
+ * <p>
+ * Record locks keep the tuples of different writers apart: an inserter
+ * only takes a slot it can lock exclusively, so it never reuses the slot
+ * of a deleted tuple before the deleter commits.
+ * <p>
+ * Changes are recorded while the page's monitor is held, the latch under
+ * which the tuples themselves change, so a copy of the page cut under the
+ * same monitor always matches the recorded changes.
+ *
+ * @Threadsafe
+ */
+class TupleUndoLog {
+    private final Map<PageId, Map<TransactionId, List<Change>>> pages = new HashMap<>();  // guarded by this
+    private final Map<TransactionId, Set<PageId>> pagesOf = new HashMap<>();              // guarded by this
+
+    /**
+     * A tuple inserted into or deleted from a slot.
+     */
+    private static final class Change {
+        final int slot;
+        final Tuple deleted;                                    // the tuple deleted from the slot, null for an insert
+
+        Change(int slot, Tuple deleted) {
+            this.slot = slot;
+            this.deleted = deleted;
+        }
+    }
+
+    synchronized void inserted(TransactionId tid, RecordId rid) {
+        changesOf(tid, rid.getPageId()).add(new Change(rid.getTupleNumber(), null));
+    }
+
+    /**
+     * @param t the tuple as it was in its slot, with its RecordId
+     */
+    synchronized void deleted(TransactionId tid, Tuple t) {
+        RecordId rid = t.getRecordId();
+        changesOf(tid, rid.getPageId()).add(new Change(rid.getTupleNumber(), t));
+    }
+
+    private List<Change> changesOf(TransactionId tid, PageId pid) {
+        pagesOf.computeIfAbsent(tid, k -> new HashSet<>()).add(pid);
+        return pages.computeIfAbsent(pid, k -> new HashMap<>()).computeIfAbsent(tid, k -> new ArrayList<>());
+    }
+
+    /**
+     * @return true if tid changed tuples of the page and has not completed yet
+     */
+    synchronized boolean isWriter(TransactionId tid, PageId pid) {
+        Map<TransactionId, List<Change>> writers = pages.get(pid);
+        return writers != null && writers.containsKey(tid);
+    }
+
+    /**
+     * @return true if any running transaction changed tuples of the page
+     */
+    synchronized boolean hasWriters(PageId pid) {
+        return pages.containsKey(pid);
+    }
+
+    /**
+     * @return a running transaction that changed tuples of the page, null if there is none
+     */
+    synchronized TransactionId anyWriter(PageId pid) {
+        Map<TransactionId, List<Change>> writers = pages.get(pid);
+        return writers == null ? null : writers.keySet().iterator().next();
+    }
+
+    /**
+     * @return the running transaction that changed tuples of the page, null if there is none or several
+     */
+    synchronized TransactionId soleWriter(PageId pid) {
+        Map<TransactionId, List<Change>> writers = pages.get(pid);
+        return writers == null || writers.size() != 1 ? null : writers.keySet().iterator().next();
+    }
+
+    /**
+     * @return the slots of the page whose tuples transactions other than tid deleted and may still put back
+     */
+    synchronized Set<Integer> deletedByOthers(TransactionId tid, PageId pid) {
+        Map<TransactionId, List<Change>> writers = pages.get(pid);
+        if (writers == null)
+            return Collections.emptySet();
+        Set<Integer> slots = new HashSet<>();
+        for (Map.Entry<TransactionId, List<Change>> writer : writers.entrySet()) {
+            if (writer.getKey().equals(tid))
+                continue;
+            for (Change change : writer.getValue()) {
+                if (change.deleted != null)
+                    slots.add(change.slot);
+            }
+        }
+        return slots;
+    }
+
+    /**
+     * Cuts the committed image of a page for a committing transaction: a
+     * copy of the page with the changes of every other writer undone.
+     * The caller holds the monitor of the page.
+     */
+    synchronized HeapPage committedImage(TransactionId tid, HeapPage page) {
+        HeapPage image;
+        try {
+            image = new HeapPage(page.getId(), page.getPageData());
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot copy page " + page.getId(), e);
+        }
+        Map<TransactionId, List<Change>> writers = pages.get(page.getId());
+        if (writers != null) {
+            for (Map.Entry<TransactionId, List<Change>> writer : writers.entrySet()) {
+                if (!writer.getKey().equals(tid))
+                    undo(image, writer.getValue());
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Undoes the changes of an aborting transaction on the page and forgets them.
+     * The caller holds the monitor of the page.
+     */
+    synchronized void rollback(TransactionId tid, HeapPage page) {
+        List<Change> changes = remove(tid, page.getId());
+        if (changes != null)
+            undo(page, changes);
+    }
+
+    /**
+     * Keeps tid a writer of the page, so that the page stays dirty, but
+     * drops its changes: they are in the committed image now, which the
+     * committed images of the other writers start from.
+     */
+    synchronized void committed(TransactionId tid, PageId pid) {
+        Map<TransactionId, List<Change>> writers = pages.get(pid);
+        if (writers != null && writers.containsKey(tid))
+            writers.put(tid, new ArrayList<>());
+    }
+
+    /**
+     * Forgets the changes of a completed transaction on one page.
+     */
+    synchronized void forget(TransactionId tid, PageId pid) {
+        remove(tid, pid);
+    }
+
+    /**
+     * Forgets the changes of a completed transaction on every page.
+     */
+    synchronized void forget(TransactionId tid) {
+        Set<PageId> pids = pagesOf.remove(tid);
+        if (pids == null)
+            return;
+        for (PageId pid : pids)
+            removeWriter(tid, pid);
+    }
+
+    private List<Change> remove(TransactionId tid, PageId pid) {
+        Set<PageId> pids = pagesOf.get(tid);
+        if (pids != null && pids.remove(pid) && pids.isEmpty())
+            pagesOf.remove(tid);
+        return removeWriter(tid, pid);
+    }
+
+    private List<Change> removeWriter(TransactionId tid, PageId pid) {
+        Map<TransactionId, List<Change>> writers = pages.get(pid);
+        if (writers == null)
+            return null;
+        List<Change> changes = writers.remove(tid);
+        if (writers.isEmpty())
+            pages.remove(pid);
+        return changes;
+    }
+
+    /**
+     * Undoes changes on a page, the last one first.
+     */
+    private static void undo(HeapPage page, List<Change> changes) {
+        for (int i = changes.size() - 1; i >= 0; i--) {
+            Change change = changes.get(i);
+            page.restoreSlot(change.slot, change.deleted);
+        }
+    }
+}
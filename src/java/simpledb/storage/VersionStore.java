@@ -0,0 +1,155 @@
+package simpledb.storage;
+
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * VersionStore keeps the old versions of pages that snapshot transactions
+ * (MVCC) still read. Every commit gets a timestamp; a snapshot sees the
+ * database as of the last commit before it began.
+ * <p>
+ * The versions are the before images the pages already carry: before a
+ * commit makes its pages the new committed ones, their before images are
+ * preserved here, and the commit then files them under its timestamp.
+ * A snapshot with timestamp s reads a page from the oldest version filed
+ * after s, else from a version preserved by a commit still in flight,
+ * else from the page's own before image, its last committed state.
+ * Pages written to disk before their transaction commits (stolen or
+ * appended) are preserved the same way, so snapshots never read them.
+ * <p>
+ * Versions are only kept while a snapshot that needs them is active.
+ * A commit that finds no active snapshot preserves nothing; snapshots
+ * that begin meanwhile wait for it to finish.
+ *
+ * @Threadsafe
+ */
+class VersionStore {
+    private final ConcurrentHashMap<TransactionId, Long> snapshots = new ConcurrentHashMap<>(); // snapshot trx -> its timestamp
+    private final TreeMap<Long, Integer> active = new TreeMap<>();             // snapshot timestamps in use -> trx count
+    private final Map<PageId, TreeMap<Long, Page>> versions = new HashMap<>(); // page -> commit timestamp -> image it replaced
+    private final Map<PageId, Page> preserved = new HashMap<>();               // committed images of pages being changed
+    private final Map<TransactionId, List<PageId>> preservedBy = new HashMap<>();
+    private long clock;                                                        // timestamp of the last commit
+    private int unversionedCommits;                                            // commits in flight that preserve nothing
+
+    /**
+     * Begins a snapshot transaction, waiting for commits in flight that
+     * preserve no versions.
+     *
+     * @return the snapshot timestamp
+     */
+    synchronized long begin(TransactionId tid) throws InterruptedException {
+        while (unversionedCommits > 0)
+            wait();
+        snapshots.put(tid, clock);
+        active.merge(clock, 1, Integer::sum);
+        return clock;
+    }
+
+    /**
+     * @return the timestamp of the snapshot transaction, null if tid is not one
+     */
+    Long snapshotOf(TransactionId tid) {
+        return snapshots.get(tid);
+    }
+
+    /**
+     * Ends a snapshot transaction and drops the versions no other snapshot
+     * needs any more.
+     */
+    synchronized void end(TransactionId tid) {
+        Long snapshot = snapshots.remove(tid);
+        if (snapshot == null)
+            return;
+        active.computeIfPresent(snapshot, (k, n) -> n > 1 ? n - 1 : null);
+        long oldest = active.isEmpty() ? Long.MAX_VALUE : active.firstKey();
+        for (Iterator<TreeMap<Long, Page>> it = versions.values().iterator(); it.hasNext(); ) {
+            TreeMap<Long, Page> chain = it.next();
+            chain.headMap(oldest, true).clear();                    // only snapshots older than a commit read its version
+            if (chain.isEmpty())
+                it.remove();
+        }
+    }
+
+    /**
+     * Starts a commit of tid.
+     *
+     * @return true if the commit has to preserve the before images of its
+     * pages before it installs them, false if no snapshot could read them
+     */
+    synchronized boolean beginCommit() {
+        if (!active.isEmpty())
+            return true;
+        unversionedCommits++;
+        return false;
+    }
+
+    /**
+     * Preserves the committed image of a page tid is about to make visible
+     * to transactions that read it from the pool or the disk. Only the first
+     * image preserved for a page counts.
+     *
+     * @param image the page as of the last commit
+     */
+    synchronized void preserve(TransactionId tid, Page image) {
+        PageId pid = image.getId();
+        if (preserved.putIfAbsent(pid, image) == null)
+            preservedBy.computeIfAbsent(tid, k -> new ArrayList<>()).add(pid);
+    }
+
+    /**
+     * Ends the commit of tid: gives it the next timestamp and files the
+     * images it preserved under it.
+     *
+     * @param versioned what {@link #beginCommit} returned
+     */
+    synchronized void endCommit(TransactionId tid, boolean versioned) {
+        long timestamp = ++clock;
+        List<PageId> pids = preservedBy.remove(tid);
+        if (pids != null) {
+            for (PageId pid : pids) {
+                Page image = preserved.remove(pid);
+                if (!active.isEmpty())
+                    versions.computeIfAbsent(pid, k -> new TreeMap<>()).put(timestamp, image);
+            }
+        }
+        if (!versioned && --unversionedCommits == 0)
+            notifyAll();
+    }
+
+    /**
+     * Drops the images preserved for an aborted transaction, once its pages
+     * are restored.
+     */
+    synchronized void abort(TransactionId tid) {
+        List<PageId> pids = preservedBy.remove(tid);
+        if (pids != null) {
+            for (PageId pid : pids)
+                preserved.remove(pid);
+        }
+    }
+
+    /**
+     * @param page     the page as cached or read from disk
+     * @param snapshot the snapshot timestamp
+     * @return the page as of the snapshot
+     */
+    Page asOf(Page page, long snapshot) {
+        Page current = page.getBeforeImage();                        // a commit changing it since leaves a version
+        synchronized (this) {
+            TreeMap<Long, Page> chain = versions.get(page.getId());
+            Map.Entry<Long, Page> version = chain == null ? null : chain.higherEntry(snapshot);
+            if (version != null)
+                return version.getValue();
+            Page image = preserved.get(page.getId());
+            return image != null ? image : current;
+        }
+    }
+}
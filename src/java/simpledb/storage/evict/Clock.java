@@ -0,0 +1,72 @@
+package simpledb.storage.evict;
+
+import simpledb.common.DbException;
+import simpledb.storage.Page;
+import simpledb.storage.PageId;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * @author Hu Zirui
+ * @version 1.0.0
+ * @ClassName Clock.java
+ * @Description CLOCK (second chance) replacement. A hit only sets the reference bit of the page; the hand sweeps the
+ * ring from its head, giving referenced pages a second chance and stopping at the first clean, unpinned and unreferenced page.
+ * When the sweeps find none, the first stealable dirty page in ring order is chosen.
+ * @createTime 2022年05月07日 17:20:00
+ */
+public class Clock implements EvictStrategy {
+    private final LinkedHashMap<PageId, Boolean> ring;                // page -> reference bit, head is the clock hand
+
+    public Clock() {
+        ring = new LinkedHashMap<>();
+    }
+
+    @Override
+    public synchronized void recordAccess(PageId pageId) {
+        ring.put(pageId, Boolean.TRUE);                             // keeps its position in the ring if already there
+    }
+
+    @Override
+    public synchronized void recordColdAccess(PageId pageId) {
+        ring.putIfAbsent(pageId, Boolean.FALSE);                    // enters the ring without a reference bit
+    }
+
+    @Override
+    public synchronized void remove(PageId pageId) {
+        ring.remove(pageId);
+    }
+
+    @Override
+    public synchronized PageId getEvictPageId(ConcurrentHashMap<PageId, Page> pages, Set<PageId> pinned,
+                                              Predicate<Page> stealable) throws DbException {
+        // two sweeps: the first one may only clear reference bits
+        int steps = 2 * ring.size();
+        while (steps-- > 0 && !ring.isEmpty()) {
+            Iterator<Map.Entry<PageId, Boolean>> hand = ring.entrySet().iterator();
+            Map.Entry<PageId, Boolean> entry = hand.next();
+            PageId pageId = entry.getKey();
+            boolean referenced = entry.getValue();
+            hand.remove();
+            Page page = pages.get(pageId);
+            if (page == null)                                       // stale entry, the page has already left the bp
+                continue;
+            if (!referenced && page.isDirty() == null && !pinned.contains(pageId)) {
+                ring.put(pageId, Boolean.FALSE);                    // stays tracked until the bp discards it
+                return pageId;
+            }
+            ring.put(pageId, Boolean.FALSE);                        // second chance: clear the bit and move behind the hand
+        }
+        for (PageId pageId : ring.keySet()) {                       // no clean page left, steal the next dirty one
+            Page page = pages.get(pageId);
+            if (page != null && !pinned.contains(pageId) && stealable.test(page))
+                return pageId;
+        }
+        throw new DbException("all pages in bufferpool are dirty or pinned");
+    }
+}
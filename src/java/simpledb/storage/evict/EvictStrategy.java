@@ -4,17 +4,31 @@ import simpledb.common.DbException;
 import simpledb.storage.Page;
 import simpledb.storage.PageId;
 
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
 
 /**
  * @author Hu Zirui
  * @version 1.0.0
  * @ClassName EvictStrategy.java
- * @Description TODO
+ * @Description Page replacement policy of the BufferPool. Each strategy keeps its own bookkeeping of the
+ * resident pages, so that choosing a victim never has to scan the whole pool. Victims must be unpinned and clean,
+ * unless the BufferPool steals: then a dirty page it accepts may be chosen when no clean page is left.
  * @createTime 2022年05月07日 17:06:00
  */
 public interface EvictStrategy {
 
-    PageId getEvictPageId(ConcurrentHashMap<PageId, Page> pages) throws DbException;                    // return the pageid which is to be evicted
+    void recordAccess(PageId pageId);                                                                   // page was loaded into or hit in the bp
+
+    void recordColdAccess(PageId pageId);                                                               // page was read by a bulk scan, evict it first
+
+    void remove(PageId pageId);                                                                         // page left the bp (evicted or discarded)
+
+    default PageId getEvictPageId(ConcurrentHashMap<PageId, Page> pages, Set<PageId> pinned) throws DbException { // return the pageid which is to be evicted
+        return getEvictPageId(pages, pinned, page -> false);
+    }
+
+    PageId getEvictPageId(ConcurrentHashMap<PageId, Page> pages, Set<PageId> pinned, Predicate<Page> stealable) throws DbException; // a clean page, else a stealable dirty one
 
 }
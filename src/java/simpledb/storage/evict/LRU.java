@@ -1,37 +1,81 @@
 package simpledb.storage.evict;
 
-import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.storage.Page;
 import simpledb.storage.PageId;
 
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
 
 /**
  * @author Hu Zirui
  * @version 1.0.0
- * @ClassName FIFO.java
- * @Description TODO
+ * @ClassName LRU.java
+ * @Description Least recently used replacement. Resident pages are kept in an access-ordered list, so a hit is an
+ * O(1) move-to-tail and the victim is the first clean, unpinned page from the head of the list. Pages only read by
+ * bulk scans wait in a separate cold list that is searched before the access list. Dirty pages are only stolen when
+ * neither list has a clean victim.
  * @createTime 2022年05月07日 17:17:00
  */
 public class LRU implements EvictStrategy {
+    private final LinkedHashMap<PageId, Boolean> accessList;          // head is the least recently used page
+    private final LinkedHashSet<PageId> coldList;                     // pages only touched by bulk scans
+
+    public LRU() {
+        accessList = new LinkedHashMap<>(16, 0.75f, true);
+        coldList = new LinkedHashSet<>();
+    }
 
     @Override
-    public PageId getEvictPageId(ConcurrentHashMap<PageId, Page> pages) throws DbException {
-        Page exictPage = null;
-        boolean isAllDirty = true;
-        for (Page page : pages.values()) {
-            if (page.isDirty() != null) {                           // flush dirty page to disk
-                Database.getBufferPool().flushPage(page.getId());
-            }
-            if (exictPage == null || page.getLastAccessedTime() < exictPage.getLastAccessedTime()) {        // find satisfying page
-                exictPage = page;
-                isAllDirty = false;
+    public synchronized void recordAccess(PageId pageId) {
+        coldList.remove(pageId);
+        accessList.put(pageId, Boolean.TRUE);
+    }
+
+    @Override
+    public synchronized void recordColdAccess(PageId pageId) {
+        if (!accessList.containsKey(pageId))                        // a bulk scan never promotes a hot page
+            coldList.add(pageId);
+    }
+
+    @Override
+    public synchronized void remove(PageId pageId) {
+        coldList.remove(pageId);
+        accessList.remove(pageId);
+    }
+
+    @Override
+    public synchronized PageId getEvictPageId(ConcurrentHashMap<PageId, Page> pages, Set<PageId> pinned,
+                                              Predicate<Page> stealable) throws DbException {
+        Predicate<Page> clean = page -> page.isDirty() == null;
+        PageId victim = findVictim(coldList.iterator(), pages, pinned, clean);
+        if (victim == null)
+            victim = findVictim(accessList.keySet().iterator(), pages, pinned, clean);
+        if (victim == null)
+            victim = findVictim(coldList.iterator(), pages, pinned, stealable);
+        if (victim == null)
+            victim = findVictim(accessList.keySet().iterator(), pages, pinned, stealable);
+        if (victim == null)
+            throw new DbException("all pages in bufferpool are dirty or pinned");
+        return victim;
+    }
+
+    private PageId findVictim(Iterator<PageId> iterator, ConcurrentHashMap<PageId, Page> pages, Set<PageId> pinned,
+                              Predicate<Page> evictable) {
+        while (iterator.hasNext()) {
+            PageId pageId = iterator.next();
+            Page page = pages.get(pageId);
+            if (page == null) {                                     // stale entry, the page has already left the bp
+                iterator.remove();
+                continue;
             }
+            if (!pinned.contains(pageId) && evictable.test(page))
+                return pageId;
         }
-        if (isAllDirty) {
-            throw new DbException("all dirty page in bufferpool");
-        }
-        return exictPage.getId();
+        return null;
     }
 }
@@ -3,6 +3,7 @@ package simpledb.transaction;
 import simpledb.common.Database;
 
 import java.io.IOException;
+import java.util.concurrent.locks.Lock;
 
 /**
  * Transaction encapsulates information about the state of
@@ -12,6 +13,7 @@ import java.io.IOException;
 public class Transaction {
     private final TransactionId tid;
     volatile boolean started = false;
+    private long snapshot = -1;                 // snapshot timestamp, -1 unless a snapshot transaction
 
     public Transaction() {
         tid = new TransactionId();
@@ -29,6 +31,23 @@ public class Transaction {
         }
     }
 
+    /**
+     * Start the transaction running as a read-only snapshot: it reads the
+     * database as of the last commit before it started, without taking
+     * locks, and cannot write.
+     */
+    public void startSnapshot() throws TransactionAbortedException {
+        snapshot = Database.getBufferPool().beginSnapshot(tid);
+        started = true;
+    }
+
+    /**
+     * @return the snapshot timestamp, or -1 unless started with {@link #startSnapshot}
+     */
+    public long getSnapshotTimestamp() {
+        return snapshot;
+    }
+
     public TransactionId getId() {
         return tid;
     }
@@ -52,18 +71,30 @@ public class Transaction {
      */
     public void transactionComplete(boolean abort) throws IOException {
 
-        if (started) {
+        if (started && snapshot >= 0) {       // nothing to log or roll back
+            Database.getBufferPool().transactionComplete(tid, !abort);
+            started = false;
+        } else if (started) {
             //write abort log record and rollback transaction
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             }
 
-            // Release locks and flush pages if needed
-            Database.getBufferPool().transactionComplete(tid, !abort); // release locks
+            // no checkpoint between writing or logging the pages and the commit record
+            Lock commitLock = Database.getLogFile().getCommitLock();
+            if (!abort)
+                commitLock.lock();
+            try {
+                // Release locks and flush pages if needed
+                Database.getBufferPool().transactionComplete(tid, !abort); // release locks
 
-            // write commit log record
-            if (!abort) {
-                Database.getLogFile().logCommit(tid);
+                // write commit log record
+                if (!abort) {
+                    Database.getLogFile().logCommit(tid);
+                }
+            } finally {
+                if (!abort)
+                    commitLock.unlock();
             }
 
             //setting this here means we could possibly write multiple abort records -- OK?
@@ -1,11 +1,21 @@
 package simpledb.transaction.lock;
 
 import simpledb.storage.PageId;
+import simpledb.storage.RecordId;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Hu Zirui
@@ -15,101 +25,490 @@ import java.util.concurrent.ConcurrentHashMap;
  * @createTime 2022年05月31日 11:20:00
  */
 public class LockManager {
-    private ConcurrentHashMap<PageId, ConcurrentHashMap<TransactionId, PageLock>> pageLocks;
+    /**
+     * Number of shards of the lock table, a power of two.
+     */
+    private static final int NUM_SHARDS = 16;
+
+    /**
+     * Record locks a transaction takes on one page before it tries to
+     * escalate them to a lock on the whole page, and again after every as
+     * many more while the page lock is not free.
+     */
+    public static final int ESCALATION_THRESHOLD = 32;
+
+    private final LockShard[] shards;                                   // the lock table, hashed by resource
+    private final ConcurrentHashMap<TransactionId, TransactionLocks> lockSets;  // what each trx holds a lock on
+    private final WaitsForGraph waitsFor;
+
+    /**
+     * A part of the lock table, with a latch (its monitor) of its own that
+     * is only held to look up, add or remove a lock queue. Resources are
+     * tables (by their Integer id), pages (PageId) and records (RecordId).
+     */
+    private static final class LockShard {
+        final Map<Object, LockQueue> queues = new HashMap<>();     // guarded by this
+
+        synchronized LockQueue get(Object resource) {
+            return queues.get(resource);
+        }
+
+        synchronized LockQueue getOrCreate(Object resource) {
+            return queues.computeIfAbsent(resource, k -> new LockQueue());
+        }
+
+        synchronized void remove(Object resource, LockQueue queue) {
+            queues.remove(resource, queue);
+        }
+    }
+
+    /**
+     * The locks of one resource: the transactions holding it and, in
+     * arrival order, the requests waiting for it. Guarded by its monitor,
+     * which waiters wait on.
+     */
+    private static final class LockQueue {
+        final Map<TransactionId, PageLock> holders = new HashMap<>();
+        final LinkedList<LockRequest> waiters = new LinkedList<>();
+        boolean retired;                                            // removed from its shard, look the resource up again
+    }
+
+    /**
+     * The lock set of a transaction: the resources it holds a lock on, and
+     * how many record locks it holds on each page.
+     */
+    private static final class TransactionLocks {
+        final Set<Object> resources = ConcurrentHashMap.newKeySet();
+        final ConcurrentHashMap<PageId, Integer> records = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * A waiting request of a transaction.
+     */
+    static final class LockRequest {
+        final TransactionId transactionId;
+        final Object resource;
+        final PageLock.LockType lockType;                           // the mode wanted, joined with the one held
+        final LockQueue queue;
+        boolean granted;                                            // guarded by queue
+        volatile boolean aborted;                                   // chosen as a deadlock victim
+        Set<TransactionId> blockers;                                // guarded by the WaitsForGraph
+
+        LockRequest(TransactionId transactionId, Object resource, PageLock.LockType lockType, LockQueue queue) {
+            this.transactionId = transactionId;
+            this.resource = resource;
+            this.lockType = lockType;
+            this.queue = queue;
+        }
+    }
 
     public LockManager() {
-        pageLocks = new ConcurrentHashMap<>();
+        shards = new LockShard[NUM_SHARDS];
+        for (int i = 0; i < NUM_SHARDS; i++)
+            shards[i] = new LockShard();
+        lockSets = new ConcurrentHashMap<>();
+        waitsFor = new WaitsForGraph();
     }
 
-    public LockManager(ConcurrentHashMap<PageId, ConcurrentHashMap<TransactionId, PageLock>> pageLocks) {
-        this.pageLocks = pageLocks;
+    private LockShard shardOf(Object resource) {
+        int h = resource.hashCode();
+        return shards[(h ^ (h >>> 16)) & (NUM_SHARDS - 1)];
     }
 
     /**
-     * LockManager is responsible for acquire locks, release locks and view whether dedicated page has locks
+     * LockManager is responsible for acquire locks, release locks and view whether dedicated page has locks.
+     * The page lock is taken below an intention lock on its table, unless a
+     * lock on the table already covers it.
+     * <p>
+     * A request that conflicts with the holders of a resource, or arrives
+     * behind other waiters, queues up and is granted in FIFO order as soon as
+     * it is compatible; a transaction upgrading its own lock goes first.
+     * A transaction that starts waiting is added to the waits-for graph. If
+     * that closes a cycle the youngest transaction on it is aborted, which is
+     * the only way a waiting transaction is aborted.
      *
-     * @param pageId
      * @param transactionId
+     * @param pageId
      * @param lockType
-     * @return boolean
-     * @throws TransactionAbortedException
+     * @param timeoutMillis how long to wait at most for each lock, 0 to give up at once
+     * @return true if the lock was granted, false on timeout
+     * @throws TransactionAbortedException if the transaction was chosen to break a deadlock
      * @throws InterruptedException
      */
-    public synchronized boolean acquireLock(TransactionId transactionId, PageId pageId, PageLock.LockType lockType) throws InterruptedException, TransactionAbortedException {
-        ConcurrentHashMap<TransactionId, PageLock> lockMap = pageLocks.get(pageId);
-        // if this page has no locks, we can directly put it into map
-        if (lockMap == null) {
-            PageLock pageLock = new PageLock(lockType);
-            lockMap = new ConcurrentHashMap<>();
-            lockMap.put(transactionId, pageLock);
-            pageLocks.put(pageId, lockMap);
+    public boolean acquireLock(TransactionId transactionId, PageId pageId, PageLock.LockType lockType, long timeoutMillis)
+            throws InterruptedException, TransactionAbortedException {
+        Integer table = pageId.getTableId();
+        if (coversBelow(transactionId, table, lockType))
+            return true;
+        return lock(transactionId, table, lockType.intention(), timeoutMillis)
+                && lock(transactionId, pageId, lockType, timeoutMillis);
+    }
+
+    /**
+     * Locks a record, below intention locks on its table and its page.
+     * Once a transaction holds ESCALATION_THRESHOLD record locks on the
+     * page, it asks for a lock on the whole page instead, which replaces
+     * them. Escalation never waits: while another transaction holds the
+     * page, the record is locked on its own and escalation is tried again
+     * ESCALATION_THRESHOLD records later.
+     *
+     * @param lockType SAHRE or EXCLUSIVE
+     * @return true if the lock was granted, false on timeout
+     * @see #acquireLock
+     */
+    public boolean acquireRecordLock(TransactionId transactionId, RecordId recordId, PageLock.LockType lockType,
+                                     long timeoutMillis) throws InterruptedException, TransactionAbortedException {
+        PageId pageId = recordId.getPageId();
+        Integer table = pageId.getTableId();
+        if (coversBelow(transactionId, table, lockType) || coversBelow(transactionId, pageId, lockType))
+            return true;
+        if (!lock(transactionId, table, lockType.intention(), timeoutMillis))
+            return false;
+        TransactionLocks locks = lockSets.get(transactionId);
+        int held = locks == null ? 0 : locks.records.getOrDefault(pageId, 0);
+        if (held >= ESCALATION_THRESHOLD && held % ESCALATION_THRESHOLD == 0 && escalate(transactionId, pageId, lockType, locks))
             return true;
+        return lock(transactionId, pageId, lockType.intention(), timeoutMillis)
+                && lock(transactionId, recordId, lockType, timeoutMillis);
+    }
+
+    /**
+     * Replaces the record locks of a transaction on a page with a page lock
+     * of a mode that covers them all, if it can be granted at once.
+     *
+     * @return false if another transaction holds the page
+     */
+    private boolean escalate(TransactionId transactionId, PageId pageId, PageLock.LockType lockType,
+                             TransactionLocks locks) throws InterruptedException, TransactionAbortedException {
+        List<RecordId> records = new ArrayList<>();
+        for (Object resource : locks.resources) {
+            if (resource instanceof RecordId && ((RecordId) resource).getPageId().equals(pageId))
+                records.add((RecordId) resource);
         }
-        // has locks (we need to check its type)
-        PageLock pageLock = lockMap.get(transactionId);
-        if (pageLock == null) {
-            if (lockType == PageLock.LockType.EXCLUSIVE) {
-                Thread.sleep(5);                        // sleep for a while and then return to avoid repeated compete
-                return false;
-            } else {
-                if (lockMap.size() > 1) {                   // that means there have multiple read locks in this page accessed by different trx
-                    PageLock pageLock1 = new PageLock(lockType);
-                    lockMap.put(transactionId, pageLock1);
-                    pageLocks.put(pageId, lockMap);
+        PageLock.LockType pageMode = lockType;
+        for (RecordId recordId : records) {
+            if (holderMode(transactionId, recordId) == PageLock.LockType.EXCLUSIVE)
+                pageMode = PageLock.LockType.EXCLUSIVE;
+        }
+        if (!lock(transactionId, pageId, pageMode, 0))
+            return false;
+        for (RecordId recordId : records)
+            release(transactionId, recordId, locks);
+        return true;
+    }
+
+    /**
+     * Locks a whole table, e.g. for a scan or a bulk load; no page or
+     * record lock of the table is needed while it is held.
+     *
+     * @return true if the lock was granted, false on timeout
+     * @see #acquireLock
+     */
+    public boolean acquireTableLock(TransactionId transactionId, int tableId, PageLock.LockType lockType, long timeoutMillis)
+            throws InterruptedException, TransactionAbortedException {
+        return lock(transactionId, tableId, lockType, timeoutMillis);
+    }
+
+    /**
+     * @return true if transactionId holds resource in a mode that grants lockType on everything below it
+     */
+    private boolean coversBelow(TransactionId transactionId, Object resource, PageLock.LockType lockType) {
+        PageLock.LockType held = holderMode(transactionId, resource);
+        return held != null && held.coversBelow(lockType);
+    }
+
+    /**
+     * @return the mode transactionId holds resource in, null if none
+     */
+    private PageLock.LockType holderMode(TransactionId transactionId, Object resource) {
+        LockQueue queue = shardOf(resource).get(resource);
+        if (queue == null)
+            return null;
+        synchronized (queue) {
+            PageLock pageLock = queue.holders.get(transactionId);
+            return pageLock == null ? null : pageLock.lockType;
+        }
+    }
+
+    /**
+     * Locks a single resource, upgrading the mode the transaction already
+     * holds it in to one that also grants lockType.
+     */
+    private boolean lock(TransactionId transactionId, Object resource, PageLock.LockType lockType, long timeoutMillis)
+            throws InterruptedException, TransactionAbortedException {
+        LockQueue queue;
+        LockRequest request;
+        List<LockRequest> victims;
+        while (true) {
+            queue = shardOf(resource).getOrCreate(resource);
+            synchronized (queue) {
+                if (queue.retired)
+                    continue;
+                PageLock pageLock = queue.holders.get(transactionId);
+                boolean upgrade = pageLock != null;
+                PageLock.LockType wanted = upgrade ? pageLock.lockType.join(lockType) : lockType;
+                if (upgrade && wanted == pageLock.lockType)
+                    return true;
+                if ((upgrade || queue.waiters.isEmpty()) && isCompatible(queue, transactionId, wanted)) {
+                    grant(queue, resource, transactionId, wanted);                          // w-r lock, lock upgrade
                     return true;
-                } else {                                    // only one lock , we need to check its type
-                    PageLock pageLock1 = null;
-                    Map.Entry<TransactionId, PageLock> entry = lockMap.entrySet().iterator().next();
-                    pageLock1 = entry.getValue();
-                    if (pageLock1.lockType == PageLock.LockType.EXCLUSIVE) {
-                        Thread.sleep(5);
-                        return false;
-                    }
-                    if (pageLock1.lockType == PageLock.LockType.SAHRE) {
-                        lockMap.put(transactionId, pageLock1);
-                        pageLocks.put(pageId, lockMap);
-                        return true;
-                    }
                 }
-            }
-        } else {
-            if (lockType == PageLock.LockType.SAHRE) {                                              // r-? return true directly
-                return true;
-            } else {
-                if (lockMap.size() > 1)                                                             // deadlock
+                if (timeoutMillis <= 0)
+                    return false;
+                request = new LockRequest(transactionId, resource, wanted, queue);
+                if (upgrade)
+                    enqueueUpgrade(queue, request);
+                else
+                    queue.waiters.addLast(request);
+                updateWaitsFor(queue);
+                victims = waitsFor.abortVictim(transactionId);
+                if (request.aborted) {                                                      // deadlock, we are the youngest
+                    dequeue(queue, request);
                     throw new TransactionAbortedException();
-                if (pageLock.lockType == PageLock.LockType.EXCLUSIVE)                               // w-w lock return true
-                    return true;
-                if (pageLock.lockType == PageLock.LockType.SAHRE) {                                 // w-r lock, lock upgrade
-                    PageLock pageLock1 = new PageLock(PageLock.LockType.EXCLUSIVE);
-                    lockMap.put(transactionId, pageLock1);
-                    pageLocks.put(pageId, lockMap);
                 }
+                break;
             }
         }
+        for (LockRequest victim : victims) {                                                // wake the victim up to abort
+            synchronized (victim.queue) {
+                victim.queue.notifyAll();
+            }
+        }
+        return await(request, timeoutMillis);
+    }
+
+    /**
+     * Queues an upgrade ahead of every other waiter but earlier upgrades:
+     * the upgrading transaction already holds the resource, so the others
+     * wait for it anyway.
+     */
+    private static void enqueueUpgrade(LockQueue queue, LockRequest request) {
+        ListIterator<LockRequest> it = queue.waiters.listIterator();
+        while (it.hasNext()) {
+            if (!queue.holders.containsKey(it.next().transactionId)) {
+                it.previous();
+                break;
+            }
+        }
+        it.add(request);
+    }
+
+    private boolean await(LockRequest request, long timeoutMillis)
+            throws InterruptedException, TransactionAbortedException {
+        LockQueue queue = request.queue;
+        synchronized (queue) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            try {
+                long nanos;
+                while (!request.granted && !request.aborted && (nanos = deadline - System.nanoTime()) > 0)
+                    TimeUnit.NANOSECONDS.timedWait(queue, nanos);
+            } finally {
+                if (!request.granted)                                                       // aborted, timed out or interrupted
+                    dequeue(queue, request);
+            }
+            if (request.granted)
+                return true;
+            if (request.aborted)
+                throw new TransactionAbortedException();
+            return false;
+        }
+    }
+
+    /**
+     * Removes a request that gives up waiting. The caller holds the monitor
+     * of queue.
+     */
+    private void dequeue(LockQueue queue, LockRequest request) {
+        queue.waiters.remove(request);
+        waitsFor.remove(request);
+        grantWaiters(queue);                                                                // those behind may fit now
+        updateWaitsFor(queue);
+    }
+
+    /**
+     * @return true if transactionId can hold the resource in lockType, given the other holders
+     */
+    private static boolean isCompatible(LockQueue queue, TransactionId transactionId, PageLock.LockType lockType) {
+        for (Map.Entry<TransactionId, PageLock> holder : queue.holders.entrySet()) {
+            if (!holder.getKey().equals(transactionId) && !holder.getValue().lockType.isCompatibleWith(lockType))
+                return false;
+        }
         return true;
     }
 
-    public synchronized void releaseLock(TransactionId transactionId, PageId pageId) {
-        ConcurrentHashMap<TransactionId, PageLock> lockMap = pageLocks.get(pageId);
-        if (lockMap != null) {
-            PageLock lock = lockMap.get(transactionId);
-            if (lock != null)
-                lockMap.remove(transactionId);
-            if (lockMap.size() == 0)
-                pageLocks.remove(pageId);
+    /**
+     * Grants the waiters at the head of the queue that are compatible with
+     * the holders, stopping at the first that is not, and wakes them up.
+     * The caller holds the monitor of queue.
+     */
+    private void grantWaiters(LockQueue queue) {
+        boolean granted = false;
+        while (!queue.waiters.isEmpty()) {
+            LockRequest request = queue.waiters.getFirst();
+            if (!isCompatible(queue, request.transactionId, request.lockType))
+                break;
+            queue.waiters.removeFirst();
+            grant(queue, request.resource, request.transactionId, request.lockType);
+            request.granted = true;
+            waitsFor.remove(request);
+            granted = true;
+        }
+        if (granted)
+            queue.notifyAll();
+    }
+
+    /**
+     * Makes transactionId a holder of the resource and records it in its
+     * lock set. The caller holds the monitor of queue.
+     */
+    private void grant(LockQueue queue, Object resource, TransactionId transactionId, PageLock.LockType lockType) {
+        queue.holders.put(transactionId, new PageLock(lockType));
+        TransactionLocks locks = lockSets.computeIfAbsent(transactionId, k -> new TransactionLocks());
+        if (locks.resources.add(resource) && resource instanceof RecordId)
+            locks.records.merge(((RecordId) resource).getPageId(), 1, Integer::sum);
+    }
+
+    /**
+     * Recomputes whom the waiters of queue wait for: the holders they
+     * conflict with and the conflicting waiters ahead of them. The caller
+     * holds the monitor of queue.
+     */
+    private void updateWaitsFor(LockQueue queue) {
+        List<LockRequest> ahead = new ArrayList<>();
+        for (LockRequest request : queue.waiters) {
+            Set<TransactionId> blockers = new HashSet<>();
+            for (Map.Entry<TransactionId, PageLock> holder : queue.holders.entrySet()) {
+                if (!holder.getValue().lockType.isCompatibleWith(request.lockType))
+                    blockers.add(holder.getKey());
+            }
+            for (LockRequest other : ahead) {
+                if (!other.lockType.isCompatibleWith(request.lockType))
+                    blockers.add(other.transactionId);
+            }
+            blockers.remove(request.transactionId);
+            waitsFor.setBlockers(request, blockers);
+            ahead.add(request);
         }
     }
 
-    public synchronized boolean holdsLock(TransactionId transactionId, PageId pageId) {
-        return pageLocks.containsKey(pageId) && pageLocks.get(pageId) != null && pageLocks.get(pageId).containsKey(transactionId);
+    /**
+     * Releases the lock of the transaction on the page, its record locks on
+     * the page and, if it holds nothing else in the table, its table lock.
+     */
+    public void releaseLock(TransactionId transactionId, PageId pageId) {
+        TransactionLocks locks = lockSets.get(transactionId);
+        if (locks != null) {
+            for (Object resource : locks.resources) {
+                if (resource instanceof RecordId && ((RecordId) resource).getPageId().equals(pageId))
+                    release(transactionId, resource, locks);
+            }
+        }
+        release(transactionId, pageId, locks);
+        if (locks == null || !holdsBelow(locks, pageId.getTableId()))
+            release(transactionId, pageId.getTableId(), locks);
     }
 
+    /**
+     * @return true if the lock set has a page or a record of the table
+     */
+    private static boolean holdsBelow(TransactionLocks locks, int tableId) {
+        for (Object resource : locks.resources) {
+            if (resource instanceof RecordId)
+                resource = ((RecordId) resource).getPageId();
+            if (resource instanceof PageId && ((PageId) resource).getTableId() == tableId)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param locks the lock set to remove the resource from, null if there is none
+     */
+    private void release(TransactionId transactionId, Object resource, TransactionLocks locks) {
+        LockShard shard = shardOf(resource);
+        LockQueue queue = shard.get(resource);
+        if (queue == null)
+            return;
+        synchronized (queue) {
+            if (queue.holders.remove(transactionId) != null) {
+                if (locks != null && locks.resources.remove(resource) && resource instanceof RecordId)
+                    locks.records.computeIfPresent(((RecordId) resource).getPageId(), (k, n) -> n > 1 ? n - 1 : null);
+                grantWaiters(queue);
+                updateWaitsFor(queue);
+            }
+            if (queue.holders.isEmpty() && queue.waiters.isEmpty() && !queue.retired) {
+                queue.retired = true;
+                shard.remove(resource, queue);
+            }
+        }
+    }
+
+    /**
+     * @return true if the transaction holds a lock on the page, or one on its table that covers it
+     */
+    public boolean holdsLock(TransactionId transactionId, PageId pageId) {
+        return holderMode(transactionId, pageId) != null
+                || coversBelow(transactionId, pageId.getTableId(), PageLock.LockType.SAHRE);
+    }
+
+    /**
+     * @return true if the transaction holds the page, or its table, exclusively
+     */
+    public boolean holdsExclusively(TransactionId transactionId, PageId pageId) {
+        return holderMode(transactionId, pageId) == PageLock.LockType.EXCLUSIVE
+                || holderMode(transactionId, pageId.getTableId()) == PageLock.LockType.EXCLUSIVE;
+    }
+
+    /**
+     * @return true if another transaction holds a lock on the page, or a shared or exclusive one on its table
+     */
+    public boolean isLockedByOthers(TransactionId transactionId, PageId pageId) {
+        LockQueue queue = shardOf(pageId).get(pageId);
+        if (queue != null) {
+            synchronized (queue) {
+                if (queue.holders.size() > (queue.holders.containsKey(transactionId) ? 1 : 0))
+                    return true;
+            }
+        }
+        Integer table = pageId.getTableId();
+        queue = shardOf(table).get(table);
+        if (queue == null)
+            return false;
+        synchronized (queue) {
+            for (Map.Entry<TransactionId, PageLock> holder : queue.holders.entrySet()) {
+                if (!holder.getKey().equals(transactionId) && holder.getValue().lockType.coversBelow(PageLock.LockType.SAHRE))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Releases every lock of the transaction, visiting only the resources in
+     * its lock set.
+     */
     public void releaseAll(TransactionId transactionId) {
-        ConcurrentHashMap.KeySetView<PageId, ConcurrentHashMap<TransactionId, PageLock>> pageIds = pageLocks.keySet();
-        for (PageId pageId : pageIds) {
-            releaseLock(transactionId, pageId);
+        TransactionLocks locks = lockSets.remove(transactionId);
+        if (locks == null)
+            return;
+        for (Object resource : locks.resources) {
+            release(transactionId, resource, null);
+        }
+    }
+
+    /**
+     * @return the pages the transaction holds a lock on, intention locks included
+     */
+    public Set<PageId> getLockedPages(TransactionId transactionId) {
+        TransactionLocks locks = lockSets.get(transactionId);
+        if (locks == null)
+            return Collections.emptySet();
+        Set<PageId> pages = new HashSet<>();
+        for (Object resource : locks.resources) {
+            if (resource instanceof PageId)
+                pages.add((PageId) resource);
         }
+        return Collections.unmodifiableSet(pages);
     }
 
 }
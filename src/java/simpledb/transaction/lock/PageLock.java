@@ -23,7 +23,54 @@ public class PageLock {
                 '}';
     }
 
+    /**
+     * Lock modes of the hierarchy table -> page -> record. A transaction
+     * takes an intention lock on the table and the page before it locks a
+     * record shared (INTENTION_SHARE) or exclusively (INTENTION_EXCLUSIVE).
+     */
     public enum LockType {
-        EXCLUSIVE, SAHRE
+        EXCLUSIVE, SAHRE, INTENTION_SHARE, INTENTION_EXCLUSIVE;
+
+        /**
+         * @return true if two transactions can hold the same resource in this mode and other
+         */
+        public boolean isCompatibleWith(LockType other) {
+            switch (this) {
+                case INTENTION_SHARE:
+                    return other != EXCLUSIVE;
+                case INTENTION_EXCLUSIVE:
+                    return other == INTENTION_SHARE || other == INTENTION_EXCLUSIVE;
+                case SAHRE:
+                    return other == INTENTION_SHARE || other == SAHRE;
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * @return the weakest mode that grants both this mode and other; S and
+         * IX join to X since there is no SIX mode
+         */
+        public LockType join(LockType other) {
+            if (this == other || other == INTENTION_SHARE)
+                return this;
+            if (this == INTENTION_SHARE)
+                return other;
+            return EXCLUSIVE;
+        }
+
+        /**
+         * @return true if holding this mode on a resource grants other on everything below it
+         */
+        public boolean coversBelow(LockType other) {
+            return this == EXCLUSIVE || (this == SAHRE && other.intention() == INTENTION_SHARE);
+        }
+
+        /**
+         * @return the intention mode to hold on the parents of a resource locked in this mode
+         */
+        public LockType intention() {
+            return this == SAHRE || this == INTENTION_SHARE ? INTENTION_SHARE : INTENTION_EXCLUSIVE;
+        }
     }
 }
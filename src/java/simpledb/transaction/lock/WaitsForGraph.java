@@ -0,0 +1,88 @@
+package simpledb.transaction.lock;
+
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * @author Hu Zirui
+ * @version 1.0.0
+ * @ClassName WaitsForGraph.java
+ * @Description The waits-for graph of the LockManager: an edge from every
+ * waiting transaction to each transaction it waits for. A transaction that
+ * starts waiting checks whether it closed a cycle; if so, the youngest
+ * transaction of the cycle is chosen as the victim and aborted.
+ * @createTime 2022年06月02日 10:00:00
+ */
+class WaitsForGraph {
+    private final Map<TransactionId, Set<LockManager.LockRequest>> waiting = new HashMap<>();   // guarded by this
+
+    /**
+     * Sets the transactions a waiting request waits for. The caller holds
+     * the monitor of the request's lock queue.
+     */
+    synchronized void setBlockers(LockManager.LockRequest request, Set<TransactionId> blockers) {
+        if (request.aborted)
+            return;
+        request.blockers = blockers;
+        waiting.computeIfAbsent(request.transactionId, k -> new HashSet<>()).add(request);
+    }
+
+    /**
+     * Removes a request that was granted or gave up waiting.
+     */
+    synchronized void remove(LockManager.LockRequest request) {
+        Set<LockManager.LockRequest> requests = waiting.get(request.transactionId);
+        if (requests != null && requests.remove(request) && requests.isEmpty())
+            waiting.remove(request.transactionId);
+    }
+
+    /**
+     * Looks for a cycle through transactionId, which just started waiting.
+     * If there is one, the youngest transaction on it is the victim: its
+     * requests are marked aborted and leave the graph, which breaks the
+     * cycle. The caller wakes the victim's requests up.
+     *
+     * @return the requests of the victim, empty if there is no cycle
+     */
+    synchronized List<LockManager.LockRequest> abortVictim(TransactionId transactionId) {
+        List<TransactionId> cycle = new ArrayList<>();
+        if (!findCycle(transactionId, transactionId, new HashSet<>(), cycle))
+            return new ArrayList<>();
+        TransactionId victim = transactionId;
+        for (TransactionId member : cycle) {
+            if (member.getId() > victim.getId())
+                victim = member;
+        }
+        List<LockManager.LockRequest> requests = new ArrayList<>(waiting.remove(victim));
+        for (LockManager.LockRequest request : requests)
+            request.aborted = true;
+        return requests;
+    }
+
+    /**
+     * Depth-first search for a path from current back to start.
+     *
+     * @param path the transactions on the path so far, the cycle once found
+     */
+    private boolean findCycle(TransactionId start, TransactionId current, Set<TransactionId> visited,
+                              List<TransactionId> path) {
+        Set<LockManager.LockRequest> requests = waiting.get(current);
+        if (requests == null || !visited.add(current))
+            return false;
+        path.add(current);
+        for (LockManager.LockRequest request : requests) {
+            for (TransactionId blocker : request.blockers) {
+                if (blocker.equals(start) || findCycle(start, blocker, visited, path))
+                    return true;
+            }
+        }
+        path.remove(path.size() - 1);
+        return false;
+    }
+}
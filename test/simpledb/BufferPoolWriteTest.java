@@ -5,7 +5,9 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.locks.Lock;
 
 import org.junit.After;
 import org.junit.Before;
@@ -16,9 +18,11 @@ import simpledb.common.DbException;
 import simpledb.common.Permissions;
 import simpledb.common.Utility;
 import simpledb.storage.*;
+import simpledb.storage.evict.LRU;
 import simpledb.systemtest.SystemTestUtil;
 import static org.junit.Assert.*;
 import junit.framework.JUnit4TestAdapter;
+import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionId;
 
 public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
@@ -140,6 +144,203 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	assertEquals(10, count);
     }
 
+    /**
+     * With the page writer running, a commit leaves its pages in the pool
+     * and the writer puts them on disk later.
+     */
+    @Test public void pageWriterWritesCommittedPages() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        bp.startPageWriter(8, 60000);           // no round runs during the test
+        try {
+            for (int i = 0; i < 10; ++i)
+                bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+            bp.transactionComplete(tid, true);
+            HeapPageId pid = new HeapPageId(empty.getId(), 0);
+            assertEquals(504, ((HeapPage) empty.readPage(pid)).getNumEmptySlots());
+            TransactionId reader = new TransactionId();
+            assertNull(bp.getPage(reader, pid, Permissions.READ_ONLY).isDirty());
+            bp.transactionComplete(reader);
+
+            assertEquals(1, bp.writeCommittedPages(8));
+            assertEquals(504 - 10, ((HeapPage) empty.readPage(pid)).getNumEmptySlots());
+            assertEquals(0, bp.writeCommittedPages(8));
+        } finally {
+            bp.stopPageWriter();
+        }
+    }
+
+    /**
+     * A checkpoint waits for a committing transaction to write its commit
+     * record.
+     */
+    @Test public void checkpointWaitsForCommit() throws Exception {
+        Lock commitLock = Database.getLogFile().getCommitLock();
+        commitLock.lock();                      // a commit in progress
+        Thread checkpoint = new Thread(() -> {
+            try {
+                Database.getLogFile().logCheckpoint();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        try {
+            checkpoint.start();
+            checkpoint.join(100);
+            assertTrue(checkpoint.isAlive());
+        } finally {
+            commitLock.unlock();
+        }
+        checkpoint.join(10000);
+        assertFalse(checkpoint.isAlive());
+    }
+
+    /**
+     * Pages fetched for writing stay in the dirty page table until they are
+     * written, with the LSN the log was at when they were first fetched.
+     */
+    @Test public void dirtyPageTable() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        HeapPageId pid = new HeapPageId(empty.getId(), 0);
+        long lsn = Database.getLogFile().getNextLsn();
+        bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(1, 2));
+        assertEquals(Collections.singletonMap(pid, lsn), bp.getDirtyPageTable());
+        bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(2, 2));
+        assertEquals(Collections.singletonMap(pid, lsn), bp.getDirtyPageTable());
+        bp.transactionComplete(tid, true);
+        assertTrue(bp.getDirtyPageTable().isEmpty());
+
+        TransactionId reader = new TransactionId();
+        bp.getPage(reader, pid, Permissions.READ_WRITE);
+        assertTrue(bp.getDirtyPageTable().containsKey(pid));
+        bp.transactionComplete(reader, false);          // never dirtied it
+        assertTrue(bp.getDirtyPageTable().isEmpty());
+    }
+
+    /**
+     * A page reported dirty through unpin joins the write set, so an abort
+     * restores it.
+     */
+    @Test public void unpinDirtyPage() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        HeapPageId pid = new HeapPageId(empty.getId(), 0);
+        bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(1, 2));
+        bp.transactionComplete(tid, true);
+
+        TransactionId writer = new TransactionId();
+        HeapPage page = (HeapPage) bp.pinPage(writer, pid, Permissions.READ_ONLY);
+        page.deleteTuple(page.iterator().next());
+        bp.unpin(writer, pid, true);
+        assertTrue(bp.getDirtyPageTable().containsKey(pid));
+        bp.transactionComplete(writer, false);
+
+        HeapPage restored = (HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY);
+        assertTrue(restored.iterator().hasNext());
+    }
+
+    /**
+     * Shrinking evicts clean pages at once and keeps dirty and pinned ones
+     * until they can go; growing makes room for more pages.
+     */
+    @Test public void resize() throws Exception {
+        BufferPool bp = Database.resetBufferPool(10);
+        bp.setReadAheadWindow(0);
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 12, null, null);
+        for (int i = 0; i < 10; i++)
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+        assertEquals(10, bp.getNumCachedPages());
+
+        TransactionId writer = new TransactionId();
+        List<Page> dirty = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            HeapPage page = (HeapPage) bp.getPage(writer, new HeapPageId(hf.getId(), i), Permissions.READ_WRITE);
+            bp.deleteTuple(writer, page.iterator().next());
+            dirty.add(page);
+        }
+        TransactionId pinner = new TransactionId();
+        HeapPageId pinned = new HeapPageId(hf.getId(), 2);
+        bp.pinPage(pinner, pinned, Permissions.READ_ONLY);
+
+        bp.resize(2);
+        assertEquals(2, bp.getNumPages());
+        assertEquals(3, bp.getNumCachedPages());              // the dirty and the pinned pages stay
+        for (Page page : dirty)
+            assertSame(page, bp.getPage(writer, page.getId(), Permissions.READ_ONLY));
+        assertEquals(1, bp.getPinCount(pinned));
+
+        bp.transactionComplete(writer);
+        bp.unpin(pinner, pinned, false);
+        bp.transactionComplete(pinner);
+        bp.getPage(tid, new HeapPageId(hf.getId(), 5), Permissions.READ_ONLY);
+        assertTrue(bp.getNumCachedPages() <= 2);              // the miss drained the excess
+
+        bp.resize(8);
+        for (int i = 0; i < 8; i++)
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        assertEquals(8, bp.getNumCachedPages());
+    }
+
+    /**
+     * Under STEAL a transaction can dirty more pages than the pool holds,
+     * and an abort still restores every one of them.
+     */
+    @Test public void stealDirtyPages() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 6, null, null);
+        List<Tuple> tuples = new ArrayList<>();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext())
+            tuples.add(it.next());
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+
+        BufferPool bp = Database.resetBufferPool(4);
+        bp.setSteal(true);
+        Transaction t = new Transaction();
+        t.start();
+        for (Tuple tup : tuples)
+            bp.deleteTuple(t.getId(), tup);
+        t.abort();
+
+        TransactionId reader = new TransactionId();
+        it = hf.iterator(reader);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        bp.transactionComplete(reader);
+        assertEquals(504 * 6, count);
+    }
+
+    /**
+     * An off-heap pool reads HeapFile pages into its frames and copies them
+     * back to the heap when they are evicted, so pages handed out earlier
+     * stay valid while their frames are reused.
+     */
+    @Test public void offHeapFrames() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, null);
+        BufferPool bp = new BufferPool(2, 1, LRU::new, true);
+        List<HeapPage> pages = new ArrayList<>();
+        for (int i = 0; i < 4; ++i) {
+            HeapPageId pid = new HeapPageId(hf.getId(), i);
+            HeapPage p = (HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY);
+            assertArrayEquals(hf.readPage(pid).getPageData(), p.getPageData());
+            pages.add(p);
+        }
+        for (int i = 0; i < 4; ++i)
+            assertArrayEquals(hf.readPage(pages.get(i).getId()).getPageData(), pages.get(i).getPageData());
+
+        HeapPage p = pages.get(3);
+        p.deleteTuple(p.iterator().next());
+        p.markDirty(true, tid);
+        bp.flushPage(p.getId());
+        assertEquals(1, ((HeapPage) hf.readPage(p.getId())).getNumEmptySlots());
+        bp.transactionComplete(tid);
+    }
+
     /**
      * JUnit suite target
      */
@@ -1,7 +1,11 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.io.FileWriter;
 import java.util.NoSuchElementException;
 import java.util.Random;
 
@@ -12,9 +16,14 @@ import org.junit.Before;
 import org.junit.Test;
 
 import simpledb.TestUtil.SkeletonFile;
+import simpledb.common.Catalog;
 import simpledb.common.Database;
 import simpledb.common.Utility;
 import simpledb.storage.DbFile;
+import simpledb.storage.ColumnFile;
+import simpledb.storage.CompressedPageChannel;
+import simpledb.storage.HeapFile;
+import simpledb.storage.PageCodec;
 import simpledb.storage.TupleDesc;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
@@ -97,6 +106,60 @@ public class CatalogTest extends SimpleDbTestBase {
     	assertEquals(f, Database.getCatalog().getDatabaseFile(id2));
     }
 
+    /**
+     * Check that the catalog file can declare slotted tables
+     */
+    @Test public void loadSchemaSlotted() throws Exception {
+        File schema = File.createTempFile("catalog", ".txt");
+        schema.deleteOnExit();
+        String fixed = SystemTestUtil.getUUID(), slotted = SystemTestUtil.getUUID();
+        try (FileWriter w = new FileWriter(schema)) {
+            w.write(fixed + " (a int, b string)\n");
+            w.write(slotted + " (a int pk, b string) slotted\n");
+        }
+        Database.getCatalog().loadSchema(schema.getAbsolutePath());
+        Catalog catalog = Database.getCatalog();
+        assertFalse(((HeapFile) catalog.getDatabaseFile(catalog.getTableId(fixed))).isSlotted());
+        assertTrue(((HeapFile) catalog.getDatabaseFile(catalog.getTableId(slotted))).isSlotted());
+        assertEquals("a", catalog.getPrimaryKey(catalog.getTableId(slotted)));
+    }
+
+    /**
+     * Check that the catalog file can declare the codec of compressed tables
+     */
+    @Test public void loadSchemaCodec() throws Exception {
+        File schema = File.createTempFile("catalog", ".txt");
+        schema.deleteOnExit();
+        String compressed = SystemTestUtil.getUUID();
+        try (FileWriter w = new FileWriter(schema)) {
+            w.write(compressed + " (a int, b int) codec=deflate slotted\n");
+        }
+        File data = new File(schema.getAbsoluteFile().getParent(), compressed + ".dat");
+        HeapFile.deleteOnExit(data);
+        assertTrue(data.createNewFile());
+        Database.getCatalog().loadSchema(schema.getAbsolutePath());
+        HeapFile hf = (HeapFile) Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId(compressed));
+        assertTrue(hf.isSlotted());
+        assertEquals(0, hf.numPages());
+        assertEquals(PageCodec.DEFLATE, CompressedPageChannel.codecOf(hf.getFile()));
+    }
+
+    /**
+     * Check that the catalog file can declare column files
+     */
+    @Test public void loadSchemaColumnar() throws Exception {
+        File schema = File.createTempFile("catalog", ".txt");
+        schema.deleteOnExit();
+        String columnar = SystemTestUtil.getUUID();
+        try (FileWriter w = new FileWriter(schema)) {
+            w.write(columnar + " (a int, b int) columnar\n");
+        }
+        Database.getCatalog().loadSchema(schema.getAbsolutePath());
+        DbFile f = Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId(columnar));
+        assertTrue(f instanceof ColumnFile);
+        assertEquals(2, f.getTupleDesc().numFields());
+    }
+
     /**
      * JUnit suite target
      */
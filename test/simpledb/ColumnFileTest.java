@@ -0,0 +1,181 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.common.Utility;
+import simpledb.execution.Aggregate;
+import simpledb.execution.Aggregator;
+import simpledb.execution.Project;
+import simpledb.execution.SeqScan;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ColumnFileTest extends SimpleDbTestBase {
+    private static final int NUM_TUPLES = 1000;
+
+    private ColumnFile cf;
+
+    /**
+     * Loads NUM_TUPLES tuples (i, 10 * i, 100 * i) into a new column file.
+     */
+    @Before public void setUp() throws Exception {
+        File f = File.createTempFile("column", ".dat");
+        f.deleteOnExit();
+        cf = new ColumnFile(f, Utility.getTupleDesc(3));
+        Database.getCatalog().addTable(cf, SystemTestUtil.getUUID());
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < NUM_TUPLES; i++) {
+            Tuple t = new Tuple(cf.getTupleDesc());
+            for (int j = 0; j < 3; j++)
+                t.setField(j, new IntField(i * (int) Math.pow(10, j)));
+            Database.getBufferPool().insertTuple(tid, cf.getId(), t);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Each column lives in a minipage of its own, and an int column can be
+     * read as a primitive array.
+     */
+    @Test public void columnLayout() throws Exception {
+        ColumnPage page = (ColumnPage) cf.readPage(new HeapPageId(cf.getId(), 0));
+        int slots = (BufferPool.getPageSize() * 8) / (12 * 8 + 1);
+        assertEquals(0, page.getNumEmptySlots());
+        int[] ints = page.getInts(1);
+        assertEquals(slots, ints.length);
+        for (int i = 0; i < slots; i++)
+            assertEquals(10 * i, ints[i]);
+
+        byte[] data = page.getPageData();
+        int headerSize = (slots + 7) / 8;
+        int column2 = headerSize + 2 * slots * 4;
+        assertEquals(100 * 3, java.nio.ByteBuffer.wrap(data).getInt(column2 + 3 * 4));
+        assertArrayEquals(data, new ColumnPage(page.getId(), data).getPageData());
+    }
+
+    /**
+     * Project over a SeqScan of a column file pushes the projection into the
+     * scan, which returns and describes only the projected columns, also
+     * when it is opened again.
+     */
+    @Test public void projectedScan() throws Exception {
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, cf.getId(), "t");
+        Project project = new Project(Arrays.asList(2, 0), new Type[]{Type.INT_TYPE, Type.INT_TYPE}, scan);
+        for (int run = 0; run < 2; run++) {
+            project.open();
+            TupleDesc scanned = scan.getTupleDesc();
+            assertEquals(2, scanned.numFields());
+            assertEquals("t." + cf.getTupleDesc().getFieldName(2), scanned.getFieldName(0));
+            assertEquals("t." + cf.getTupleDesc().getFieldName(0), scanned.getFieldName(1));
+            int count = 0;
+            while (project.hasNext()) {
+                Tuple t = project.next();
+                int i = ((IntField) t.getField(1)).getValue();
+                assertEquals(new IntField(100 * i), t.getField(0));
+                count++;
+            }
+            project.close();
+            assertEquals(NUM_TUPLES, count);
+        }
+
+        DbFileIterator it = cf.iterator(tid, new int[]{1});
+        it.open();
+        Tuple t = it.next();
+        assertEquals(1, t.getTupleDesc().numFields());
+        assertEquals(new IntField(0), t.getField(0));
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Deleted slots are reused and the page changes like a HeapPage does.
+     */
+    @Test public void deleteAndInsert() throws Exception {
+        TransactionId tid = new TransactionId();
+        HeapPageId pid = new HeapPageId(cf.getId(), 0);
+        ColumnPage page = (ColumnPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        Tuple victim = page.iterator().next();
+        Database.getBufferPool().deleteTuple(tid, victim);
+        assertEquals(1, page.getNumEmptySlots());
+        assertFalse(page.isSlotUsed(0));
+
+        Tuple t = Utility.getHeapTuple(new int[]{-1, -2, -3});
+        Database.getBufferPool().insertTuple(tid, cf.getId(), t);
+        assertEquals(new RecordId(pid, 0), t.getRecordId());
+        assertEquals(new IntField(-3), page.getField(0, 2));
+        assertEquals(-2, page.getInts(1)[0]);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * An insert write locks only the page it goes to, and a page it appends
+     * reaches the disk empty, so an abort leaves no tuple behind.
+     */
+    @Test public void abortAppend() throws Exception {
+        int slots = (BufferPool.getPageSize() * 8) / (12 * 8 + 1);
+        int last = cf.numPages() - 1;
+        TransactionId tid = new TransactionId();
+        int room = (last + 1) * slots - NUM_TUPLES;
+        for (int i = 0; i <= room; i++)
+            Database.getBufferPool().insertTuple(tid, cf.getId(), Utility.getHeapTuple(new int[]{i, i, i}));
+        assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(cf.getId(), 0)));
+        assertTrue(Database.getBufferPool().holdsLock(tid, new HeapPageId(cf.getId(), last)));
+        assertEquals(last + 2, cf.numPages());
+        assertEquals(slots, ((ColumnPage) cf.readPage(new HeapPageId(cf.getId(), last + 1))).getNumEmptySlots());
+        Database.getBufferPool().transactionComplete(tid, false);
+
+        tid = new TransactionId();
+        DbFileIterator it = cf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(NUM_TUPLES, count);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * An Aggregate over an int column of a SeqScan of a column file reads
+     * the column as primitive arrays, with or without a pushed projection.
+     */
+    @Test public void aggregateInts() throws Exception {
+        TransactionId tid = new TransactionId();
+        Aggregator.Op[] ops = {Aggregator.Op.SUM, Aggregator.Op.COUNT, Aggregator.Op.MIN, Aggregator.Op.MAX};
+        int[] results = {10 * NUM_TUPLES * (NUM_TUPLES - 1) / 2, NUM_TUPLES, 0, 10 * (NUM_TUPLES - 1)};
+        for (boolean project : new boolean[]{false, true}) {
+            SeqScan scan = new SeqScan(tid, cf.getId(), "t");
+            if (project)
+                scan.pushProjection(new int[]{2, 1});           // field 1 of the scan is still field 1
+            for (int i = 0; i < ops.length; i++) {
+                Aggregate agg = new Aggregate(scan, 1, Aggregator.NO_GROUPING, ops[i]);
+                agg.open();
+                assertEquals(new IntField(results[i]), agg.next().getField(0));
+                assertFalse(agg.hasNext());
+                agg.close();
+            }
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ColumnFileTest.class);
+    }
+}
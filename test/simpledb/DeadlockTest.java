@@ -7,6 +7,9 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
 import simpledb.common.Permissions;
@@ -219,6 +222,43 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
     System.out.println("testUpgradeWriteDeadlock resolved deadlock");
   }
 
+  /**
+   * Only the youngest transaction of a deadlock is aborted, at once; the
+   * older one gets its lock when the victim releases its own.
+   */
+  @Test public void testYoungestIsVictim() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    bp.getPage(tid2, p1, Permissions.READ_WRITE);
+
+    LockGrabber lg1 = startGrabber(tid1, p1, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    LockGrabber lg2 = startGrabber(tid2, p0, Permissions.READ_WRITE);
+    lg2.join(WAIT_INTERVAL);
+    assertNotNull(lg2.getError());                    // aborted, which released p1
+
+    lg1.join(WAIT_INTERVAL);
+    assertNull(lg1.getError());
+    assertTrue(lg1.acquired());
+  }
+
+  /**
+   * A reader that upgrades while other transactions read the page waits
+   * for them instead of being aborted.
+   */
+  @Test public void testUpgradeWaitsForReaders() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid2, p0, Permissions.READ_ONLY);
+
+    LockGrabber lg1 = startGrabber(tid1, p0, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    assertFalse(lg1.acquired());
+    assertNull(lg1.getError());
+
+    bp.transactionComplete(tid2);
+    lg1.join(WAIT_INTERVAL);
+    assertTrue(lg1.acquired());
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,204 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.execution.SeqScan;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.Page;
+import simpledb.storage.PageId;
+import simpledb.storage.evict.Clock;
+import simpledb.storage.evict.EvictStrategy;
+import simpledb.storage.evict.LRU;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class EvictStrategyTest extends SimpleDbTestBase {
+
+    private ConcurrentHashMap<PageId, Page> pages;
+    private HeapPageId[] pids;
+    private final Set<PageId> noPins = Collections.emptySet();
+
+    @Before public void createPages() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        pages = new ConcurrentHashMap<>();
+        pids = new HeapPageId[4];
+        for (int i = 0; i < pids.length; i++) {
+            pids[i] = new HeapPageId(f.getId(), i);
+            pages.put(pids[i], new HeapPage(pids[i], HeapPage.createEmptyPageData()));
+        }
+    }
+
+    private void loadAll(EvictStrategy strategy) {
+        for (HeapPageId pid : pids)
+            strategy.recordAccess(pid);
+    }
+
+    /**
+     * Unit test for LRU: a hit moves the page to the most recently used end.
+     */
+    @Test public void lruEvictsLeastRecentlyUsed() throws DbException {
+        EvictStrategy lru = new LRU();
+        loadAll(lru);
+        assertEquals(pids[0], lru.getEvictPageId(pages, noPins));
+        lru.recordAccess(pids[0]);
+        assertEquals(pids[1], lru.getEvictPageId(pages, noPins));
+    }
+
+    /**
+     * Unit test for CLOCK: referenced pages get a second chance.
+     */
+    @Test public void clockGivesSecondChance() throws DbException {
+        EvictStrategy clock = new Clock();
+        loadAll(clock);
+        PageId victim = clock.getEvictPageId(pages, noPins);
+        assertEquals(pids[0], victim);
+        clock.remove(victim);
+        pages.remove(victim);
+        clock.recordAccess(pids[1]);
+        assertEquals(pids[2], clock.getEvictPageId(pages, noPins));
+    }
+
+    /**
+     * Dirty pages must never be chosen as victims (NO STEAL).
+     */
+    @Test public void skipsDirtyPages() throws DbException {
+        TransactionId tid = new TransactionId();
+        pages.get(pids[0]).markDirty(true, tid);
+        pages.get(pids[1]).markDirty(true, tid);
+        for (EvictStrategy strategy : new EvictStrategy[]{new LRU(), new Clock()}) {
+            loadAll(strategy);
+            assertEquals(pids[2], strategy.getEvictPageId(pages, noPins));
+        }
+    }
+
+    /**
+     * Pinned pages must never be chosen as victims.
+     */
+    @Test public void skipsPinnedPages() throws DbException {
+        Set<PageId> pinned = new HashSet<>();
+        pinned.add(pids[0]);
+        pinned.add(pids[2]);
+        for (EvictStrategy strategy : new EvictStrategy[]{new LRU(), new Clock()}) {
+            loadAll(strategy);
+            assertEquals(pids[1], strategy.getEvictPageId(pages, pinned));
+        }
+    }
+
+    /**
+     * Pages read by a bulk scan are evicted before recently used ones, and
+     * never demote a page that is already hot.
+     */
+    @Test public void coldPagesEvictedFirst() throws DbException {
+        for (EvictStrategy strategy : new EvictStrategy[]{new LRU(), new Clock()}) {
+            strategy.recordAccess(pids[0]);
+            strategy.recordAccess(pids[1]);
+            strategy.recordColdAccess(pids[2]);
+            strategy.recordColdAccess(pids[0]);
+            assertEquals(pids[2], strategy.getEvictPageId(pages, noPins));
+        }
+    }
+
+    /**
+     * Counts the number of pages read, one at a time or in batches.
+     */
+    private static class InstrumentedHeapFile extends HeapFile {
+        final AtomicInteger readCount = new AtomicInteger();         // read ahead on other threads too
+
+        InstrumentedHeapFile(File f) {
+            super(f, Utility.getTupleDesc(2));
+        }
+
+        @Override
+        public Page readPage(PageId pid) throws NoSuchElementException {
+            readCount.incrementAndGet();
+            return super.readPage(pid);
+        }
+
+        @Override
+        public List<Page> readPages(List<PageId> pids) {
+            readCount.addAndGet(pids.size());
+            return super.readPages(pids);
+        }
+    }
+
+    /**
+     * A SeqScan over a table larger than the pool reads through a ring, so
+     * the pages of a small hot table stay resident.
+     */
+    @Test public void scanKeepsHotPages() throws Exception {
+        final int POOL_PAGES = 32;
+        BufferPool bp = Database.resetBufferPool(POOL_PAGES);
+        InstrumentedHeapFile hot = new InstrumentedHeapFile(
+                SystemTestUtil.createRandomHeapFileUnopened(2, 504 * 4, 1000, null, null));
+        Database.getCatalog().addTable(hot, SystemTestUtil.getUUID());
+        HeapFile cold = SystemTestUtil.createRandomHeapFile(2, 504 * POOL_PAGES * 2, null, null);
+        assertTrue(cold.numPages() > POOL_PAGES);
+
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < hot.numPages(); i++)
+            bp.getPage(tid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY);
+        assertEquals(hot.numPages(), hot.readCount.get());
+
+        SeqScan scan = new SeqScan(tid, cold.getId());
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        assertEquals(504 * POOL_PAGES * 2, count);
+
+        hot.readCount.set(0);
+        for (int i = 0; i < hot.numPages(); i++)
+            bp.getPage(tid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY);
+        assertEquals(0, hot.readCount.get());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * When every page is dirty there is nothing to evict.
+     */
+    @Test public void allDirty() {
+        TransactionId tid = new TransactionId();
+        for (HeapPageId pid : pids)
+            pages.get(pid).markDirty(true, tid);
+        for (EvictStrategy strategy : new EvictStrategy[]{new LRU(), new Clock()}) {
+            loadAll(strategy);
+            try {
+                strategy.getEvictPageId(pages, noPins);
+                fail("expected DbException");
+            } catch (DbException expected) {
+            }
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EvictStrategyTest.class);
+    }
+}
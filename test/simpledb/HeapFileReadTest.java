@@ -1,6 +1,7 @@
 package simpledb;
 
 import simpledb.common.Database;
+import simpledb.common.Permissions;
 import simpledb.common.Utility;
 import simpledb.storage.*;
 import simpledb.systemtest.SimpleDbTestBase;
@@ -81,6 +82,67 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * A closed HeapFile reopens its channel, and pages past the end of the
+     * file do not exist.
+     */
+    @Test
+    public void readPageAfterClose() throws Exception {
+        hf.close();
+        HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        assertEquals(484, page.getNumEmptySlots());
+        try {
+            hf.readPage(new HeapPageId(hf.getId(), 1));
+            fail("expected exception");
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+
+    /**
+     * A memory-mapped HeapFile decodes the same pages and rejects changes.
+     */
+    @Test
+    public void readPageMemoryMapped() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        byte[] expected = hf.readPage(pid).getPageData();
+        hf.setMemoryMapped(true);
+        try {
+            HeapPage page = (HeapPage) hf.readPage(pid);
+            assertEquals(484, page.getNumEmptySlots());
+            assertArrayEquals(expected, page.getPageData());
+            assertArrayEquals(expected, page.getBeforeImage().getPageData());
+            try {
+                hf.insertTuple(tid, Utility.getHeapTuple(1, 2));
+                fail("expected exception");
+            } catch (simpledb.common.DbException ignored) {
+            }
+        } finally {
+            hf.setMemoryMapped(false);
+        }
+    }
+
+    /**
+     * Unit test for HeapFile.readPages()
+     */
+    @Test
+    public void readPages() throws Exception {
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 504 * 3, null, null);
+        List<PageId> pids = new ArrayList<>();
+        for (int pgNo : new int[]{2, 0, 1, 0})
+            pids.add(new HeapPageId(big.getId(), pgNo));
+        List<Page> pages = big.readPages(pids);
+        assertEquals(pids.size(), pages.size());
+        for (int i = 0; i < pids.size(); i++) {
+            assertEquals(pids.get(i), pages.get(i).getId());
+            assertArrayEquals(big.readPage(pids.get(i)).getPageData(), pages.get(i).getPageData());
+        }
+        try {
+            big.readPages(Collections.singletonList(new HeapPageId(big.getId(), 3)));
+            fail("expected exception");
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
@@ -125,6 +187,32 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * Pages fetched one after the other are read ahead; pages fetched out of
+     * order are not.
+     */
+    @Test
+    public void readAhead() throws Exception {
+        Database.resetBufferPool(100);
+        BufferPool bp = Database.getBufferPool();
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 504 * 20, null, null);
+        for (int pageNo : new int[]{10, 3, 15, 7, 12})
+            bp.getPage(tid, new HeapPageId(big.getId(), pageNo), Permissions.READ_ONLY);
+        Thread.sleep(200);                                      // give a wrongly started read-ahead time to finish
+        assertEquals(0, bp.getPagesReadAhead());
+
+        DbFileIterator it = big.iterator(tid);
+        it.open();
+        for (int i = 0; i < 504 * 2 && it.hasNext(); i++)
+            it.next();
+        it.close();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (bp.getPagesReadAhead() == 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertTrue(bp.getPagesReadAhead() > 0);
+        assertEquals(0, bp.getFailedReadAheads());
+    }
+
     /**
      * JUnit suite target
      */
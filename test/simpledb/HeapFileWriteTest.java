@@ -7,12 +7,19 @@ import org.junit.Test;
 import static org.junit.Assert.*;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
+import simpledb.common.Permissions;
 import simpledb.common.Utility;
+import simpledb.execution.Predicate;
 import simpledb.storage.*;
 import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionId;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 
 public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
     private TransactionId tid;
@@ -90,6 +97,192 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         it.close();
     }
 
+    /**
+     * The free space map survives reopening the file, so inserts skip the
+     * full pages without locking them, and a second inserter goes to a page
+     * the first one has not locked.
+     */
+    @Test public void freeSpaceMap() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        for (int i = 0; i < 504 * 2 + 1; ++i)
+            bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        bp.transactionComplete(tid);
+
+        HeapFile reopened = new HeapFile(empty.getFile(), empty.getTupleDesc());
+        Database.getCatalog().addTable(reopened, SystemTestUtil.getUUID());
+        TransactionId first = new TransactionId();
+        reopened.insertTuple(first, Utility.getHeapTuple(0, 2));
+        assertFalse(bp.holdsLock(first, new HeapPageId(reopened.getId(), 0)));
+        assertTrue(bp.holdsLock(first, new HeapPageId(reopened.getId(), 2)));
+        bp.transactionComplete(first);
+
+        TransactionId deleter = new TransactionId();
+        DbFileIterator it = reopened.iterator(deleter);
+        it.open();
+        bp.deleteTuple(deleter, it.next());                 // room on page 0 as well
+        it.close();
+        bp.transactionComplete(deleter);
+
+        TransactionId second = new TransactionId();
+        Tuple a = Utility.getHeapTuple(1, 2);
+        Tuple b = Utility.getHeapTuple(2, 2);
+        reopened.insertTuple(first, a);
+        reopened.insertTuple(second, b);
+        assertEquals(0, a.getRecordId().getPageId().getPageNumber());
+        assertEquals(2, b.getRecordId().getPageId().getPageNumber());
+        bp.transactionComplete(first);
+        bp.transactionComplete(second);
+    }
+
+    /**
+     * The room an aborted insert took goes back to the free space map, so
+     * the next insert does not have to grow the file.
+     */
+    @Test public void abortGivesBackRoom() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        for (int i = 0; i < 500; ++i)
+            bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        bp.transactionComplete(tid);
+
+        TransactionId aborted = new TransactionId();
+        for (int i = 0; i < 4; ++i)
+            bp.insertTuple(aborted, empty.getId(), Utility.getHeapTuple(i, 2));
+        bp.transactionComplete(aborted, false);
+
+        Tuple t = Utility.getHeapTuple(0, 2);
+        bp.insertTuple(tid, empty.getId(), t);
+        assertEquals(1, empty.numPages());
+        assertEquals(0, t.getRecordId().getPageId().getPageNumber());
+    }
+
+    /**
+     * Deleting a table deletes the free space map kept next to it.
+     */
+    @Test public void deleteFreeSpaceMap() throws Exception {
+        Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(0, 2));
+        Database.getBufferPool().transactionComplete(tid);
+        File sidecar = new File(empty.getFile().getPath() + ".fsm");
+        assertTrue(sidecar.exists());
+
+        assertTrue(HeapFile.delete(empty.getFile()));
+        assertFalse(empty.getFile().exists());
+        assertFalse(sidecar.exists());
+    }
+
+    /**
+     * A batch insert appends its full pages straight to disk, and an abort
+     * rolls them back from the log.
+     */
+    @Test public void insertTuples() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < 504 * 3 + 10; ++i)
+            tuples.add(Utility.getHeapTuple(i, 2));
+        Transaction t = new Transaction();
+        t.start();
+        bp.insertTuples(t.getId(), empty.getId(), tuples.iterator());
+        assertEquals(4, empty.numPages());                  // the empty page and three appended ones
+        for (int i = 1; i < 4; ++i)
+            assertEquals(0, ((HeapPage) empty.readPage(new HeapPageId(empty.getId(), i))).getNumEmptySlots());
+        assertEquals(new HeapPageId(empty.getId(), 0), tuples.get(tuples.size() - 1).getRecordId().getPageId());
+        t.abort();
+
+        for (int i = 1; i < 4; ++i)
+            assertEquals(504, ((HeapPage) empty.readPage(new HeapPageId(empty.getId(), i))).getNumEmptySlots());
+    }
+
+    @Test public void insertTuplesWithoutBegin() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < 504 * 2 + 10; ++i)
+            tuples.add(Utility.getHeapTuple(i, 2));
+        bp.insertTuples(tid, empty.getId(), tuples.iterator());
+        assertEquals(3, empty.numPages());
+        bp.transactionComplete(tid, false);                             // tid never logged a BEGIN
+
+        for (int i = 0; i < 3; ++i)
+            assertEquals(504, ((HeapPage) empty.readPage(new HeapPageId(empty.getId(), i))).getNumEmptySlots());
+    }
+
+    /**
+     * Two transactions insert into the same page at once under record
+     * locks; the commit of one writes its tuple without the other's, and the
+     * abort of the other leaves the committed tuple in place.
+     */
+    @Test public void writersSharePage() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        TransactionId first = new TransactionId();
+        TransactionId second = new TransactionId();
+        Tuple a = Utility.getHeapTuple(1, 2);
+        Tuple b = Utility.getHeapTuple(2, 2);
+        bp.insertTuple(first, empty.getId(), a);
+        bp.insertTuple(second, empty.getId(), b);
+        HeapPageId pid = new HeapPageId(empty.getId(), 0);
+        assertEquals(pid, b.getRecordId().getPageId());
+
+        bp.transactionComplete(first, true);
+        assertEquals(Arrays.asList(1), values(empty.readPage(pid)));
+        bp.transactionComplete(second, false);
+        assertEquals(Arrays.asList(1), values(bp.getPage(tid, pid, Permissions.READ_ONLY)));
+        assertEquals(Arrays.asList(1), values(empty.readPage(pid)));
+    }
+
+    /**
+     * Two transactions delete different tuples of the same page; the abort
+     * of one puts its tuple back, and the commit of the other removes only
+     * its own tuple from disk.
+     */
+    @Test public void deletersSharePage() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < 3; ++i) {
+            tuples.add(Utility.getHeapTuple(i, 2));
+            bp.insertTuple(tid, empty.getId(), tuples.get(i));
+        }
+        bp.transactionComplete(tid);
+
+        TransactionId first = new TransactionId();
+        TransactionId second = new TransactionId();
+        bp.deleteTuple(first, tuples.get(0));
+        bp.deleteTuple(second, tuples.get(1));
+        bp.transactionComplete(first, false);
+        bp.transactionComplete(second, true);
+
+        HeapPageId pid = new HeapPageId(empty.getId(), 0);
+        assertEquals(Arrays.asList(0, 2), values(empty.readPage(pid)));
+        assertEquals(Arrays.asList(0, 2), values(bp.getPage(tid, pid, Permissions.READ_ONLY)));
+    }
+
+    /**
+     * A filtered scan only locks the tuples that pass its predicate, so an
+     * uncommitted insert of a tuple that does not pass it holds nothing up.
+     */
+    @Test public void filteredScanSkipsOtherWriters() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(1, 2));
+        bp.transactionComplete(tid);
+
+        TransactionId writer = new TransactionId();
+        bp.insertTuple(writer, empty.getId(), Utility.getHeapTuple(2, 2));
+        TransactionId reader = new TransactionId();
+        DbFileIterator it = empty.iterator(reader, null, new Predicate(0, Predicate.Op.EQUALS, new IntField(1)));
+        it.open();
+        assertTrue(it.hasNext());
+        assertEquals(new IntField(1), it.next().getField(0));
+        assertFalse(it.hasNext());
+        it.close();
+        bp.transactionComplete(reader);
+        bp.transactionComplete(writer, false);
+    }
+
+    private static List<Integer> values(Page page) {
+        List<Integer> values = new ArrayList<>();
+        Iterator<Tuple> it = ((HeapPage) page).iterator();
+        while (it.hasNext())
+            values.add(((IntField) it.next().getField(0)).getValue());
+        return values;
+    }
+
     /**
      * JUnit suite target
      */
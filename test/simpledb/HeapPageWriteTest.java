@@ -1,7 +1,11 @@
 package simpledb;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 
 import junit.framework.JUnit4TestAdapter;
 
@@ -11,10 +15,16 @@ import org.junit.Test;
 import simpledb.TestUtil.SkeletonFile;
 import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.common.Type;
 import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
 import simpledb.storage.HeapPage;
 import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 import simpledb.transaction.TransactionId;
@@ -131,6 +141,103 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * The before image is the page as it was read until the first change,
+     * and setBeforeImage() makes the current contents the new one.
+     */
+    @Test public void beforeImage() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        byte[] original = page.getPageData();
+        assertArrayEquals(original, page.getBeforeImage().getPageData());
+
+        page.deleteTuple(page.iterator().next());
+        assertArrayEquals(original, page.getBeforeImage().getPageData());
+
+        page.setBeforeImage();
+        byte[] changed = page.getPageData();
+        assertArrayEquals(changed, page.getBeforeImage().getPageData());
+        page.insertTuple(Utility.getHeapTuple(1, 2));
+        assertArrayEquals(changed, page.getBeforeImage().getPageData());
+    }
+
+    /**
+     * Adds an empty table of (int, string) rows to the catalog.
+     *
+     * @return the id of the table
+     */
+    private static int addStringTable(boolean slotted) throws IOException {
+        File f = File.createTempFile("table", ".dat");
+        HeapFile.deleteOnExit(f);
+        HeapFile hf = new HeapFile(f, new TupleDesc(new Type[]{Type.INT_TYPE, Type.STRING_TYPE}), null, slotted);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        return hf.getId();
+    }
+
+    /**
+     * Slotted tables get slotted pages: short strings take only their own
+     * length, deleted records are squeezed out, and the page survives a
+     * round trip through its bytes.
+     */
+    @Test public void slottedStrings() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[]{Type.INT_TYPE, Type.STRING_TYPE});
+        HeapPage page = new HeapPage(new HeapPageId(addStringTable(true), 0), HeapPage.createEmptyPageData());
+        int fixedSlots = (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+        List<Tuple> inserted = new ArrayList<>();
+        while (page.getNumEmptySlots() > 0) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(inserted.size()));
+            t.setField(1, new StringField("s" + inserted.size(), Type.STRING_LEN));
+            page.insertTuple(t);
+            inserted.add(t);
+        }
+        assertTrue(inserted.size() > 5 * fixedSlots);
+
+        for (int i = 0; i < inserted.size(); i += 2)
+            page.deleteTuple(inserted.get(i));
+        Tuple longer = new Tuple(td);
+        longer.setField(0, new IntField(-1));
+        longer.setField(1, new StringField("a string longer than the ones it replaces", Type.STRING_LEN));
+        page.insertTuple(longer);
+        assertEquals(0, longer.getRecordId().getTupleNumber());         // reuses the first free slot
+
+        HeapPage copy = new HeapPage(page.getId(), page.getPageData());
+        Iterator<Tuple> it = copy.iterator();
+        assertEquals(longer.getField(1), it.next().getField(1));
+        for (int i = 1; i < inserted.size(); i += 2) {
+            Tuple t = it.next();
+            assertEquals(inserted.get(i).getField(0), t.getField(0));
+            assertEquals(inserted.get(i).getField(1), t.getField(1));
+            assertEquals(inserted.get(i).getField(1), copy.getField(i, 1));
+        }
+        assertFalse(it.hasNext());
+    }
+
+    /**
+     * Tables with strings keep fixed slots unless they are slotted.
+     */
+    @Test public void stringsNotSlotted() throws Exception {
+        int tableId = addStringTable(false);
+        HeapPage page = new HeapPage(new HeapPageId(tableId, 0), HeapPage.createEmptyPageData());
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableId);
+        assertEquals((BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1), page.getNumEmptySlots());
+    }
+
+    /**
+     * Slotted pages hold 2 byte offsets, so they cannot be 64 KB or larger.
+     */
+    @Test public void slottedPageSizeLimit() throws Exception {
+        int tableId = addStringTable(true);
+        BufferPool.setPageSize(1 << 16);
+        try {
+            new HeapPage(new HeapPageId(tableId, 0), HeapPage.createEmptyPageData());
+            fail("a slotted page of 64 KB cannot address its end");
+        } catch (IllegalArgumentException e) {
+            // expected
+        } finally {
+            BufferPool.resetPageSize();
+        }
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,164 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.storage.RecordId;
+import simpledb.transaction.TransactionId;
+import simpledb.transaction.lock.LockManager;
+import simpledb.transaction.lock.PageLock;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.*;
+
+public class LockManagerTest {
+    private LockManager lockManager;
+    private TransactionId tid1, tid2;
+
+    @Before public void setUp() {
+        lockManager = new LockManager();
+        tid1 = new TransactionId();
+        tid2 = new TransactionId();
+    }
+
+    /**
+     * A transaction's lock set follows its grants and releases, and
+     * releaseAll frees exactly those pages.
+     */
+    @Test public void lockSets() throws Exception {
+        PageId[] pids = new PageId[40];                 // spread over the shards
+        for (int i = 0; i < pids.length; i++) {
+            pids[i] = new HeapPageId(i % 3, i);
+            assertTrue(lockManager.acquireLock(tid1, pids[i],
+                    i % 2 == 0 ? PageLock.LockType.SAHRE : PageLock.LockType.EXCLUSIVE, 0));
+        }
+        assertTrue(lockManager.acquireLock(tid2, pids[0], PageLock.LockType.SAHRE, 0));
+        assertEquals(new HashSet<>(Arrays.asList(pids)), lockManager.getLockedPages(tid1));
+
+        lockManager.releaseLock(tid1, pids[1]);
+        assertFalse(lockManager.getLockedPages(tid1).contains(pids[1]));
+        assertFalse(lockManager.holdsLock(tid1, pids[1]));
+
+        lockManager.releaseAll(tid1);
+        assertTrue(lockManager.getLockedPages(tid1).isEmpty());
+        assertTrue(lockManager.holdsLock(tid2, pids[0]));
+        for (int i = 1; i < pids.length; i++) {
+            assertFalse(lockManager.isLockedByOthers(tid2, pids[i]));
+            assertTrue(lockManager.acquireLock(tid2, pids[i], PageLock.LockType.EXCLUSIVE, 0));
+        }
+    }
+
+    /**
+     * A waiter granted on release joins the lock set of its transaction.
+     */
+    @Test public void grantedWaiterInLockSet() throws Exception {
+        PageId pid = new HeapPageId(1, 0);
+        assertTrue(lockManager.acquireLock(tid1, pid, PageLock.LockType.EXCLUSIVE, 0));
+        Thread waiter = new Thread(() -> {
+            try {
+                lockManager.acquireLock(tid2, pid, PageLock.LockType.EXCLUSIVE, 5000);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        waiter.start();
+        Thread.sleep(100);
+        assertTrue(lockManager.getLockedPages(tid2).isEmpty());
+        lockManager.releaseAll(tid1);
+        waiter.join(1000);
+        assertEquals(new HashSet<>(Arrays.asList(pid)), lockManager.getLockedPages(tid2));
+    }
+
+    /**
+     * Intention modes are compatible with each other; a shared table lock
+     * only admits readers below it.
+     */
+    @Test public void intentionCompatibility() {
+        PageLock.LockType IS = PageLock.LockType.INTENTION_SHARE, IX = PageLock.LockType.INTENTION_EXCLUSIVE;
+        PageLock.LockType S = PageLock.LockType.SAHRE, X = PageLock.LockType.EXCLUSIVE;
+        assertTrue(IS.isCompatibleWith(IX));
+        assertTrue(IX.isCompatibleWith(IX));
+        assertTrue(IS.isCompatibleWith(S));
+        assertFalse(IX.isCompatibleWith(S));
+        assertFalse(IS.isCompatibleWith(X));
+        assertEquals(X, S.join(IX));
+        assertEquals(IX, IS.join(IX));
+    }
+
+    /**
+     * Writers of different records of one page do not block each other,
+     * writers of the same record do.
+     */
+    @Test public void recordLocks() throws Exception {
+        PageId pid = new HeapPageId(1, 0);
+        assertTrue(lockManager.acquireRecordLock(tid1, new RecordId(pid, 0), PageLock.LockType.EXCLUSIVE, 0));
+        assertTrue(lockManager.acquireRecordLock(tid2, new RecordId(pid, 1), PageLock.LockType.EXCLUSIVE, 0));
+        assertFalse(lockManager.acquireRecordLock(tid2, new RecordId(pid, 0), PageLock.LockType.SAHRE, 0));
+        assertFalse(lockManager.acquireLock(tid2, pid, PageLock.LockType.SAHRE, 0));
+
+        lockManager.releaseAll(tid1);
+        assertTrue(lockManager.acquireRecordLock(tid2, new RecordId(pid, 0), PageLock.LockType.SAHRE, 0));
+    }
+
+    /**
+     * Past the threshold the record locks of a page are replaced by a page lock.
+     */
+    @Test public void escalation() throws Exception {
+        PageId pid = new HeapPageId(1, 0);
+        for (int i = 0; i <= LockManager.ESCALATION_THRESHOLD; i++)
+            assertTrue(lockManager.acquireRecordLock(tid1, new RecordId(pid, i), PageLock.LockType.SAHRE, 0));
+        assertFalse(lockManager.acquireRecordLock(tid2, new RecordId(pid, 100), PageLock.LockType.EXCLUSIVE, 0));
+        assertTrue(lockManager.acquireRecordLock(tid2, new RecordId(pid, 100), PageLock.LockType.SAHRE, 0));
+        assertTrue(lockManager.acquireRecordLock(tid1, new RecordId(pid, 200), PageLock.LockType.SAHRE, 0));
+
+        lockManager.releaseAll(tid2);
+        lockManager.releaseLock(tid1, pid);
+        assertTrue(lockManager.getLockedPages(tid1).isEmpty());
+        assertTrue(lockManager.acquireLock(tid2, pid, PageLock.LockType.EXCLUSIVE, 0));
+    }
+
+    /**
+     * While another transaction holds the page the record locks are not
+     * escalated, and the escalation is tried again later.
+     */
+    @Test public void escalationDoesNotWait() throws Exception {
+        PageId pid = new HeapPageId(1, 0);
+        assertTrue(lockManager.acquireRecordLock(tid2, new RecordId(pid, 500), PageLock.LockType.EXCLUSIVE, 0));
+        for (int i = 0; i <= 2 * LockManager.ESCALATION_THRESHOLD; i++)
+            assertTrue(lockManager.acquireRecordLock(tid1, new RecordId(pid, i), PageLock.LockType.SAHRE, 0));
+        assertTrue(lockManager.acquireRecordLock(tid2, new RecordId(pid, 501), PageLock.LockType.EXCLUSIVE, 0));
+
+        lockManager.releaseAll(tid2);
+        for (int i = 2 * LockManager.ESCALATION_THRESHOLD + 1; i <= 3 * LockManager.ESCALATION_THRESHOLD; i++)
+            assertTrue(lockManager.acquireRecordLock(tid1, new RecordId(pid, i), PageLock.LockType.SAHRE, 0));
+        assertFalse(lockManager.acquireRecordLock(tid2, new RecordId(pid, 501), PageLock.LockType.EXCLUSIVE, 0));
+    }
+
+    /**
+     * A shared table lock covers the pages of the table and keeps writers out.
+     */
+    @Test public void tableLocks() throws Exception {
+        PageId pid = new HeapPageId(1, 0);
+        assertTrue(lockManager.acquireTableLock(tid1, 1, PageLock.LockType.SAHRE, 0));
+        assertTrue(lockManager.acquireLock(tid1, pid, PageLock.LockType.SAHRE, 0));
+        assertTrue(lockManager.getLockedPages(tid1).isEmpty());
+        assertTrue(lockManager.holdsLock(tid1, pid));
+        assertTrue(lockManager.isLockedByOthers(tid2, pid));
+        assertTrue(lockManager.acquireLock(tid2, pid, PageLock.LockType.SAHRE, 0));
+        assertFalse(lockManager.acquireRecordLock(tid2, new RecordId(pid, 0), PageLock.LockType.EXCLUSIVE, 0));
+
+        lockManager.releaseAll(tid1);
+        assertTrue(lockManager.acquireRecordLock(tid2, new RecordId(pid, 0), PageLock.LockType.EXCLUSIVE, 0));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
@@ -193,6 +193,34 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid1, p1, Permissions.READ_WRITE);
   }
 
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * Waiters are woken up as soon as the lock is released, in the order
+   * they arrived: a reader behind a waiting writer waits too, even though
+   * it is compatible with the current reader.
+   */
+  @Test public void waitersGrantedInOrder() throws Exception {
+    TransactionId tid3 = new TransactionId();
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    TestUtil.LockGrabber writer = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_WRITE);
+    writer.start();
+    Thread.sleep(TIMEOUT);
+    TestUtil.LockGrabber reader = new TestUtil.LockGrabber(tid3, p0, Permissions.READ_ONLY);
+    reader.start();
+    Thread.sleep(TIMEOUT);
+    assertEquals(false, writer.acquired());
+    assertEquals(false, reader.acquired());
+
+    bp.unsafeReleasePage(tid1, p0);
+    writer.join(TIMEOUT);
+    assertEquals(true, writer.acquired());
+    assertEquals(false, reader.acquired());
+
+    bp.unsafeReleasePage(tid2, p0);
+    reader.join(TIMEOUT);
+    assertEquals(true, reader.acquired());
+  }
+
   /**
    * JUnit suite target
    */
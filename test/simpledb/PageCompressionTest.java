@@ -0,0 +1,184 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.index.BTreeFile;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PageCompressionTest extends SimpleDbTestBase {
+    private static final int NUM_TUPLES = 5000;
+
+    private File f;
+
+    @Before public void setUp() throws Exception {
+        f = File.createTempFile("compressed", ".dat");
+        HeapFile.deleteOnExit(f);
+    }
+
+    /**
+     * Every codec gives back what it was handed, also for a length that is
+     * not a multiple of a word.
+     */
+    @Test public void codecsRoundTrip() throws Exception {
+        Random random = new Random(7);
+        byte[] noise = new byte[4099];
+        random.nextBytes(noise);
+        byte[] runs = new byte[BufferPool.getPageSize() + 9];
+        for (int i = 0; i < runs.length; i++)
+            runs[i] = (byte) (i / 1000);
+        for (PageCodec codec : PageCodec.values()) {
+            for (byte[] data : new byte[][]{noise, runs, new byte[0], new byte[3]})
+                assertArrayEquals(codec.toString(), data, codec.decompress(codec.compress(data), data.length));
+            assertTrue(codec.toString(), codec.compress(runs).length < runs.length / 8);
+        }
+    }
+
+    /**
+     * A compressed heap file of low-cardinality ints takes a fraction of the
+     * space of its pages and reads back the same after being reopened, also
+     * without naming its codec. Its free space map survives the reopening.
+     */
+    @Test public void heapFile() throws Exception {
+        HeapFile hf = new HeapFile(f, Utility.getTupleDesc(2), PageCodec.DICTIONARY);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < NUM_TUPLES; i++)
+            Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[]{i % 3, 42}));
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getBufferPool().flushAllPages();
+
+        int pages = hf.numPages();
+        assertEquals((NUM_TUPLES + 503) / 504, pages);
+        assertTrue(f.length() < pages * BufferPool.getPageSize() / 4);
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        assertEquals(PageCodec.DICTIONARY, CompressedPageChannel.codecOf(f));
+        HeapFile reopened = new HeapFile(f, hf.getTupleDesc());
+        Database.getCatalog().addTable(reopened, SystemTestUtil.getUUID());
+        assertEquals(pages, reopened.numPages());
+        File sidecar = new File(f.getPath() + ".fsm");
+        assertTrue(sidecar.exists());
+        tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, reopened.getId(), Utility.getHeapTuple(new int[]{NUM_TUPLES % 3, 42}));
+        Database.getBufferPool().transactionComplete(tid, false);
+        assertTrue(sidecar.exists());                           // the map still matched the file
+        tid = new TransactionId();
+        DbFileIterator it = reopened.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals(new IntField(42), t.getField(1));
+            assertEquals(new IntField(count % 3), t.getField(0));
+            count++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(NUM_TUPLES, count);
+    }
+
+    /**
+     * A plain file is not taken for a compressed one, and a compressed one
+     * cannot be opened with a plain channel's view of it.
+     */
+    @Test public void fileHeader() throws Exception {
+        File plain = SystemTestUtil.createRandomHeapFileUnopened(2, 1000, 3, null, null);
+        assertNull(CompressedPageChannel.codecOf(plain));
+        assertNull(CompressedPageChannel.codecOf(f));          // empty
+        try {
+            new CompressedPageChannel(plain, PageCodec.DEFLATE).size();
+            fail("a plain file has no block headers");
+        } catch (IOException e) {
+            // expected
+        }
+        CompressedPageChannel channel = new CompressedPageChannel(f, PageCodec.RUN_LENGTH);
+        assertEquals(0, channel.size());
+        channel.close();
+        assertEquals(PageCodec.RUN_LENGTH, CompressedPageChannel.codecOf(f));
+    }
+
+    /**
+     * A compressed B+ tree file splits and scans like a plain one.
+     */
+    @Test public void bTreeFile() throws Exception {
+        BTreeFile bf = new BTreeFile(f, 0, Utility.getTupleDesc(2), PageCodec.DEFLATE);
+        Database.getCatalog().addTable(bf, SystemTestUtil.getUUID());
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < NUM_TUPLES; i++)
+            Database.getBufferPool().insertTuple(tid, bf.getId(), Utility.getHeapTuple(new int[]{i, 7}));
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getBufferPool().flushAllPages();
+        assertTrue(bf.numPages() > 1);
+        assertTrue(f.length() < bf.numPages() * BufferPool.getPageSize() / 2);
+
+        tid = new TransactionId();
+        DbFileIterator it = bf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            assertEquals(new IntField(count), it.next().getField(0));
+            count++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(NUM_TUPLES, count);
+    }
+
+    /**
+     * Overwritten blocks are reclaimed by compaction, and a block torn off
+     * at the end of the file is ignored when the file is opened again.
+     */
+    @Test public void compactAndTornTail() throws Exception {
+        int pageSize = BufferPool.getPageSize();
+        CompressedPageChannel channel = new CompressedPageChannel(f, PageCodec.DEFLATE);
+        byte[] page = new byte[pageSize];
+        for (int version = 0; version < 10; version++) {
+            page[0] = (byte) version;
+            channel.write(page, 0);
+            channel.write(page, pageSize);
+        }
+        assertEquals(2L * pageSize, channel.size());
+        long before = channel.physicalSize();
+        channel.compact();
+        assertTrue(channel.physicalSize() < before / 5);
+
+        byte[] read = new byte[2 * pageSize];
+        assertEquals(read.length, channel.read(read, 0));
+        assertEquals(9, read[0]);
+        assertEquals(9, read[pageSize]);
+        assertEquals(-1, channel.read(new byte[1], 2L * pageSize));
+        channel.close();
+
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.seek(raf.length());
+            raf.write(new byte[]{0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1});
+        }
+        CompressedPageChannel reopened = new CompressedPageChannel(f, PageCodec.DEFLATE);
+        assertEquals(2L * pageSize, reopened.size());
+        page[0] = 10;
+        reopened.write(page, pageSize);
+        assertEquals(pageSize, reopened.read(read, pageSize));
+        assertEquals(10, read[0]);
+        reopened.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageCompressionTest.class);
+    }
+}
@@ -0,0 +1,122 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.storage.Tuple;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class SnapshotReadTest extends TestUtil.CreateHeapFile {
+    private PageId p0;
+    private BufferPool bp;
+
+    /** Time to wait before checking the state of lock contention, in ms */
+    private static final int TIMEOUT = 100;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        insert(10, true);
+        p0 = new HeapPageId(empty.getId(), 0);
+    }
+
+    private TransactionId insert(int count, boolean commit) throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < count; i++)
+            bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        if (commit)
+            bp.transactionComplete(tid, true);
+        return tid;
+    }
+
+    private int numTuples(TransactionId tid) throws Exception {
+        HeapPage page = (HeapPage) bp.getPage(tid, p0, Permissions.READ_ONLY);
+        int count = 0;
+        for (Tuple ignored : (Iterable<Tuple>) page::iterator)
+            count++;
+        return count;
+    }
+
+    /**
+     * A snapshot reads past the write lock of a running writer and keeps
+     * seeing the page as of its start after the writer commits.
+     */
+    @Test public void readsCommittedVersion() throws Exception {
+        TransactionId reader = new TransactionId();
+        bp.beginSnapshot(reader);
+        TransactionId writer = insert(5, false);
+        assertEquals(10, numTuples(reader));
+
+        bp.transactionComplete(writer, true);
+        assertEquals(10, numTuples(reader));
+
+        TransactionId later = new TransactionId();
+        bp.beginSnapshot(later);
+        assertEquals(15, numTuples(later));
+        assertEquals(15, numTuples(new TransactionId()));
+        bp.transactionComplete(reader);
+        bp.transactionComplete(later);
+    }
+
+    /**
+     * An aborted write is never visible to a snapshot.
+     */
+    @Test public void ignoresAbortedWrite() throws Exception {
+        TransactionId writer = insert(5, false);
+        TransactionId reader = new TransactionId();
+        bp.beginSnapshot(reader);
+        assertEquals(10, numTuples(reader));
+        bp.transactionComplete(writer, false);
+        assertEquals(10, numTuples(reader));
+        bp.transactionComplete(reader);
+    }
+
+    /**
+     * A snapshot takes no locks, so writers do not wait for it.
+     */
+    @Test public void doesNotBlockWriters() throws Exception {
+        Transaction reader = new Transaction();
+        reader.startSnapshot();
+        assertTrue(reader.getSnapshotTimestamp() >= 0);
+        numTuples(reader.getId());
+        assertFalse(bp.holdsLock(reader.getId(), p0));
+
+        TransactionId writer = new TransactionId();
+        TestUtil.LockGrabber t = new TestUtil.LockGrabber(writer, p0, Permissions.READ_WRITE);
+        t.start();
+        t.join(TIMEOUT);
+        t.interrupt();                                      // gives up waiting, if it still is
+        t.join(TIMEOUT);
+        assertFalse(t.isAlive());
+        assertTrue(t.acquired());
+        bp.transactionComplete(writer);
+        reader.commit();
+    }
+
+    /**
+     * A snapshot transaction is read-only.
+     */
+    @Test(expected = DbException.class) public void cannotWrite() throws Exception {
+        TransactionId reader = new TransactionId();
+        bp.beginSnapshot(reader);
+        bp.getPage(reader, p0, Permissions.READ_WRITE);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SnapshotReadTest.class);
+    }
+}
@@ -8,6 +8,7 @@ import static org.junit.Assert.*;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
@@ -66,7 +67,7 @@ public class BTreeScanTest extends SimpleDbTestBase {
         }
     }
     
-    /** Counts the number of readPage operations. */
+    /** Counts the number of pages read, one at a time or in batches. */
     static class InstrumentedBTreeFile extends BTreeFile {
         public InstrumentedBTreeFile(File f, int keyField, TupleDesc td) {
             super(f, keyField, td);
@@ -74,11 +75,17 @@ public class BTreeScanTest extends SimpleDbTestBase {
 
         @Override
         public Page readPage(PageId pid) throws NoSuchElementException {
-            readCount += 1;
+            readCount.incrementAndGet();
             return super.readPage(pid);
         }
 
-        public int readCount = 0;
+        @Override
+        public List<Page> readPages(List<PageId> pids) {
+            readCount.addAndGet(pids.size());
+            return super.readPages(pids);
+        }
+
+        public final AtomicInteger readCount = new AtomicInteger();   // read ahead on other threads too
     }
     
     /** Scan 1-4 columns. */
@@ -233,11 +240,11 @@ public class BTreeScanTest extends SimpleDbTestBase {
         }
         
         Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
-        table.readCount = 0;
+        table.readCount.set(0);
         BTreeScan scan = new BTreeScan(tid, f.getId(), "table", ipred);
         SystemTestUtil.matchTuples(scan, tuplesFiltered);
         // root pointer page + root + leaf page (possibly 2 leaf pages)
-        assertTrue(table.readCount == 3 || table.readCount == 4);
+        assertTrue(table.readCount.get() == 3 || table.readCount.get() == 4);
         
         // LESS_THAN
         tuplesFiltered.clear();
@@ -251,14 +258,14 @@ public class BTreeScanTest extends SimpleDbTestBase {
         }
         
         Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
-        table.readCount = 0;
+        table.readCount.set(0);
         scan = new BTreeScan(tid, f.getId(), "table", ipred);
         SystemTestUtil.matchTuples(scan, tuplesFiltered);
         // root pointer page + root + leaf pages
         int leafPageCount = tuplesFiltered.size()/502;
         if(leafPageCount < LEAF_PAGES)
         	leafPageCount++; // +1 for next key locking
-        assertEquals(leafPageCount + 2, table.readCount);
+        assertEquals(leafPageCount + 2, table.readCount.get());
         
         // GREATER_THAN
         tuplesFiltered.clear();
@@ -272,14 +279,14 @@ public class BTreeScanTest extends SimpleDbTestBase {
         }
         
         Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
-        table.readCount = 0;
+        table.readCount.set(0);
         scan = new BTreeScan(tid, f.getId(), "table", ipred);
         SystemTestUtil.matchTuples(scan, tuplesFiltered);
         // root pointer page + root + leaf pages
         leafPageCount = tuplesFiltered.size()/502;
         if(leafPageCount < LEAF_PAGES)
         	leafPageCount++; // +1 for next key locking
-        assertEquals(leafPageCount + 2, table.readCount);
+        assertEquals(leafPageCount + 2, table.readCount.get());
         
         Database.getBufferPool().transactionComplete(tid);
     }
@@ -3,6 +3,7 @@ package simpledb.systemtest;
 import java.io.*;
 import java.util.*;
 
+import org.junit.After;
 import org.junit.Test;
 
 import simpledb.common.Database;
@@ -127,13 +128,21 @@ public class LogTest extends SimpleDbTestBase {
         // empty heap files w/ 2 columns.
         // adds to the catalog.
         file1 = new File("simple1.db");
-        file1.delete();
+        HeapFile.delete(file1);
         file2 = new File("simple2.db");
-        file2.delete();
+        HeapFile.delete(file2);
         hf1 = Utility.createEmptyHeapFile(file1.getAbsolutePath(), 2);
         hf2 = Utility.createEmptyHeapFile(file2.getAbsolutePath(), 2);
     }
 
+    // remove the tables, and their free space maps, from the working directory
+    @After public void tearDown() {
+        if (file1 != null)
+            HeapFile.delete(file1);
+        if (file2 != null)
+            HeapFile.delete(file2);
+    }
+
     @Test public void PatchTest()
             throws IOException, DbException, TransactionAbortedException {
         setup();
@@ -14,6 +14,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
@@ -77,7 +78,7 @@ public class ScanTest extends SimpleDbTestBase {
      * @throws TransactionAbortedException
      * @throws DbException */
     @Test public void testCache() throws IOException, DbException, TransactionAbortedException {
-        /* Counts the number of readPage operations. */
+        /* Counts the number of pages read, one at a time or in batches. */
         class InstrumentedHeapFile extends HeapFile {
             public InstrumentedHeapFile(File f, TupleDesc td) {
                 super(f, td);
@@ -85,11 +86,17 @@ public class ScanTest extends SimpleDbTestBase {
 
             @Override
             public Page readPage(PageId pid) throws NoSuchElementException {
-                readCount += 1;
+                readCount.incrementAndGet();
                 return super.readPage(pid);
             }
 
-            public int readCount = 0;
+            @Override
+            public List<Page> readPages(List<PageId> pids) {
+                readCount.addAndGet(pids.size());
+                return super.readPages(pids);
+            }
+
+            public final AtomicInteger readCount = new AtomicInteger();   // read ahead on other threads too
         }
 
         // Create the table
@@ -102,12 +109,12 @@ public class ScanTest extends SimpleDbTestBase {
 
         // Scan the table once
         SystemTestUtil.matchTuples(table, tuples);
-        assertEquals(PAGES, table.readCount);
-        table.readCount = 0;
+        assertEquals(PAGES, table.readCount.get());
+        table.readCount.set(0);
 
         // Scan the table again: all pages should be cached
         SystemTestUtil.matchTuples(table, tuples);
-        assertEquals(0, table.readCount);
+        assertEquals(0, table.readCount.get());
     }
 
     /** Verifies SeqScan's getTupleDesc prefixes the table name + "." to the field names